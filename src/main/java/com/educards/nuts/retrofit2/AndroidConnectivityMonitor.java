@@ -0,0 +1,126 @@
+package com.educards.nuts.retrofit2;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link ConnectivityMonitor} backed by the {@link ConnectivityManager}.
+ * <p>
+ * Requires <code>android.permission.ACCESS_NETWORK_STATE</code> which is not declared by this library,
+ * apps using the connectivity-aware features (offline-first HTTP cache, connection pool eviction)
+ * must declare it in their manifest. Without it {@link DefaultRetrofitBuilder} doesn't use this monitor
+ * at all. If the state can't be determined the network is reported as connected
+ * and no change is ever reported.
+ * </p>
+ * <p>
+ * A network callback is registered with the first listener and unregistered once the last listener
+ * is removed. On API 24+ just changes of the default network are reported.
+ * </p>
+ */
+public class AndroidConnectivityMonitor implements ConnectivityMonitor {
+
+    private static final String TAG = "AndroidConnectivityMonitor";
+
+    private final ConnectivityManager connectivityManager;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Network callback, registered while there are listeners. Guarded by <code>this</code>.
+     */
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    public AndroidConnectivityMonitor(Context context) {
+        this.connectivityManager = (ConnectivityManager) context.getApplicationContext()
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * @return whether the app has been granted the permission this monitor requires
+     */
+    public static boolean isPermitted(Context context) {
+        return context.checkCallingOrSelfPermission(Manifest.permission.ACCESS_NETWORK_STATE) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    @Override
+    public boolean isConnected() {
+        if (connectivityManager == null) {
+            return true;
+        }
+        try {
+            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+            return networkInfo != null && networkInfo.isConnected();
+        } catch (SecurityException e) {
+            Log.w(TAG, "Failed to determine connectivity state", e);
+            return true;
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+        registerNetworkCallback();
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+        unregisterNetworkCallback();
+    }
+
+    private synchronized void registerNetworkCallback() {
+        if (networkCallback != null || connectivityManager == null || listeners.isEmpty()) {
+            return;
+        }
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                notifyListeners();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                notifyListeners();
+            }
+        };
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                connectivityManager.registerDefaultNetworkCallback(networkCallback);
+            } else {
+                connectivityManager.registerNetworkCallback(new NetworkRequest.Builder().build(), networkCallback);
+            }
+        } catch (SecurityException e) {
+            Log.w(TAG, "Failed to register network callback", e);
+            networkCallback = null;
+        }
+    }
+
+    private synchronized void unregisterNetworkCallback() {
+        if (networkCallback == null || !listeners.isEmpty()) {
+            return;
+        }
+        try {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Network callback was not registered", e);
+        }
+        networkCallback = null;
+    }
+
+    private void notifyListeners() {
+        for (Listener listener : listeners) {
+            listener.onConnectivityChanged();
+        }
+    }
+
+}
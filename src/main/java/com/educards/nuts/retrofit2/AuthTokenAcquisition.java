@@ -0,0 +1,180 @@
+package com.educards.nuts.retrofit2;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import com.educards.nuts.AuthToken;
+import com.educards.nuts.AuthTokenProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-flight acquisition of the auth token for secured calls.
+ * <p>
+ * Secured calls which need the auth token while an acquisition is already in progress join it
+ * instead of starting their own. This way a burst of secured calls results in a single
+ * {@link AuthTokenProvider#getInstalledAuthToken(Activity)} call (IPC, cookie store update and
+ * possibly launch of the authentication screen). All joined calls are released (or failed)
+ * together once the acquisition completes.
+ * </p>
+ * <p>
+ * Acquisitions started from main thread run on the auth executor (by default a small pool dedicated
+ * to auth, see {@link #DEFAULT_EXECUTOR}). Acquired token is handed over on the executor thread
+ * so the call goes to OkHttp dispatcher without a hop through main thread.
+ * </p>
+ */
+class AuthTokenAcquisition {
+
+    private static final String TAG = "AuthTokenAcquisition";
+
+    /**
+     * Executor used unless other is configured. Auth token acquisition is single-flight
+     * so a couple of threads (which time out when idle) are enough for all factories.
+     */
+    static final Executor DEFAULT_EXECUTOR = newDefaultExecutor();
+
+    interface Callback {
+
+        /**
+         * Called on the thread which completed the acquisition.
+         *
+         * @param authToken acquired token
+         */
+        void onAuthTokenAcquired(AuthToken authToken);
+
+        /**
+         * Called if there is no valid auth token. Delivered in main thread if the caller
+         * has been in main thread, otherwise on the thread which completed the acquisition.
+         */
+        void onAuthTokenMissing();
+
+    }
+
+    private final AuthTokenProvider authTokenProvider;
+
+    private final Executor executor;
+
+    /**
+     * Callers waiting for the acquisition in progress, <code>null</code> if there is none.
+     * Guarded by <code>this</code>.
+     */
+    private List<Waiter> waiters;
+
+    AuthTokenAcquisition(AuthTokenProvider authTokenProvider) {
+        this(authTokenProvider, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * @param executor executor running acquisitions started from main thread
+     */
+    AuthTokenAcquisition(AuthTokenProvider authTokenProvider, Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor == null");
+        }
+        this.authTokenProvider = authTokenProvider;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts the acquisition or joins the one in progress.
+     *
+     * @param activity activity the authentication might be started on top of
+     * @param mainThread whether the caller runs in main thread. If so the token is acquired
+     *                   by the executor (IPC can't be made in main thread).
+     *                   Otherwise the acquisition runs on the calling thread.
+     */
+    void acquire(final Activity activity, boolean mainThread, Callback callback) {
+        synchronized (this) {
+            if (waiters != null) {
+                waiters.add(new Waiter(callback, mainThread));
+                return; // joined the acquisition in progress
+            }
+            waiters = new ArrayList<Waiter>();
+            waiters.add(new Waiter(callback, mainThread));
+        }
+
+        if (mainThread) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    complete(getInstalledAuthToken(activity));
+                }
+            });
+        } else {
+            complete(getInstalledAuthToken(activity));
+        }
+    }
+
+    private AuthToken getInstalledAuthToken(Activity activity) {
+        try {
+            return authTokenProvider.getInstalledAuthToken(activity);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to acquire auth token", e);
+            return null;
+        }
+    }
+
+    private void complete(AuthToken authToken) {
+        List<Waiter> completed;
+        synchronized (this) {
+            completed = waiters;
+            waiters = null; // subsequent callers start a new acquisition
+        }
+
+        Handler mainHandler = null;
+        for (final Waiter waiter : completed) {
+            if (authToken != null) {
+                waiter.callback.onAuthTokenAcquired(authToken);
+            } else if (waiter.mainThread) {
+                if (mainHandler == null) {
+                    mainHandler = new Handler(Looper.getMainLooper());
+                }
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        waiter.callback.onAuthTokenMissing();
+                    }
+                });
+            } else {
+                waiter.callback.onAuthTokenMissing();
+            }
+        }
+    }
+
+    private static Executor newDefaultExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(2, 2, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "TemplateCall-auth");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class Waiter {
+
+        final Callback callback;
+
+        /**
+         * Whether the missing token has to be reported in main thread.
+         */
+        final boolean mainThread;
+
+        Waiter(Callback callback, boolean mainThread) {
+            this.callback = callback;
+            this.mainThread = mainThread;
+        }
+    }
+
+}
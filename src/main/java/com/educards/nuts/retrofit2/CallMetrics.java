@@ -0,0 +1,320 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import retrofit2.Invocation;
+import retrofit2.http.*;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of calls broken down to phases and aggregated per endpoint into {@link LatencyHistogram}s.
+ * <p>
+ * Network phases are measured by the {@link #eventListenerFactory() event listener} installed
+ * to OkHttp client, phases of {@link TemplateCall} (auth token acquisition, time from enqueue
+ * to callback) by the calls created by {@link TemplateCallAdapterFactory} with these metrics.
+ * Both are wired by {@link DefaultRetrofitBuilder.Config#setCallMetrics(CallMetrics)}.
+ * </p>
+ * <p>
+ * Endpoint is the Retrofit endpoint template (e.g. <code>GET users/{id}</code>) so calls differing
+ * just in path parameters share the histograms. Requests not made by Retrofit (or with dynamic
+ * <code>@Url</code>) use method and path instead.
+ * </p>
+ * <p>
+ * Histograms can be pulled ({@link #getHistogram(String, Phase)}) or each measurement
+ * pushed to {@link Listener}s, e.g. to export them to own telemetry.
+ * </p>
+ */
+public class CallMetrics {
+
+    public enum Phase {
+
+        DNS,
+
+        /**
+         * Establishing the connection including TLS handshake.
+         */
+        CONNECT,
+
+        TLS,
+
+        /**
+         * Writing request headers and body.
+         */
+        REQUEST_WRITE,
+
+        /**
+         * From the request written to the response headers started.
+         */
+        TIME_TO_FIRST_BYTE,
+
+        /**
+         * Reading (and decoding) the response body.
+         */
+        RESPONSE_BODY,
+
+        /**
+         * Whole OkHttp call.
+         */
+        CALL,
+
+        /**
+         * Waiting for the auth token of a secured {@link TemplateCall}.
+         */
+        AUTH_TOKEN,
+
+        /**
+         * From {@link TemplateCall} enqueue to its callback.
+         */
+        ENQUEUE_TO_CALLBACK
+
+    }
+
+    public interface Listener {
+
+        /**
+         * Called on the thread which completed the phase, should return quickly.
+         */
+        void onPhaseMeasured(String endpoint, Phase phase, long durationNs);
+
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final ConcurrentMap<String, LatencyHistogram[]> endpoints = new ConcurrentHashMap<String, LatencyHistogram[]>();
+
+    private final ConcurrentMap<Method, String> endpointTemplates = new ConcurrentHashMap<Method, String>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private final EventListener.Factory eventListenerFactory = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            return new MetricsEventListener();
+        }
+    };
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return endpoints measured so far
+     */
+    public Set<String> getEndpoints() {
+        return Collections.unmodifiableSet(endpoints.keySet());
+    }
+
+    /**
+     * @return histogram of given phase of calls to given endpoint, <code>null</code> if none has been measured
+     */
+    public LatencyHistogram getHistogram(String endpoint, Phase phase) {
+        LatencyHistogram[] histograms = endpoints.get(endpoint);
+        return histograms != null ? histograms[phase.ordinal()] : null;
+    }
+
+    /**
+     * @return factory of listeners measuring network phases, to be installed
+     * by {@link okhttp3.OkHttpClient.Builder#eventListenerFactory(EventListener.Factory)}
+     */
+    public EventListener.Factory eventListenerFactory() {
+        return eventListenerFactory;
+    }
+
+    void record(String endpoint, Phase phase, long durationNs) {
+        LatencyHistogram[] histograms = endpoints.get(endpoint);
+        if (histograms == null) {
+            histograms = new LatencyHistogram[PHASES.length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            LatencyHistogram[] existing = endpoints.putIfAbsent(endpoint, histograms);
+            if (existing != null) {
+                histograms = existing;
+            }
+        }
+        histograms[phase.ordinal()].record(durationNs, TimeUnit.NANOSECONDS);
+        for (Listener listener : listeners) {
+            listener.onPhaseMeasured(endpoint, phase, durationNs);
+        }
+    }
+
+    String getEndpoint(Request request) {
+        Invocation invocation = request.tag(Invocation.class);
+        if (invocation != null) {
+            Method method = invocation.method();
+            String template = endpointTemplates.get(method);
+            if (template == null) {
+                template = getEndpointTemplate(method);
+                endpointTemplates.putIfAbsent(method, template);
+            }
+            if (!template.isEmpty()) {
+                return template;
+            }
+        }
+        return request.method() + " " + request.url().encodedPath();
+    }
+
+    /**
+     * @return endpoint template of given service method, empty if it has none
+     */
+    private static String getEndpointTemplate(Method method) {
+        for (Annotation annotation : method.getAnnotations()) {
+            String httpMethod;
+            String path;
+            if (annotation instanceof GET) {
+                httpMethod = "GET";
+                path = ((GET) annotation).value();
+            } else if (annotation instanceof POST) {
+                httpMethod = "POST";
+                path = ((POST) annotation).value();
+            } else if (annotation instanceof PUT) {
+                httpMethod = "PUT";
+                path = ((PUT) annotation).value();
+            } else if (annotation instanceof DELETE) {
+                httpMethod = "DELETE";
+                path = ((DELETE) annotation).value();
+            } else if (annotation instanceof PATCH) {
+                httpMethod = "PATCH";
+                path = ((PATCH) annotation).value();
+            } else if (annotation instanceof HEAD) {
+                httpMethod = "HEAD";
+                path = ((HEAD) annotation).value();
+            } else if (annotation instanceof OPTIONS) {
+                httpMethod = "OPTIONS";
+                path = ((OPTIONS) annotation).value();
+            } else if (annotation instanceof HTTP) {
+                httpMethod = ((HTTP) annotation).method();
+                path = ((HTTP) annotation).path();
+            } else {
+                continue;
+            }
+            return path.isEmpty() ? "" : httpMethod + " " + path;
+        }
+        return "";
+    }
+
+    /**
+     * Measures single call. Events of a call are delivered sequentially.
+     */
+    private class MetricsEventListener extends EventListener {
+
+        private String endpoint;
+
+        private long callStartNs;
+
+        private long dnsStartNs;
+
+        private long connectStartNs;
+
+        private long secureConnectStartNs;
+
+        private long requestStartNs;
+
+        private long requestEndNs;
+
+        private long responseBodyStartNs;
+
+        @Override
+        public void callStart(Call call) {
+            endpoint = getEndpoint(call.request());
+            callStartNs = System.nanoTime();
+        }
+
+        @Override
+        public void dnsStart(Call call, String domainName) {
+            dnsStartNs = System.nanoTime();
+        }
+
+        @Override
+        public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+            record(endpoint, Phase.DNS, System.nanoTime() - dnsStartNs);
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectStartNs = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            secureConnectStartNs = System.nanoTime();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            record(endpoint, Phase.TLS, System.nanoTime() - secureConnectStartNs);
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            record(endpoint, Phase.CONNECT, System.nanoTime() - connectStartNs);
+        }
+
+        @Override
+        public void requestHeadersStart(Call call) {
+            requestStartNs = System.nanoTime();
+        }
+
+        @Override
+        public void requestHeadersEnd(Call call, Request request) {
+            requestEnd();
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            requestEnd();
+        }
+
+        private void requestEnd() {
+            requestEndNs = System.nanoTime();
+        }
+
+        @Override
+        public void responseHeadersStart(Call call) {
+            long now = System.nanoTime();
+            record(endpoint, Phase.REQUEST_WRITE, requestEndNs - requestStartNs);
+            record(endpoint, Phase.TIME_TO_FIRST_BYTE, now - requestEndNs);
+        }
+
+        @Override
+        public void responseBodyStart(Call call) {
+            responseBodyStartNs = System.nanoTime();
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            record(endpoint, Phase.RESPONSE_BODY, System.nanoTime() - responseBodyStartNs);
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            record(endpoint, Phase.CALL, System.nanoTime() - callStartNs);
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            record(endpoint, Phase.CALL, System.nanoTime() - callStartNs);
+        }
+    }
+
+}
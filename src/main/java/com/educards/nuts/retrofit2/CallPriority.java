@@ -0,0 +1,26 @@
+package com.educards.nuts.retrofit2;
+
+/**
+ * Priority of {@link TemplateCall}, set by {@link Priority} or {@link TemplateCall#setPriority(CallPriority)}.
+ * Respected by {@link PriorityDispatcher} (and the queues of {@link ConcurrencyLimiter}).
+ */
+public enum CallPriority {
+
+    /**
+     * User is waiting for the result, e.g. the content of the screen being opened.
+     * May use the slots reserved by {@link PriorityDispatcher#setReservedImmediateCalls(int)}.
+     */
+    IMMEDIATE,
+
+    /**
+     * Default priority.
+     */
+    NORMAL,
+
+    /**
+     * Result may be needed later (prefetch, background sync). Deferred while any
+     * {@link #IMMEDIATE} call is in flight or a call of higher priority is waiting.
+     */
+    PREFETCH
+
+}
@@ -0,0 +1,371 @@
+package com.educards.nuts.retrofit2;
+
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per host circuit breaker failing {@link TemplateCall}s fast while the host is failing.
+ * <p>
+ * Outcomes of the network attempts (IO errors, 5xx and 429 responses are failures) are kept in
+ * a sliding window per host. Once the failure rate in the window reaches the threshold the circuit
+ * {@link State#OPEN opens} and calls to the host fail immediately with {@link CircuitOpenException},
+ * without being queued. After the open duration a few probe calls are let through
+ * ({@link State#HALF_OPEN}), the circuit closes if they all succeed and opens again otherwise.
+ * While half open only the final outcomes of the probe calls count, outcomes of calls let through
+ * before are ignored. A probe canceled (or served from the cache) frees its place for another one.
+ * </p>
+ * <p>
+ * Admission is checked once per {@link TemplateCall}, retries and hedges of the call (see {@link RetryPolicy})
+ * are not checked again, their outcomes are recorded though.
+ * </p>
+ * <p>
+ * State transitions are pushed to {@link Listener}s for monitoring. The breaker is wired by
+ * {@link DefaultRetrofitBuilder.Config#setCircuitBreaker(CircuitBreaker)}.
+ * </p>
+ */
+public class CircuitBreaker {
+
+    private static final String TAG = "CircuitBreaker";
+
+    public enum State {
+
+        /**
+         * Calls pass, outcomes are recorded.
+         */
+        CLOSED,
+
+        /**
+         * Calls fail fast.
+         */
+        OPEN,
+
+        /**
+         * Limited number of probe calls pass to find out whether the host has recovered.
+         */
+        HALF_OPEN
+
+    }
+
+    public interface Listener {
+
+        /**
+         * Called on the thread which caused the transition, should return quickly.
+         */
+        void onStateChanged(String host, State from, State to);
+
+    }
+
+    private float failureRateThreshold = 0.5f;
+
+    private int slidingWindowSize = 20;
+
+    private int minimumCalls = 10;
+
+    private long openDurationMs = 30 * 1000;
+
+    private int halfOpenCalls = 1;
+
+    private final ConcurrentMap<String, HostCircuit> hosts = new ConcurrentHashMap<String, HostCircuit>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Failure rate (between 0 and 1) opening the circuit, defaults to 0.5.
+     */
+    public CircuitBreaker setFailureRateThreshold(float failureRateThreshold) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 1) {
+            throw new IllegalArgumentException("0 < failureRateThreshold <= 1 must hold");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    /**
+     * Number of latest outcomes the failure rate is computed from and the minimal number
+     * of outcomes to compute it at all. Defaults to 20 and 10.
+     */
+    public CircuitBreaker setSlidingWindow(int slidingWindowSize, int minimumCalls) {
+        if (minimumCalls < 1 || slidingWindowSize < minimumCalls) {
+            throw new IllegalArgumentException("1 <= minimumCalls <= slidingWindowSize must hold");
+        }
+        this.slidingWindowSize = slidingWindowSize;
+        this.minimumCalls = minimumCalls;
+        return this;
+    }
+
+    /**
+     * How long the circuit stays open before probe calls are let through, defaults to 30s.
+     */
+    public CircuitBreaker setOpenDuration(long openDuration, TimeUnit unit) {
+        if (openDuration <= 0) {
+            throw new IllegalArgumentException("openDuration <= 0");
+        }
+        this.openDurationMs = unit.toMillis(openDuration);
+        return this;
+    }
+
+    /**
+     * Number of successful probe calls closing half open circuit, defaults to 1.
+     */
+    public CircuitBreaker setHalfOpenCalls(int halfOpenCalls) {
+        if (halfOpenCalls < 1) {
+            throw new IllegalArgumentException("halfOpenCalls < 1");
+        }
+        this.halfOpenCalls = halfOpenCalls;
+        return this;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return hosts called so far
+     */
+    public Set<String> getHosts() {
+        return Collections.unmodifiableSet(hosts.keySet());
+    }
+
+    /**
+     * @return state of the circuit of given host, {@link State#CLOSED} if the host has not been called
+     */
+    public State getState(String host) {
+        HostCircuit circuit = hosts.get(host);
+        return circuit != null ? circuit.getState() : State.CLOSED;
+    }
+
+    /**
+     * @return permit of a call to given host, a {@link Permit#isProbe() probe} one if the circuit is half open,
+     * <code>null</code> if the call must fail fast
+     */
+    Permit tryAcquire(String host) {
+        HostCircuit circuit = getCircuit(host);
+        State from;
+        State to;
+        Permit permit;
+        synchronized (circuit) {
+            from = circuit.state;
+            permit = circuit.tryAcquire(host, System.currentTimeMillis());
+            to = circuit.state;
+        }
+        notifyTransition(host, from, to);
+        return permit;
+    }
+
+    /**
+     * Records outcome of a network attempt to given host. Ignored unless the circuit is closed.
+     */
+    void onResult(String host, boolean failure) {
+        HostCircuit circuit = getCircuit(host);
+        State from;
+        State to;
+        synchronized (circuit) {
+            from = circuit.state;
+            circuit.onResult(failure, System.currentTimeMillis());
+            to = circuit.state;
+        }
+        notifyTransition(host, from, to);
+    }
+
+    /**
+     * Records final outcome of a probe call.
+     */
+    void onProbeResult(Permit probe, boolean failure) {
+        HostCircuit circuit = getCircuit(probe.host);
+        State from;
+        State to;
+        synchronized (circuit) {
+            from = circuit.state;
+            circuit.onProbeResult(probe, failure, System.currentTimeMillis());
+            to = circuit.state;
+        }
+        notifyTransition(probe.host, from, to);
+    }
+
+    /**
+     * Frees place of a probe call which didn't reach the host (canceled or served from the cache).
+     */
+    void onProbeCanceled(Permit probe) {
+        HostCircuit circuit = getCircuit(probe.host);
+        synchronized (circuit) {
+            circuit.onProbeCanceled(probe);
+        }
+    }
+
+    private void notifyTransition(String host, State from, State to) {
+        if (from == to) {
+            return;
+        }
+        Log.i(TAG, String.format("Circuit state changed [host=%s, from=%s, to=%s]", host, from, to));
+        for (Listener listener : listeners) {
+            listener.onStateChanged(host, from, to);
+        }
+    }
+
+    private HostCircuit getCircuit(String host) {
+        HostCircuit circuit = hosts.get(host);
+        if (circuit == null) {
+            circuit = new HostCircuit(slidingWindowSize);
+            HostCircuit existing = hosts.putIfAbsent(host, circuit);
+            if (existing != null) {
+                circuit = existing;
+            }
+        }
+        return circuit;
+    }
+
+    /**
+     * Admission of a call by {@link #tryAcquire(String)}.
+     */
+    static final class Permit {
+
+        private static final Permit CALL = new Permit(null, 0);
+
+        private final String host;
+
+        /**
+         * Half open period the probe was let through in, 0 if the call is not a probe.
+         */
+        private final int period;
+
+        private Permit(String host, int period) {
+            this.host = host;
+            this.period = period;
+        }
+
+        /**
+         * @return whether the outcome of the call must be reported by {@link #onProbeResult(Permit, boolean)}
+         * (or {@link #onProbeCanceled(Permit)})
+         */
+        boolean isProbe() {
+            return period != 0;
+        }
+    }
+
+    /**
+     * Circuit of single host, guarded by itself.
+     */
+    private class HostCircuit {
+
+        private State state = State.CLOSED;
+
+        /**
+         * Ring buffer of the latest outcomes, <code>true</code> for failure.
+         */
+        private final boolean[] window;
+
+        private int windowCount;
+
+        private int windowIndex;
+
+        private int windowFailures;
+
+        /**
+         * When the circuit opened or the last probe was let through.
+         */
+        private long sinceMs;
+
+        private int probes;
+
+        private int probeSuccesses;
+
+        /**
+         * Number of the current (or last) half open period.
+         */
+        private int halfOpenPeriod;
+
+        HostCircuit(int slidingWindowSize) {
+            this.window = new boolean[slidingWindowSize];
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        Permit tryAcquire(String host, long nowMs) {
+            switch (state) {
+                case CLOSED:
+                    return Permit.CALL;
+                case OPEN:
+                    if (nowMs - sinceMs < openDurationMs) {
+                        return null;
+                    }
+                    state = State.HALF_OPEN;
+                    probes = 0;
+                    probeSuccesses = 0;
+                    halfOpenPeriod = halfOpenPeriod == Integer.MAX_VALUE ? 1 : halfOpenPeriod + 1;
+                    break;
+                default:
+                    // a probe may never report (e.g. its consumer hangs), don't wait for it forever
+                    if (probes >= halfOpenCalls && nowMs - sinceMs < openDurationMs) {
+                        return null;
+                    }
+            }
+            probes++;
+            sinceMs = nowMs;
+            return new Permit(host, halfOpenPeriod);
+        }
+
+        void onResult(boolean failure, long nowMs) {
+            if (state == State.CLOSED) {
+                record(failure);
+                if (windowCount >= minimumCalls && windowFailures >= failureRateThreshold * windowCount) {
+                    open(nowMs);
+                }
+            }
+            // otherwise outcome of a call started before the circuit opened or of a probe's attempt
+        }
+
+        void onProbeResult(Permit probe, boolean failure, long nowMs) {
+            if (state != State.HALF_OPEN || probe.period != halfOpenPeriod) {
+                return; // probe of an earlier period
+            }
+            if (failure) {
+                open(nowMs);
+            } else if (++probeSuccesses >= halfOpenCalls) {
+                state = State.CLOSED;
+                windowCount = 0;
+                windowIndex = 0;
+                windowFailures = 0;
+            }
+        }
+
+        void onProbeCanceled(Permit probe) {
+            if (state == State.HALF_OPEN && probe.period == halfOpenPeriod && probes > probeSuccesses) {
+                probes--;
+            }
+        }
+
+        private void open(long nowMs) {
+            state = State.OPEN;
+            sinceMs = nowMs;
+        }
+
+        private void record(boolean failure) {
+            if (windowCount == window.length) {
+                if (window[windowIndex]) {
+                    windowFailures--;
+                }
+            } else {
+                windowCount++;
+            }
+            window[windowIndex] = failure;
+            if (failure) {
+                windowFailures++;
+            }
+            windowIndex = (windowIndex + 1) % window.length;
+        }
+    }
+
+}
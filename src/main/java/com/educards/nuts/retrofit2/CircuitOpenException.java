@@ -0,0 +1,24 @@
+package com.educards.nuts.retrofit2;
+
+import java.io.IOException;
+
+/**
+ * Failure of {@link TemplateCall} which has not been sent since the circuit of its host is open,
+ * see {@link CircuitBreaker}. Such failure is reported by {@link TemplateCallback#onCircuitOpen(TemplateCall, CircuitOpenException)}
+ * (and {@link TemplateCallResult#isCircuitOpen()} for calls enqueued together) so that it can be
+ * told apart from a real server error.
+ */
+public class CircuitOpenException extends IOException {
+
+    private final String host;
+
+    public CircuitOpenException(String host) {
+        super(String.format("Circuit of host %s is open", host));
+        this.host = host;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+}
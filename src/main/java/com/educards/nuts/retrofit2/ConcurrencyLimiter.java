@@ -0,0 +1,281 @@
+package com.educards.nuts.retrofit2;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Adaptive limit of {@link TemplateCall}s in flight per host (AIMD).
+ * <p>
+ * Each network attempt reports its round trip time (to the response headers). The limit grows
+ * by one per limit of successful attempts while the calls use it and is cut by the backoff ratio
+ * on each sign of congestion: IO error, 429 or 503 response, or short term average RTT exceeding
+ * the long term one by the tolerance (the server got slower because of the load). Calls over the limit
+ * wait in the queue of the host (ordered by {@link CallPriority}) instead of piling up at the server.
+ * A permit is taken once per call, its retries and hedges (see {@link RetryPolicy}) run on it.
+ * </p>
+ * <p>
+ * The limiter is wired by {@link DefaultRetrofitBuilder.Config#setConcurrencyLimiter(ConcurrencyLimiter)}.
+ * </p>
+ */
+public class ConcurrencyLimiter {
+
+    private static final String TAG = "ConcurrencyLimiter";
+
+    /**
+     * Number of samples the short term average RTT is smoothed over.
+     */
+    private static final int SHORT_RTT_WINDOW = 10;
+
+    /**
+     * Number of samples the long term average RTT is smoothed over.
+     */
+    private static final int LONG_RTT_WINDOW = 100;
+
+    private int initialLimit = 8;
+
+    private int minLimit = 1;
+
+    private int maxLimit = 64;
+
+    private double rttTolerance = 1.5;
+
+    private double backoffRatio = 0.9;
+
+    private final ConcurrentMap<String, HostLimit> hosts = new ConcurrentHashMap<String, HostLimit>();
+
+    /**
+     * Limit of a host before any call is made, defaults to 8.
+     */
+    public ConcurrencyLimiter setInitialLimit(int initialLimit) {
+        if (initialLimit < 1) {
+            throw new IllegalArgumentException("initialLimit < 1");
+        }
+        this.initialLimit = initialLimit;
+        return this;
+    }
+
+    /**
+     * Bounds of the limit, defaults to 1 and 64.
+     */
+    public ConcurrencyLimiter setLimitRange(int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("1 <= minLimit <= maxLimit must hold");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    /**
+     * How many times the short term average RTT may exceed the long term one before the limit
+     * is decreased, defaults to 1.5.
+     */
+    public ConcurrencyLimiter setRttTolerance(double rttTolerance) {
+        if (rttTolerance < 1) {
+            throw new IllegalArgumentException("rttTolerance < 1");
+        }
+        this.rttTolerance = rttTolerance;
+        return this;
+    }
+
+    /**
+     * Ratio the limit is multiplied by on congestion, defaults to 0.9.
+     */
+    public ConcurrencyLimiter setBackoffRatio(double backoffRatio) {
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("0 < backoffRatio < 1 must hold");
+        }
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * @return hosts called so far
+     */
+    public Set<String> getHosts() {
+        return Collections.unmodifiableSet(hosts.keySet());
+    }
+
+    /**
+     * @return current limit of given host
+     */
+    public int getLimit(String host) {
+        HostLimit hostLimit = hosts.get(host);
+        return hostLimit != null ? hostLimit.getLimit() : Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * @return number of calls to given host in flight
+     */
+    public int getInFlight(String host) {
+        HostLimit hostLimit = hosts.get(host);
+        return hostLimit != null ? hostLimit.getInFlight() : 0;
+    }
+
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Takes a permit of given host or queues the waiter which is run once it gets the permit.
+     * Waiters of higher priority get the permits first.
+     *
+     * @return <code>true</code> if the permit was taken (and the waiter won't be run)
+     */
+    boolean acquire(String host, CallPriority priority, Runnable waiter) {
+        return getHostLimit(host).acquire(priority, waiter);
+    }
+
+    /**
+     * Removes the waiter from the queue of given host.
+     *
+     * @return <code>true</code> if the waiter was still waiting (and won't be run)
+     */
+    boolean withdraw(String host, CallPriority priority, Runnable waiter) {
+        return getHostLimit(host).withdraw(priority, waiter);
+    }
+
+    /**
+     * Returns the permit of given host, the permit is handed over to the first waiter if any.
+     */
+    void release(String host) {
+        Runnable waiter = getHostLimit(host).release();
+        if (waiter != null) {
+            waiter.run();
+        }
+    }
+
+    /**
+     * Adjusts the limit of given host by the outcome of a network attempt.
+     *
+     * @param rttNs round trip time of the attempt, ignored if dropped
+     * @param dropped whether the attempt failed due to overload (IO error, 429, 503)
+     */
+    void onSample(String host, long rttNs, boolean dropped) {
+        getHostLimit(host).onSample(rttNs, dropped);
+    }
+
+    private HostLimit getHostLimit(String host) {
+        HostLimit hostLimit = hosts.get(host);
+        if (hostLimit == null) {
+            hostLimit = new HostLimit(host);
+            HostLimit existing = hosts.putIfAbsent(host, hostLimit);
+            if (existing != null) {
+                hostLimit = existing;
+            }
+        }
+        return hostLimit;
+    }
+
+    private class HostLimit {
+
+        private final String host;
+
+        /**
+         * Guarded by <code>this</code>.
+         */
+        private double limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+
+        /**
+         * Guarded by <code>this</code>.
+         */
+        private int inFlight;
+
+        /**
+         * Guarded by <code>this</code>.
+         */
+        private final PriorityDispatcher.Waiters waiters = new PriorityDispatcher.Waiters();
+
+        /**
+         * Smoothed RTTs, zero until the first sample. Guarded by <code>this</code>.
+         */
+        private long shortRttNs;
+
+        private long longRttNs;
+
+        HostLimit(String host) {
+            this.host = host;
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        synchronized boolean acquire(CallPriority priority, Runnable waiter) {
+            if (inFlight < (int) limit) {
+                inFlight++;
+                return true;
+            }
+            waiters.add(priority, waiter);
+            return false;
+        }
+
+        synchronized boolean withdraw(CallPriority priority, Runnable waiter) {
+            return waiters.remove(priority, waiter);
+        }
+
+        /**
+         * @return waiter the permit has been handed over to, <code>null</code> if none
+         */
+        synchronized Runnable release() {
+            if (inFlight <= (int) limit && !waiters.isEmpty()) {
+                return waiters.poll(); // the permit passes to the waiter
+            }
+            inFlight--;
+            return null;
+        }
+
+        void onSample(long rttNs, boolean dropped) {
+            int previousLimit;
+            int newLimit;
+            Deque<Runnable> admitted = null;
+            synchronized (this) {
+                previousLimit = (int) limit;
+                boolean congested = dropped;
+                if (!dropped) {
+                    if (longRttNs == 0) {
+                        shortRttNs = rttNs;
+                        longRttNs = rttNs;
+                    } else {
+                        shortRttNs += (rttNs - shortRttNs) / SHORT_RTT_WINDOW;
+                        longRttNs += (rttNs - longRttNs) / LONG_RTT_WINDOW;
+                    }
+                    congested = shortRttNs > longRttNs * rttTolerance;
+                }
+                if (congested) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                } else if (inFlight * 2 >= limit) {
+                    limit = Math.min(maxLimit, limit + 1 / limit); // grows only while the limit is used
+                }
+                newLimit = (int) limit;
+                while (inFlight < newLimit && !waiters.isEmpty()) {
+                    if (admitted == null) {
+                        admitted = new ArrayDeque<Runnable>();
+                    }
+                    inFlight++;
+                    admitted.addLast(waiters.poll());
+                }
+            }
+            if (newLimit != previousLimit) {
+                Log.d(TAG, String.format("Limit changed [host=%s, limit=%d, dropped=%b, rttMs=%d]",
+                        host, newLimit, dropped, rttNs / 1000000));
+            }
+            if (admitted != null) {
+                for (Runnable waiter : admitted) {
+                    waiter.run();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.educards.nuts.retrofit2;
+
+/**
+ * Source of the device connectivity state. Default implementation is {@link AndroidConnectivityMonitor},
+ * a different one may be configured by {@link DefaultRetrofitBuilder.Config#setConnectivityMonitor(ConnectivityMonitor)}.
+ */
+public interface ConnectivityMonitor {
+
+    interface Listener {
+
+        /**
+         * Called when a network is gained or lost (e.g. switch from Wi-Fi to mobile data)
+         * on an arbitrary thread.
+         */
+        void onConnectivityChanged();
+
+    }
+
+    /**
+     * @return <code>true</code> if the network is (or might be) reachable,
+     * <code>false</code> only if it is known to be unreachable
+     */
+    boolean isConnected();
+
+    void addListener(Listener listener);
+
+    void removeListener(Listener listener);
+
+}
@@ -0,0 +1,193 @@
+package com.educards.nuts.retrofit2;
+
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.nio.charset.Charset;
+
+/**
+ * Compact versioned binary encoding of {@link HttpCookie} used by {@link PersistentHttpCookieStore}.
+ * <p>
+ * Layout:
+ * <blockquote><pre>
+ * formatVersion:u8 flags:u8 name value comment commentURL domain path portlist expiry:varint version:varint
+ * </pre></blockquote>
+ * Strings are written as varint of (UTF-8 length + 1) followed by UTF-8 bytes, zero stands for <code>null</code>.
+ * Expiry is an absolute time (epoch seconds) so the cookie doesn't outlive its max-age across
+ * application restarts, zig-zag encoded since session cookies carry <code>-1</code>. Format version 1
+ * stored relative max-age at the same position, it's still readable.
+ * </p>
+ */
+class CookieCodec {
+
+    static final int FORMAT_VERSION = 2;
+
+    private static final int FORMAT_VERSION_MAX_AGE = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_SECURE = 1;
+    private static final int FLAG_DISCARD = 1 << 1;
+    private static final int FLAG_HTTP_ONLY = 1 << 2;
+
+    /**
+     * @param expiresAt absolute expiry time in millis, {@link Long#MAX_VALUE} for session cookies
+     */
+    static byte[] encode(HttpCookie cookie, long expiresAt) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.write(FORMAT_VERSION);
+
+        int flags = 0;
+        if (cookie.getSecure()) {
+            flags |= FLAG_SECURE;
+        }
+        if (cookie.getDiscard()) {
+            flags |= FLAG_DISCARD;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && cookie.isHttpOnly()) {
+            flags |= FLAG_HTTP_ONLY;
+        }
+        out.write(flags);
+
+        writeString(out, cookie.getName());
+        writeString(out, cookie.getValue());
+        writeString(out, cookie.getComment());
+        writeString(out, cookie.getCommentURL());
+        writeString(out, cookie.getDomain());
+        writeString(out, cookie.getPath());
+        writeString(out, cookie.getPortlist());
+        // seconds rounded up, without overflowing for expiry clamped near Long.MAX_VALUE
+        long expiresAtSeconds = expiresAt / 1000 + (expiresAt % 1000 != 0 ? 1 : 0);
+        writeVarLong(out, zigZag(expiresAt == Long.MAX_VALUE ? -1 : expiresAtSeconds));
+        writeVarLong(out, cookie.getVersion());
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IOException if data are truncated, malformed or of unknown format version
+     */
+    static HttpCookie decode(byte[] data) throws IOException {
+        Reader in = new Reader(data);
+        int formatVersion = in.readByte();
+        if (formatVersion != FORMAT_VERSION && formatVersion != FORMAT_VERSION_MAX_AGE) {
+            throw new IOException(String.format("Unsupported cookie format version [version=%d]", formatVersion));
+        }
+        int flags = in.readByte();
+
+        HttpCookie cookie;
+        try {
+            cookie = new HttpCookie(in.readString(), in.readString());
+            cookie.setComment(in.readString());
+            cookie.setCommentURL(in.readString());
+            cookie.setDomain(in.readString());
+            cookie.setPath(in.readString());
+            cookie.setPortlist(in.readString());
+            long expiry = unZigZag(in.readVarLong());
+            if (formatVersion == FORMAT_VERSION && expiry >= 0) {
+                expiry = Math.max(0, expiry - System.currentTimeMillis() / 1000); // remaining max-age
+            }
+            cookie.setMaxAge(expiry);
+            cookie.setVersion((int) in.readVarLong());
+        } catch (IllegalArgumentException | NullPointerException e) {
+            throw new IOException("Malformed cookie", e);
+        }
+        cookie.setSecure((flags & FLAG_SECURE) != 0);
+        cookie.setDiscard((flags & FLAG_DISCARD) != 0);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            cookie.setHttpOnly((flags & FLAG_HTTP_ONLY) != 0);
+        }
+        return cookie;
+    }
+
+    static void writeString(ByteArrayOutputStream out, String value) {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarLong(out, bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Reads values written by {@link #writeVarLong(ByteArrayOutputStream, long)}
+     * and {@link #writeString(ByteArrayOutputStream, String)}.
+     */
+    static class Reader {
+
+        private final byte[] data;
+
+        private final int limit;
+
+        private int position;
+
+        Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        Reader(byte[] data, int offset, int limit) {
+            this.data = data;
+            this.position = offset;
+            this.limit = limit;
+        }
+
+        int position() {
+            return position;
+        }
+
+        boolean hasMore() {
+            return position < limit;
+        }
+
+        int readByte() throws IOException {
+            if (position >= limit) {
+                throw new IOException("Truncated data");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String readString() throws IOException {
+            long length = readVarLong() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > limit - position) {
+                throw new IOException("Truncated data");
+            }
+            String value = new String(data, position, (int) length, UTF_8);
+            position += (int) length;
+            return value;
+        }
+    }
+
+}
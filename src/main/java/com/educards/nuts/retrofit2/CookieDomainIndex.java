@@ -0,0 +1,184 @@
+package com.educards.nuts.retrofit2;
+
+import java.net.HttpCookie;
+import java.util.*;
+
+/**
+ * Index of cookies held by {@link PersistentHttpCookieStore} organized as a trie keyed
+ * on reversed labels of the cookie domain (<code>.api.example.com</code> is stored under
+ * <code>com &rarr; example &rarr; api</code>).
+ * <p>
+ * A lookup walks labels of the request host from the right and therefore visits only cookies
+ * whose domain is a suffix of the host. These are the only cookies
+ * {@link HttpCookie#domainMatches(String, String)} can accept so the lookup returns
+ * a superset of matching cookies which the caller still filters with <code>domainMatches</code>.
+ * </p>
+ * <p>
+ * The index is immutable, {@link #with(StoredCookie)} and {@link #without(StoredCookie)} return
+ * a new index sharing all nodes off the modified path. It can be therefore read
+ * by any number of threads without locking.
+ * </p>
+ */
+class CookieDomainIndex {
+
+    static final CookieDomainIndex EMPTY = new CookieDomainIndex(Node.EMPTY);
+
+    private static final String LOCAL_DOMAIN = "local";
+
+    private final Node root;
+
+    private CookieDomainIndex(Node root) {
+        this.root = root;
+    }
+
+    CookieDomainIndex with(StoredCookie stored) {
+        String domain = stored.cookie.getDomain();
+        if (domain == null) {
+            return this; // never domain-matches any host
+        }
+        return new CookieDomainIndex(root.with(reversedLabels(normalizeDomain(domain)), 0, stored));
+    }
+
+    CookieDomainIndex without(StoredCookie stored) {
+        String domain = stored.cookie.getDomain();
+        if (domain == null) {
+            return this;
+        }
+        Node newRoot = root.without(reversedLabels(normalizeDomain(domain)), 0, stored);
+        return newRoot == root ? this : new CookieDomainIndex(newRoot);
+    }
+
+    /**
+     * Collects all cookies whose domain is a suffix of given host
+     * (plus <code>.local</code> cookies for unqualified hosts).
+     *
+     * @param host request host, lower or mixed case
+     * @param result list the candidate cookies are appended to
+     */
+    void collectCandidates(String host, List<StoredCookie> result) {
+        if (host == null) {
+            return;
+        }
+        String normalizedHost = host.toLowerCase(Locale.US);
+        List<String> hostLabels = reversedLabels(normalizedHost);
+        Node node = root;
+        for (int i = 0; i < hostLabels.size() && node != null; i++) {
+            String label = hostLabels.get(i);
+            if (i == hostLabels.size() - 1) {
+                // RFC 2965 lets a dotless host prefix precede the domain ("x" + "example.com"),
+                // so cookies with a domain ending in a suffix of the leftmost label are candidates as well
+                for (int start = 1; start < label.length(); start++) {
+                    Node partial = node.children.get(label.substring(start));
+                    if (partial != null) {
+                        partial.collectEntries(result);
+                    }
+                }
+            }
+            node = node.children.get(label);
+            if (node != null) {
+                node.collectEntries(result);
+            }
+        }
+
+        if (normalizedHost.indexOf('.') == -1) {
+            // unqualified host may match ".local" and "<host>.local" domains
+            Node local = root.children.get(LOCAL_DOMAIN);
+            if (local != null) {
+                if (!LOCAL_DOMAIN.equals(normalizedHost)) {
+                    local.collectEntries(result); // otherwise already visited by the walk above
+                }
+                Node hostLocal = local.children.get(normalizedHost);
+                if (hostLocal != null) {
+                    hostLocal.collectEntries(result);
+                }
+            }
+        }
+    }
+
+    private static String normalizeDomain(String domain) {
+        String normalized = domain.toLowerCase(Locale.US);
+        return normalized.startsWith(".") ? normalized.substring(1) : normalized;
+    }
+
+    private static List<String> reversedLabels(String name) {
+        List<String> labels = new ArrayList<String>();
+        int end = name.length();
+        for (int dot = name.lastIndexOf('.'); dot >= 0; dot = name.lastIndexOf('.', end - 1)) {
+            labels.add(name.substring(dot + 1, end));
+            end = dot;
+            if (end == 0) {
+                break;
+            }
+        }
+        labels.add(name.substring(0, end));
+        return labels;
+    }
+
+    private static class Node {
+
+        static final Node EMPTY = new Node(Collections.<String, Node>emptyMap(), new StoredCookie[0]);
+
+        final Map<String, Node> children;
+
+        final StoredCookie[] entries;
+
+        Node(Map<String, Node> children, StoredCookie[] entries) {
+            this.children = children;
+            this.entries = entries;
+        }
+
+        boolean isEmpty() {
+            return children.isEmpty() && entries.length == 0;
+        }
+
+        void collectEntries(List<StoredCookie> result) {
+            Collections.addAll(result, entries);
+        }
+
+        Node with(List<String> labels, int depth, StoredCookie stored) {
+            if (depth == labels.size()) {
+                StoredCookie[] newEntries = Arrays.copyOf(entries, entries.length + 1);
+                newEntries[entries.length] = stored;
+                return new Node(children, newEntries);
+            }
+            String label = labels.get(depth);
+            Node child = children.get(label);
+            return withChild(label, (child != null ? child : EMPTY).with(labels, depth + 1, stored));
+        }
+
+        /**
+         * @return node without given cookie, <code>this</code> if the cookie isn't indexed
+         */
+        Node without(List<String> labels, int depth, StoredCookie stored) {
+            if (depth == labels.size()) {
+                for (int i = 0; i < entries.length; i++) {
+                    if (entries[i] == stored) {
+                        StoredCookie[] newEntries = new StoredCookie[entries.length - 1];
+                        System.arraycopy(entries, 0, newEntries, 0, i);
+                        System.arraycopy(entries, i + 1, newEntries, i, entries.length - i - 1);
+                        return new Node(children, newEntries);
+                    }
+                }
+                return this;
+            }
+            String label = labels.get(depth);
+            Node child = children.get(label);
+            if (child == null) {
+                return this;
+            }
+            Node newChild = child.without(labels, depth + 1, stored);
+            return newChild == child ? this : withChild(label, newChild);
+        }
+
+        private Node withChild(String label, Node child) {
+            Map<String, Node> newChildren = new HashMap<String, Node>(children);
+            if (child.isEmpty()) {
+                newChildren.remove(label); // prune nodes which no longer hold anything
+            } else {
+                newChildren.put(label, child);
+            }
+            return new Node(newChildren.isEmpty() ? Collections.<String, Node>emptyMap() : newChildren, entries);
+        }
+    }
+
+}
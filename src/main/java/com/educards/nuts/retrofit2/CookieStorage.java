@@ -0,0 +1,39 @@
+package com.educards.nuts.retrofit2;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Persistent storage backend of {@link PersistentHttpCookieStore}.
+ * <p>
+ * Storage keeps encoded cookies (as produced by {@link PersistentHttpCookieStore#encodeCookie(java.net.HttpCookie, long)})
+ * keyed by domain (string form of the URI the store keeps the cookie under) and cookie name.
+ * The store calls {@link #write(boolean, Map)} from a single thread at a time, loads may run
+ * concurrently with a write.
+ * </p>
+ *
+ * @see JournalCookieStorage
+ * @see SharedPreferencesCookieStorage
+ */
+public interface CookieStorage {
+
+    /**
+     * @return all domains with at least one stored cookie
+     */
+    Collection<String> loadDomains() throws IOException;
+
+    /**
+     * @return encoded cookies stored under the domain keyed by cookie name, empty if there are none
+     */
+    Map<String, String> loadCookies(String domain) throws IOException;
+
+    /**
+     * Persists a batch of changes.
+     *
+     * @param clear whether all stored cookies are removed before the changes are applied
+     * @param changes encoded cookies keyed by domain and cookie name, <code>null</code> value removes the cookie
+     */
+    void write(boolean clear, Map<String, Map<String, String>> changes) throws IOException;
+
+}
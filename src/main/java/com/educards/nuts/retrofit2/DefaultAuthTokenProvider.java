@@ -9,10 +9,9 @@ import com.educards.nuts.AuthTokenProvider;
 import com.educards.nuts.AuthTokenStorage;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import java.net.CookieStore;
 import java.net.HttpCookie;
 import java.net.URI;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class DefaultAuthTokenProvider implements AuthTokenProvider {
 
@@ -20,6 +19,11 @@ public class DefaultAuthTokenProvider implements AuthTokenProvider {
 
     private final String HTTP_COOKIE_SESSION_ID_KEY = "JSESSIONID";
 
+    /**
+     * Default time for which the auth token acquired from {@link AuthTokenStorage} is reused.
+     */
+    public static final long DEFAULT_AUTH_TOKEN_CACHE_TTL_MS = 30 * 1000;
+
     private AuthTokenStorage authTokenStorage;
 
     private AuthLauncher authLauncher;
@@ -33,6 +37,21 @@ public class DefaultAuthTokenProvider implements AuthTokenProvider {
      */
     private PersistentHttpCookieStore cookieStore;
 
+    private volatile long authTokenCacheTtlMs = DEFAULT_AUTH_TOKEN_CACHE_TTL_MS;
+
+    /**
+     * Auth token last acquired from {@link #authTokenStorage}, <code>null</code> if there is none or it was invalidated.
+     */
+    private volatile CachedAuthToken cachedAuthToken;
+
+    /**
+     * Session cookie last added to {@link #cookieStore} and the URI it was added under.
+     * Guarded by <code>this</code>.
+     */
+    private HttpCookie installedSessionCookie;
+
+    private URI installedSessionCookieUri;
+
     public DefaultAuthTokenProvider(AuthTokenStorage authTokenStorage, AuthLauncher authLauncher, AuthTimeService authTimeService, ObjectMapper objectMapper, PersistentHttpCookieStore cookieStore) {
         this.authTokenStorage = authTokenStorage;
         this.authLauncher = authLauncher;
@@ -41,32 +60,45 @@ public class DefaultAuthTokenProvider implements AuthTokenProvider {
         this.cookieStore = cookieStore;
     }
 
+    /**
+     * Sets the time for which the auth token acquired from {@link AuthTokenStorage} (an IPC call)
+     * is reused by subsequent calls. The time is measured by {@link AuthTimeService}.
+     * Zero disables the cache. Defaults to {@link #DEFAULT_AUTH_TOKEN_CACHE_TTL_MS}.
+     */
+    public void setAuthTokenCacheTtl(long ttl, TimeUnit unit) {
+        if (ttl < 0) {
+            throw new IllegalArgumentException("ttl < 0");
+        }
+        this.authTokenCacheTtlMs = unit.toMillis(ttl);
+    }
+
+    /**
+     * Drops the cached auth token, the next call acquires the token from {@link AuthTokenStorage}
+     * and updates the session cookie. Should be called whenever the server rejects the session.
+     */
+    public void invalidateAuthToken() {
+        cachedAuthToken = null;
+        synchronized (this) {
+            installedSessionCookie = null;
+            installedSessionCookieUri = null;
+        }
+    }
+
     @Override
     public AuthToken getInstalledAuthToken(Activity activity) {
 
         try {
 
-            AuthToken authToken = authTokenStorage.getAuthToken();
-            boolean authTokenValid = isAuthTokenValid(activity, authToken, objectMapper, authTimeService.now());
+            long now = authTimeService.now();
+            AuthToken authToken = getAuthToken(now);
+            boolean authTokenValid = isAuthTokenValid(activity, authToken, objectMapper, now);
 
             if (authTokenValid) {
 
                 // User is already authenticated and the token is (according to client and it's time provider) still valid (session didn't time out).
                 // Before each call we always pass the auth token down to transport layer in form of HTTP cookie.
                 // This way we ensure that the HTTP cookie is always up to date.
-
-                // TODO Instead of constructing the HttpCookie manually like it is done below
-                //      rather update the AuthService (AIDL) with new method
-                //      getHttpCookie() which would directly provide JSON serialized HttpCookie from auth provider.
-                HttpCookie sessionHttpCookie = new HttpCookie(HTTP_COOKIE_SESSION_ID_KEY, getAuthTokenSessionId(authToken));
-                sessionHttpCookie.setDomain(getAuthTokenUri(authToken).getPath());
-                sessionHttpCookie.setPath("/");
-                sessionHttpCookie.setVersion(1);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                    sessionHttpCookie.setHttpOnly(true);
-                }
-
-                cookieStore.add(getAuthTokenUri(authToken), sessionHttpCookie); // Update auth HTTP cookie
+                installSessionCookie(authToken);
 
                 return authToken;
             }
@@ -76,10 +108,12 @@ public class DefaultAuthTokenProvider implements AuthTokenProvider {
 //            AuthHelper.showGetAuthTokenFailedMessage(activity);
         }
 
+        invalidateAuthToken();
+
         // Keep local cookie store updated.
         // For whatever reason we failed to acquire auth token from auth provider we now
         // have to sync underlying cookie store with this state.
-        removeCookie(cookieStore, HTTP_COOKIE_SESSION_ID_KEY);
+        cookieStore.removeByName(HTTP_COOKIE_SESSION_ID_KEY);
 
         // Start authentication activity to provide new valid AuthToken
         authLauncher.startAuthentication(activity);
@@ -87,6 +121,50 @@ public class DefaultAuthTokenProvider implements AuthTokenProvider {
         return null;
     }
 
+    /**
+     * @return cached auth token if it's still fresh, otherwise the token from {@link #authTokenStorage} (IPC)
+     */
+    private AuthToken getAuthToken(long now) {
+        CachedAuthToken cached = cachedAuthToken;
+        if (cached != null && cached.isFresh(now, authTokenCacheTtlMs)) {
+            return cached.authToken;
+        }
+
+        AuthToken authToken = authTokenStorage.getAuthToken();
+        cachedAuthToken = authToken != null ? new CachedAuthToken(authToken, now) : null;
+        return authToken;
+    }
+
+    /**
+     * Adds the session cookie of the auth token to the cookie store unless the very same
+     * cookie is already there.
+     */
+    private synchronized void installSessionCookie(AuthToken authToken) {
+        URI authTokenUri = getAuthTokenUri(authToken);
+        String sessionId = getAuthTokenSessionId(authToken);
+        if (installedSessionCookie != null
+                && authTokenUri.equals(installedSessionCookieUri)
+                && sessionId.equals(installedSessionCookie.getValue())
+                && cookieStore.contains(authTokenUri, installedSessionCookie)) {
+            return; // nothing changed, skip the store write
+        }
+
+        // TODO Instead of constructing the HttpCookie manually like it is done below
+        //      rather update the AuthService (AIDL) with new method
+        //      getHttpCookie() which would directly provide JSON serialized HttpCookie from auth provider.
+        HttpCookie sessionHttpCookie = new HttpCookie(HTTP_COOKIE_SESSION_ID_KEY, sessionId);
+        sessionHttpCookie.setDomain(authTokenUri.getPath());
+        sessionHttpCookie.setPath("/");
+        sessionHttpCookie.setVersion(1);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            sessionHttpCookie.setHttpOnly(true);
+        }
+
+        cookieStore.add(authTokenUri, sessionHttpCookie); // Update auth HTTP cookie
+        installedSessionCookie = sessionHttpCookie;
+        installedSessionCookieUri = authTokenUri;
+    }
+
     public static boolean isAuthTokenValid(Activity activity, AuthToken authToken, ObjectMapper objectMapper, long now) {
         if (authToken != null) {
 //            try {
@@ -115,20 +193,22 @@ public class DefaultAuthTokenProvider implements AuthTokenProvider {
         return authToken.getAuthSessionId();
     }
 
-    private void removeCookie(CookieStore cookieStore, String cookieName) {
-        List<URI> uris = cookieStore.getURIs();
-        if (uris != null) {
-            for (URI uri : uris) {
-                List<HttpCookie> httpCookies = cookieStore.get(uri);
-                if (httpCookies != null) {
-                    for (HttpCookie cookie : httpCookies) {
-                        if (cookieName.equals(cookie.getName())) {
-                            cookieStore.remove(uri, cookie);
-                            break;
-                        }
-                    }
-                }
-            }
+    private static class CachedAuthToken {
+
+        final AuthToken authToken;
+
+        /**
+         * {@link AuthTimeService} time the token was acquired at.
+         */
+        final long acquiredAt;
+
+        CachedAuthToken(AuthToken authToken, long acquiredAt) {
+            this.authToken = authToken;
+            this.acquiredAt = acquiredAt;
+        }
+
+        boolean isFresh(long now, long ttlMs) {
+            return now >= acquiredAt && now - acquiredAt < ttlMs; // time going backwards invalidates the cache
         }
     }
 
@@ -1,19 +1,23 @@
 package com.educards.nuts.retrofit2;
 
 import android.content.Context;
+import android.util.Log;
 import com.educards.nuts.AuthTokenProvider;
 import com.educards.nuts.BuildConfig;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import okhttp3.*;
 import okhttp3.logging.HttpLoggingInterceptor;
 import retrofit2.Retrofit;
-import retrofit2.converter.jackson.JacksonConverterFactory;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.CookiePolicy;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
 public class DefaultRetrofitBuilder {
@@ -29,28 +33,71 @@ public class DefaultRetrofitBuilder {
 
     private PersistentHttpCookieStore cookieStore;
 
+    private Cache cache;
+
+    private HttpLogger httpLogger;
+
+    private ConnectivityMonitor connectivityMonitor;
+
+    private ConnectivityMonitor.Listener connectivityListener;
+
     public DefaultRetrofitBuilder(Context context, String serverApiBaseUrl, ObjectMapper objectMapper, AuthTokenProvider authTokenProvider) {
+        this(context, serverApiBaseUrl, objectMapper, authTokenProvider, new Config());
+    }
 
-        cookieStore = new PersistentHttpCookieStore(context);
-        CookieManager cookieManager = new CookieManager(cookieStore, CookiePolicy.ACCEPT_ALL);
-        CookieHandler cookieHandler = cookieManager; //new CookieManager(); // in memory
+    public DefaultRetrofitBuilder(Context context, String serverApiBaseUrl, ObjectMapper objectMapper, AuthTokenProvider authTokenProvider, Config config) {
 
-        OkHttpClient.Builder okHttpClientBuilder = new OkHttpClient.Builder()
+        httpLogger = config.httpLogger;
+        cookieStore = new PersistentHttpCookieStore(context, config.cookieStoreConfig);
+        CookieJar cookieJar;
+        if (config.nativeCookieJar) {
+            cookieJar = new PersistentCookieJar(cookieStore);
+        } else {
+            CookieManager cookieManager = new CookieManager(cookieStore, CookiePolicy.ACCEPT_ALL);
+            CookieHandler cookieHandler = cookieManager; //new CookieManager(); // in memory
+            cookieJar = new JavaNetCookieJar(cookieHandler);
+        }
 
+        ConnectivityMonitor connectivityMonitor = config.connectivityMonitor;
+        if (connectivityMonitor == null && AndroidConnectivityMonitor.isPermitted(context)) {
+            connectivityMonitor = new AndroidConnectivityMonitor(context);
+        }
+        if (connectivityMonitor == null && (config.maxIdleConnections > 0
+                || (config.httpCacheEnabled && config.httpCachePolicy.isOfflineFirst()))) {
+            Log.w(TAG, "Connectivity is unknown, ACCESS_NETWORK_STATE permission is not granted. "
+                    + "Offline-first cache and connection eviction on network change are inactive.");
+        }
+
+        final ConnectionPool connectionPool;
+        if (config.maxIdleConnections > 0) {
+            // idle connections may be dead once the network changes, they are dropped on any change
+            connectionPool = new ConnectionPool(config.maxIdleConnections, config.keepAliveDurationMs, TimeUnit.MILLISECONDS);
+        } else {
             // workaround to problem: (Requests fail after losing and regaining internet connectivity #756) https://github.com/parse-community/Parse-SDK-Android/issues/756
-            .connectionPool(new ConnectionPool(0, 1, TimeUnit.MILLISECONDS))
+            connectionPool = new ConnectionPool(0, 1, TimeUnit.MILLISECONDS);
+        }
+        if (config.maxIdleConnections > 0 && connectivityMonitor != null) {
+            connectivityListener = new ConnectivityMonitor.Listener() {
+                @Override
+                public void onConnectivityChanged() {
+                    connectionPool.evictAll();
+                }
+            };
+            connectivityMonitor.addListener(connectivityListener);
+            this.connectivityMonitor = connectivityMonitor;
+        }
+
+        OkHttpClient.Builder okHttpClientBuilder = new OkHttpClient.Builder()
 
-            .protocols(Collections.singletonList(Protocol.HTTP_1_1))
+            .connectionPool(connectionPool)
 
-            .cookieJar(new JavaNetCookieJar(cookieHandler))
+            .protocols(config.protocols)
 
-            // https://stackoverflow.com/questions/52916443/retrofit-okhttp-offline-caching-not-working
-            //.addInterceptor(new OfflineInterceptor(this.app))
+            .pingInterval(config.pingIntervalMs, TimeUnit.MILLISECONDS)
 
-            //.addNetworkInterceptor(new OnlineInterceptor())
-            .addNetworkInterceptor(new HttpLoggingInterceptor().setLevel(HttpLoggingInterceptor.Level.BODY));
+            .cookieJar(cookieJar)
 
-            //.cache(new Cache(new File(this.app.getCacheDir(), "httpCache"), CACHE_SIZE))
+            .addNetworkInterceptor(httpLogger);
 
             //.connectTimeout(10, TimeUnit.SECONDS)
             //.writeTimeout(10, TimeUnit.SECONDS)
@@ -69,11 +116,71 @@ public class DefaultRetrofitBuilder {
             });
         }
 
+        // adaptive limit (and priority slots) replace the static one of the dispatcher unless set explicitly
+        int maxRequestsPerHost = config.maxRequestsPerHost;
+        if (maxRequestsPerHost <= 0) {
+            if (config.concurrencyLimiter != null) {
+                maxRequestsPerHost = config.concurrencyLimiter.getMaxLimit();
+            }
+            if (config.priorityDispatcher != null) {
+                maxRequestsPerHost = Math.max(maxRequestsPerHost, config.priorityDispatcher.getMaxCalls());
+            }
+        }
+        if (maxRequestsPerHost > 0) {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+            dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), maxRequestsPerHost));
+            okHttpClientBuilder.dispatcher(dispatcher);
+        }
+
+        HttpCacheInterceptor httpCacheInterceptor = null;
+        if (config.httpCacheEnabled) {
+            File httpCacheDirectory = config.httpCacheDirectory != null
+                    ? config.httpCacheDirectory : new File(context.getCacheDir(), "httpCache");
+            cache = new Cache(httpCacheDirectory, config.httpCacheSize);
+            httpCacheInterceptor = new HttpCacheInterceptor(config.httpCachePolicy, connectivityMonitor);
+            okHttpClientBuilder
+                    .cache(cache)
+                    .addInterceptor(httpCacheInterceptor);
+            if (config.httpCachePolicy.hasForcedCaches()) {
+                okHttpClientBuilder.addNetworkInterceptor(httpCacheInterceptor.networkInterceptor());
+            }
+        }
+
+        if (config.smileObjectMapper != null) {
+            okHttpClientBuilder.addInterceptor(new SmileNegotiationInterceptor());
+        }
+
+        // after Smile negotiation which may re-encode the body
+        okHttpClientBuilder.addInterceptor(new GzipRequestInterceptor(config.gzipRequestThreshold, config.gzipAllRequests));
+
+        if (config.concurrencyLimiter != null || config.circuitBreaker != null) {
+            // last one so each attempt (e.g. a retry) is reported
+            okHttpClientBuilder.addInterceptor(new HostHealthInterceptor(config.concurrencyLimiter, config.circuitBreaker));
+        }
+
+        if (config.callMetrics != null) {
+            okHttpClientBuilder.eventListenerFactory(config.callMetrics.eventListenerFactory());
+        }
+
+        OkHttpClient okHttpClient = okHttpClientBuilder.build();
+        if (httpCacheInterceptor != null) {
+            httpCacheInterceptor.setRevalidationCallFactory(okHttpClient);
+        }
+
         final Retrofit.Builder builder = new Retrofit.Builder()
                 .baseUrl(serverApiBaseUrl)
-                .client(okHttpClientBuilder.build())
-                .addCallAdapterFactory(TemplateCallAdapterFactory.create(authTokenProvider))
-                .addConverterFactory(JacksonConverterFactory.create(objectMapper));
+                .client(okHttpClient)
+                .addCallAdapterFactory(TemplateCallAdapterFactory.create(authTokenProvider, new TemplateCallAdapterFactory.Config()
+                        .setAuthExecutor(config.authExecutor != null ? config.authExecutor : AuthTokenAcquisition.DEFAULT_EXECUTOR)
+                        .setCoalesceInFlightCalls(config.coalesceInFlightCalls)
+                        .setCallMetrics(config.callMetrics)
+                        .setRetryPolicy(config.retryPolicy)
+                        .setCircuitBreaker(config.circuitBreaker)
+                        .setConcurrencyLimiter(config.concurrencyLimiter)
+                        .setPriorityDispatcher(config.priorityDispatcher)))
+                .addConverterFactory(JsonStreamConverterFactory.create(objectMapper, config.smileObjectMapper))
+                .addConverterFactory(CachingJacksonConverterFactory.create(objectMapper, config.smileObjectMapper));
 
         this.retrofit = builder.build();
     }
@@ -82,4 +189,334 @@ public class DefaultRetrofitBuilder {
         return retrofit;
     }
 
+    /**
+     * Stops listening to connectivity changes (the network callback of {@link AndroidConnectivityMonitor}
+     * is unregistered with its last listener). Call it once the {@link Retrofit} is no longer used
+     * if builders are created repeatedly. Calls may still be made, idle connections are just not evicted
+     * on network changes anymore.
+     */
+    public synchronized void close() {
+        if (connectivityListener != null) {
+            connectivityMonitor.removeListener(connectivityListener);
+            connectivityListener = null;
+        }
+    }
+
+    /**
+     * @return logger of HTTP exchanges, its level, sampling etc. may be changed at runtime
+     */
+    public HttpLogger getHttpLogger() {
+        return httpLogger;
+    }
+
+    /**
+     * HTTP response cache, its {@link Cache#hitCount()}, {@link Cache#networkCount()} and
+     * {@link Cache#requestCount()} give the hit rate.
+     *
+     * @return <code>null</code> unless enabled by {@link Config#setHttpCacheEnabled(boolean)}
+     */
+    public Cache getCache() {
+        return cache;
+    }
+
+    public static class Config {
+
+        private PersistentHttpCookieStore.Config cookieStoreConfig = new PersistentHttpCookieStore.Config();
+
+        private boolean nativeCookieJar;
+
+        private Executor authExecutor;
+
+        private boolean coalesceInFlightCalls;
+
+        private boolean httpCacheEnabled;
+
+        private File httpCacheDirectory;
+
+        private long httpCacheSize = CACHE_SIZE;
+
+        private HttpCachePolicy httpCachePolicy = new HttpCachePolicy();
+
+        private ConnectivityMonitor connectivityMonitor;
+
+        private int maxIdleConnections;
+
+        private long keepAliveDurationMs;
+
+        private List<Protocol> protocols = Collections.singletonList(Protocol.HTTP_1_1);
+
+        private int maxRequestsPerHost;
+
+        private long pingIntervalMs;
+
+        private CallMetrics callMetrics;
+
+        private ObjectMapper smileObjectMapper;
+
+        private RetryPolicy retryPolicy;
+
+        private CircuitBreaker circuitBreaker;
+
+        private ConcurrencyLimiter concurrencyLimiter;
+
+        private PriorityDispatcher priorityDispatcher;
+
+        private long gzipRequestThreshold = 1024;
+
+        private boolean gzipAllRequests;
+
+        private HttpLogger httpLogger = new HttpLogger().setLevel(BuildConfig.DEBUG
+                ? HttpLoggingInterceptor.Level.BODY : HttpLoggingInterceptor.Level.NONE);
+
+        /**
+         * Configuration of the {@link PersistentHttpCookieStore} holding the cookies.
+         */
+        public Config setCookieStoreConfig(PersistentHttpCookieStore.Config cookieStoreConfig) {
+            if (cookieStoreConfig == null) {
+                throw new NullPointerException("cookieStoreConfig == null");
+            }
+            this.cookieStoreConfig = cookieStoreConfig;
+            return this;
+        }
+
+        /**
+         * Uses {@link PersistentCookieJar} which hands cookies to OkHttp directly instead of
+         * bridging the cookie store through {@link CookieManager} and {@link JavaNetCookieJar}.
+         * Disabled by default.
+         */
+        public Config setNativeCookieJar(boolean nativeCookieJar) {
+            this.nativeCookieJar = nativeCookieJar;
+            return this;
+        }
+
+        /**
+         * Executor acquiring auth token for secured calls enqueued from main thread.
+         * Defaults to a small pool dedicated to auth.
+         */
+        public Config setAuthExecutor(Executor authExecutor) {
+            this.authExecutor = authExecutor;
+            return this;
+        }
+
+        /**
+         * Identical GET (and HEAD) calls in flight at the same time share single network exchange
+         * and its decoded response. Disabled by default.
+         */
+        public Config setCoalesceInFlightCalls(boolean coalesceInFlightCalls) {
+            this.coalesceInFlightCalls = coalesceInFlightCalls;
+            return this;
+        }
+
+        /**
+         * Enables disk cache of HTTP responses. Disabled by default.
+         *
+         * @see #setHttpCachePolicy(HttpCachePolicy)
+         */
+        public Config setHttpCacheEnabled(boolean httpCacheEnabled) {
+            this.httpCacheEnabled = httpCacheEnabled;
+            return this;
+        }
+
+        /**
+         * Directory of the HTTP cache, defaults to <code>httpCache</code> in application cache directory.
+         * The directory must not be shared with other cache.
+         */
+        public Config setHttpCacheDirectory(File httpCacheDirectory) {
+            this.httpCacheDirectory = httpCacheDirectory;
+            return this;
+        }
+
+        /**
+         * Maximum size of the HTTP cache in bytes, defaults to 10MB.
+         */
+        public Config setHttpCacheSize(long httpCacheSize) {
+            if (httpCacheSize <= 0) {
+                throw new IllegalArgumentException("httpCacheSize <= 0");
+            }
+            this.httpCacheSize = httpCacheSize;
+            return this;
+        }
+
+        /**
+         * Forced caching, stale responses and offline behaviour of the HTTP cache.
+         * Defaults to standard HTTP caching.
+         */
+        public Config setHttpCachePolicy(HttpCachePolicy httpCachePolicy) {
+            if (httpCachePolicy == null) {
+                throw new NullPointerException("httpCachePolicy == null");
+            }
+            this.httpCachePolicy = httpCachePolicy;
+            return this;
+        }
+
+        /**
+         * Keeps up to given number of idle connections for reuse (keep-alive) for given time.
+         * All idle connections are evicted whenever the {@link ConnectivityMonitor} reports
+         * a connectivity change so no request goes over a connection of the previous network.
+         * The eviction requires <code>ACCESS_NETWORK_STATE</code> permission declared by the app
+         * (or own monitor, see {@link #setConnectivityMonitor(ConnectivityMonitor)}), without it
+         * connections are kept until the keep-alive expires.
+         * By default idle connections are closed immediately.
+         */
+        public Config setConnectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit unit) {
+            if (maxIdleConnections < 0) {
+                throw new IllegalArgumentException("maxIdleConnections < 0");
+            }
+            if (keepAliveDuration <= 0) {
+                throw new IllegalArgumentException("keepAliveDuration <= 0");
+            }
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveDurationMs = unit.toMillis(keepAliveDuration);
+            return this;
+        }
+
+        /**
+         * Connectivity state source driving offline-first HTTP cache and connection pool eviction,
+         * defaults to {@link AndroidConnectivityMonitor} if the app has been granted
+         * <code>ACCESS_NETWORK_STATE</code> permission (the library doesn't declare it). Without
+         * the permission and a monitor set here the connectivity is unknown and these features are inactive.
+         */
+        public Config setConnectivityMonitor(ConnectivityMonitor connectivityMonitor) {
+            this.connectivityMonitor = connectivityMonitor;
+            return this;
+        }
+
+        /**
+         * Protocols negotiated with the server, HTTP/1.1 only by default. Use
+         * <code>[HTTP_2, HTTP_1_1]</code> to multiplex calls over single connection to servers
+         * supporting HTTP/2 (negotiated by ALPN, others fall back to HTTP/1.1) or
+         * <code>[H2_PRIOR_KNOWLEDGE]</code> for cleartext HTTP/2 backends (e.g. test or internal ones).
+         * HTTP/2 needs idle connections to be kept ({@link #setConnectionPool(int, long, TimeUnit)}),
+         * the default pool closes the shared connection as soon as it gets idle, even while a call
+         * is still closing its stream.
+         */
+        public Config setProtocols(List<Protocol> protocols) {
+            if (protocols == null) {
+                throw new NullPointerException("protocols == null");
+            }
+            this.protocols = new ArrayList<Protocol>(protocols);
+            return this;
+        }
+
+        /**
+         * Maximum number of calls executed concurrently against single host (streams of HTTP/2 connection),
+         * further calls wait in the dispatcher queue. Defaults to OkHttp default (5).
+         */
+        public Config setMaxRequestsPerHost(int maxRequestsPerHost) {
+            if (maxRequestsPerHost < 1) {
+                throw new IllegalArgumentException("maxRequestsPerHost < 1");
+            }
+            this.maxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Interval of HTTP/2 pings detecting dead connections (connection not responding is closed
+         * and its calls fail). Zero (default) disables pings.
+         */
+        public Config setPingInterval(long interval, TimeUnit unit) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("interval < 0");
+            }
+            this.pingIntervalMs = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Logger of HTTP exchanges. Defaults to {@link HttpLogger} logging capped bodies
+         * in debug builds and nothing in release builds.
+         */
+        public Config setHttpLogger(HttpLogger httpLogger) {
+            if (httpLogger == null) {
+                throw new NullPointerException("httpLogger == null");
+            }
+            this.httpLogger = httpLogger;
+            return this;
+        }
+
+        /**
+         * Measures latency of calls per endpoint and phase (network phases, auth token acquisition,
+         * enqueue to callback). Calls are not measured by default.
+         */
+        public Config setCallMetrics(CallMetrics callMetrics) {
+            this.callMetrics = callMetrics;
+            return this;
+        }
+
+        /**
+         * Enables Smile binary payloads. Responses decoded by Jackson are requested in Smile
+         * (falling back to JSON) and request bodies are sent in Smile to endpoints which responded
+         * with Smile. Disabled by default. The app adds
+         * <code>com.fasterxml.jackson.dataformat:jackson-dataformat-smile</code> dependency.
+         *
+         * @param smileObjectMapper <code>new ObjectMapper(new SmileFactory())</code> configured
+         *                          (modules etc.) like the JSON object mapper
+         */
+        public Config setSmileObjectMapper(ObjectMapper smileObjectMapper) {
+            this.smileObjectMapper = smileObjectMapper;
+            return this;
+        }
+
+        /**
+         * Minimal size of request body compressed by gzip, defaults to 1KiB.
+         *
+         * @see GzipRequest
+         * @see #setGzipAllRequests(boolean)
+         */
+        public Config setGzipRequestThreshold(long gzipRequestThreshold) {
+            if (gzipRequestThreshold < 0) {
+                throw new IllegalArgumentException("gzipRequestThreshold < 0");
+            }
+            this.gzipRequestThreshold = gzipRequestThreshold;
+            return this;
+        }
+
+        /**
+         * Compresses request bodies (above the threshold) of all calls, not just of those marked
+         * by {@link GzipRequest}. The server must accept gzip encoded request bodies. Disabled by default.
+         */
+        public Config setGzipAllRequests(boolean gzipAllRequests) {
+            this.gzipAllRequests = gzipAllRequests;
+            return this;
+        }
+
+        /**
+         * Retries calls of idempotent HTTP methods and calls marked by {@link Retry} on transient
+         * failures, see {@link TemplateCallAdapterFactory.Config#setRetryPolicy(RetryPolicy)}.
+         */
+        public Config setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Fails calls to a host fast while the host is failing, see {@link CircuitBreaker}.
+         * Disabled by default.
+         */
+        public Config setCircuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * Limits calls in flight per host adaptively, see {@link ConcurrencyLimiter}. Unless
+         * {@link #setMaxRequestsPerHost(int)} is set the static limit of OkHttp dispatcher is raised
+         * to the maximum of the limiter. Disabled by default.
+         */
+        public Config setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+            this.concurrencyLimiter = concurrencyLimiter;
+            return this;
+        }
+
+        /**
+         * Starts calls in order of their {@link CallPriority} instead of FIFO order, see
+         * {@link PriorityDispatcher}. Unless {@link #setMaxRequestsPerHost(int)} is set the static
+         * limit of OkHttp dispatcher is raised so that calls don't queue there again. Disabled by default.
+         */
+        public Config setPriorityDispatcher(PriorityDispatcher priorityDispatcher) {
+            this.priorityDispatcher = priorityDispatcher;
+            return this;
+        }
+    }
+
 }
@@ -0,0 +1,26 @@
+package com.educards.nuts.retrofit2;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Annotation type to mark Retrofit call whose request body is sent compressed
+ * (<code>Content-Encoding: gzip</code>) if it's larger than the threshold configured by
+ * {@link DefaultRetrofitBuilder.Config#setGzipRequestThreshold(long)}. The server must
+ * accept gzip encoded request bodies.
+ * <p>
+ * Example usage:
+ * <blockquote><pre>
+ * &#64;Secured
+ * &#64;GzipRequest
+ * &#64;POST("path/to/sync")
+ * TemplateCall&lt;SyncResult&gt; sync(@Body SyncData data);
+ * </pre></blockquote></p>
+ */
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface GzipRequest {
+}
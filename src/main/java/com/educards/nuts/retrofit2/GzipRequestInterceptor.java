@@ -0,0 +1,101 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.*;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import retrofit2.Invocation;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Compresses request bodies of calls marked by {@link GzipRequest} (or of all calls) which are
+ * larger than the threshold. The body is compressed as it's written to the connection so
+ * no compressed copy is buffered, the request is sent with unknown length (chunked).
+ */
+class GzipRequestInterceptor implements Interceptor {
+
+    private final long threshold;
+
+    private final boolean allRequests;
+
+    private final ConcurrentMap<Method, Boolean> annotatedMethods = new ConcurrentHashMap<Method, Boolean>();
+
+    /**
+     * @param threshold minimal size of compressed body in bytes, bodies of unknown size are always compressed
+     * @param allRequests whether to compress bodies of all calls or just those marked by {@link GzipRequest}
+     */
+    GzipRequestInterceptor(long threshold, boolean allRequests) {
+        this.threshold = threshold;
+        this.allRequests = allRequests;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        RequestBody body = request.body();
+        if (body == null || request.header("Content-Encoding") != null || !isCompressed(request)) {
+            return chain.proceed(request);
+        }
+        long contentLength = body.contentLength();
+        if (contentLength >= 0 && contentLength < threshold) {
+            return chain.proceed(request);
+        }
+        return chain.proceed(request.newBuilder()
+                .header("Content-Encoding", "gzip")
+                .method(request.method(), new GzipRequestBody(body))
+                .build());
+    }
+
+    private boolean isCompressed(Request request) {
+        if (allRequests) {
+            return true;
+        }
+        Invocation invocation = request.tag(Invocation.class);
+        if (invocation == null) {
+            return false;
+        }
+        Method method = invocation.method();
+        Boolean annotated = annotatedMethods.get(method);
+        if (annotated == null) {
+            annotated = method.isAnnotationPresent(GzipRequest.class);
+            annotatedMethods.putIfAbsent(method, annotated);
+        }
+        return annotated;
+    }
+
+    private static class GzipRequestBody extends RequestBody {
+
+        private final RequestBody body;
+
+        GzipRequestBody(RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return -1; // not known until compressed
+        }
+
+        @Override
+        public boolean isOneShot() {
+            return body.isOneShot();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+            body.writeTo(gzipSink);
+            gzipSink.close();
+        }
+    }
+
+}
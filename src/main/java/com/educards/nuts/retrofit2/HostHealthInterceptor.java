@@ -0,0 +1,60 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+
+/**
+ * Reports outcome and round trip time of each network attempt to {@link ConcurrencyLimiter}
+ * and {@link CircuitBreaker} of its host. Responses served from the cache are not reported.
+ */
+class HostHealthInterceptor implements Interceptor {
+
+    /**
+     * <code>null</code> if concurrency is not limited.
+     */
+    private final ConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * <code>null</code> if there is no circuit breaker.
+     */
+    private final CircuitBreaker circuitBreaker;
+
+    HostHealthInterceptor(ConcurrencyLimiter concurrencyLimiter, CircuitBreaker circuitBreaker) {
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String host = request.url().host();
+        long startNs = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            if (!chain.call().isCanceled()) {
+                report(host, 0, true, true);
+            }
+            throw e;
+        }
+        if (response.networkResponse() != null) {
+            int code = response.code();
+            report(host, System.nanoTime() - startNs, code == 429 || code == 503, code == 429 || code >= 500);
+        }
+        return response;
+    }
+
+    private void report(String host, long rttNs, boolean dropped, boolean failure) {
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.onSample(host, rttNs, dropped);
+        }
+        if (circuitBreaker != null) {
+            circuitBreaker.onResult(host, failure);
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.educards.nuts.retrofit2;
+
+import android.util.Log;
+import okhttp3.*;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Application interceptor applying {@link HttpCachePolicy} on top of OkHttp {@link Cache}.
+ * <p>
+ * Offline-first, stale-while-revalidate and stale-if-error are implemented by asking the cache
+ * first (<code>only-if-cached</code> with appropriate <code>max-stale</code>) and falling back
+ * to the network or vice versa. Forced caching of responses without caching headers is done
+ * by {@link #networkInterceptor()} which must be installed as network interceptor so the cache
+ * stores the rewritten response.
+ * </p>
+ */
+class HttpCacheInterceptor implements Interceptor {
+
+    private static final String TAG = "HttpCacheInterceptor";
+
+    /**
+     * Cache control overrides of individual calls keyed by their (identity compared) request.
+     * Guarded by itself.
+     */
+    private static final Map<Request, CacheControl> cacheControlOverrides = new WeakHashMap<Request, CacheControl>();
+
+    private final HttpCachePolicy policy;
+
+    /**
+     * <code>null</code> if the connectivity is unknown (offline-first mode is inactive then).
+     */
+    private final ConnectivityMonitor connectivityMonitor;
+
+    /**
+     * URLs being revalidated in background. Guarded by itself.
+     */
+    private final Set<HttpUrl> revalidating = new HashSet<HttpUrl>();
+
+    /**
+     * Client used for background revalidation, set once the client is built.
+     */
+    private volatile Call.Factory revalidationCallFactory;
+
+    HttpCacheInterceptor(HttpCachePolicy policy, ConnectivityMonitor connectivityMonitor) {
+        this.policy = policy;
+        this.connectivityMonitor = connectivityMonitor;
+    }
+
+    /**
+     * Makes the call with given request use given cache control regardless of the policy.
+     */
+    static void overrideCacheControl(Request request, CacheControl cacheControl) {
+        synchronized (cacheControlOverrides) {
+            if (cacheControl != null) {
+                cacheControlOverrides.put(request, cacheControl);
+            } else {
+                cacheControlOverrides.remove(request);
+            }
+        }
+    }
+
+    static CacheControl getCacheControlOverride(Request request) {
+        synchronized (cacheControlOverrides) {
+            return cacheControlOverrides.get(request);
+        }
+    }
+
+    /**
+     * @param callFactory client stale responses are revalidated by (the client this interceptor is installed to)
+     */
+    void setRevalidationCallFactory(Call.Factory callFactory) {
+        this.revalidationCallFactory = callFactory;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+
+        CacheControl override = getCacheControlOverride(request);
+        if (override != null) {
+            return chain.proceed(request.newBuilder().cacheControl(override).build());
+        }
+        if (!"GET".equals(request.method()) || request.header("Cache-Control") != null) {
+            return chain.proceed(request); // the caller knows better
+        }
+
+        if (policy.isOfflineFirst() && connectivityMonitor != null && !connectivityMonitor.isConnected()) {
+            return chain.proceed(request.newBuilder()
+                    .cacheControl(cachedOnly(policy.getOfflineMaxStaleSeconds()))
+                    .build());
+        }
+
+        if (policy.getStaleWhileRevalidateSeconds() > 0) {
+            Response cached = fromCache(chain, request, policy.getStaleWhileRevalidateSeconds());
+            if (cached != null) {
+                if (isStale(cached)) {
+                    revalidate(request);
+                }
+                return cached;
+            }
+        }
+
+        if (policy.getStaleIfErrorSeconds() == 0) {
+            return chain.proceed(request);
+        }
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            Response cached = fromCache(chain, request, policy.getStaleIfErrorSeconds());
+            if (cached == null) {
+                throw e;
+            }
+            Log.i(TAG, String.format("Serving cached response, network failed [url=%s]", request.url()), e);
+            return cached;
+        }
+        if (response.code() >= 500) {
+            // the cache can't be asked while the response is open, error body is buffered in case there's no cached one
+            ResponseBody errorBody = response.body();
+            if (errorBody != null) {
+                response = response.newBuilder()
+                        .body(ResponseBody.create(errorBody.bytes(), errorBody.contentType()))
+                        .build();
+            }
+            Response cached = fromCache(chain, request, policy.getStaleIfErrorSeconds());
+            if (cached != null) {
+                Log.i(TAG, String.format("Serving cached response, server failed [url=%s, code=%d]", request.url(), response.code()));
+                return cached;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @return cached response stale for at most given time, <code>null</code> if there is none
+     */
+    private static Response fromCache(Chain chain, Request request, long maxStaleSeconds) throws IOException {
+        Response cached = chain.proceed(request.newBuilder().cacheControl(cachedOnly(maxStaleSeconds)).build());
+        if (cached.code() == 504 && cached.networkResponse() == null && cached.cacheResponse() == null) {
+            cached.close(); // unsatisfiable
+            return null;
+        }
+        return cached;
+    }
+
+    private static CacheControl cachedOnly(long maxStaleSeconds) {
+        return new CacheControl.Builder()
+                .onlyIfCached()
+                .maxStale((int) Math.min(maxStaleSeconds, Integer.MAX_VALUE), TimeUnit.SECONDS)
+                .build();
+    }
+
+    private static boolean isStale(Response cached) {
+        for (String warning : cached.headers("Warning")) {
+            if (warning.startsWith("110")) { // Response is stale
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void revalidate(Request request) {
+        Call.Factory callFactory = revalidationCallFactory;
+        if (callFactory == null) {
+            return;
+        }
+        final HttpUrl url = request.url();
+        synchronized (revalidating) {
+            if (!revalidating.add(url)) {
+                return; // already in progress
+            }
+        }
+        callFactory.newCall(request.newBuilder().cacheControl(CacheControl.FORCE_NETWORK).build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.d(TAG, String.format("Revalidation failed [url=%s]", url), e);
+                revalidated(url);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try {
+                    response.body().source().readAll(Okio.blackhole()); // the cache is written as the body is read
+                } catch (IOException e) {
+                    Log.d(TAG, String.format("Revalidation failed [url=%s]", url), e);
+                } finally {
+                    response.close();
+                    revalidated(url);
+                }
+            }
+        });
+    }
+
+    private void revalidated(HttpUrl url) {
+        synchronized (revalidating) {
+            revalidating.remove(url);
+        }
+    }
+
+    /**
+     * @return network interceptor making responses of endpoints with forced caching cacheable
+     */
+    Interceptor networkInterceptor() {
+        return new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                Request request = chain.request();
+                Response response = chain.proceed(request);
+                if (!"GET".equals(request.method()) || !response.isSuccessful()
+                        || response.header("Cache-Control") != null
+                        || response.header("Expires") != null
+                        || response.header("Pragma") != null) {
+                    return response;
+                }
+                long maxAgeSeconds = policy.getForcedMaxAgeSeconds(request.url().encodedPath());
+                if (maxAgeSeconds < 0) {
+                    return response;
+                }
+                return response.newBuilder()
+                        .header("Cache-Control", "public, max-age=" + maxAgeSeconds)
+                        .build();
+            }
+        };
+    }
+
+}
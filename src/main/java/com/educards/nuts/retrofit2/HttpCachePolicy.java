@@ -0,0 +1,133 @@
+package com.educards.nuts.retrofit2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the HTTP response cache enabled by {@link DefaultRetrofitBuilder.Config#setHttpCacheEnabled(boolean)}
+ * is used beyond standard HTTP caching. Applies to GET calls which don't specify
+ * <code>Cache-Control</code> on their own (see {@link TemplateCall#setCacheControl(okhttp3.CacheControl)}).
+ */
+public class HttpCachePolicy {
+
+    private final List<ForcedCache> forcedCaches = new ArrayList<ForcedCache>();
+
+    private long staleWhileRevalidateSeconds;
+
+    private long staleIfErrorSeconds;
+
+    private boolean offlineFirst;
+
+    private long offlineMaxStaleSeconds = TimeUnit.DAYS.toSeconds(1);
+
+    /**
+     * Caches successful responses of endpoints whose path starts with given prefix for given time
+     * if the server doesn't send any caching headers (<code>Cache-Control</code>, <code>Expires</code>
+     * or <code>Pragma</code>). Responses with caching headers are cached as the server says.
+     *
+     * @param pathPrefix encoded path prefix, e.g. <code>/api/catalog/</code>
+     */
+    public HttpCachePolicy forceCache(String pathPrefix, long maxAge, TimeUnit unit) {
+        if (pathPrefix == null) {
+            throw new NullPointerException("pathPrefix == null");
+        }
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("maxAge <= 0");
+        }
+        forcedCaches.add(new ForcedCache(pathPrefix, unit.toSeconds(maxAge)));
+        return this;
+    }
+
+    /**
+     * Serves a cached response which has been stale for at most given time immediately and revalidates it
+     * in background. Zero (default) always waits for the network once the cached response is stale.
+     */
+    public HttpCachePolicy setStaleWhileRevalidate(long maxStale, TimeUnit unit) {
+        if (maxStale < 0) {
+            throw new IllegalArgumentException("maxStale < 0");
+        }
+        this.staleWhileRevalidateSeconds = unit.toSeconds(maxStale);
+        return this;
+    }
+
+    /**
+     * Serves a cached response which has been stale for at most given time if the network exchange
+     * fails or the server responds with 5xx. Zero (default) reports such failures.
+     */
+    public HttpCachePolicy setStaleIfError(long maxStale, TimeUnit unit) {
+        if (maxStale < 0) {
+            throw new IllegalArgumentException("maxStale < 0");
+        }
+        this.staleIfErrorSeconds = unit.toSeconds(maxStale);
+        return this;
+    }
+
+    /**
+     * While the {@link ConnectivityMonitor} reports no connectivity calls are served from the cache only
+     * (even if the response is stale, see {@link #setOfflineMaxStale(long, TimeUnit)}) and fail with
+     * <code>504 Unsatisfiable Request</code> if there is no cached response. Disabled by default.
+     * Requires <code>ACCESS_NETWORK_STATE</code> permission declared by the app (or own monitor,
+     * see {@link DefaultRetrofitBuilder.Config#setConnectivityMonitor(ConnectivityMonitor)}).
+     */
+    public HttpCachePolicy setOfflineFirst(boolean offlineFirst) {
+        this.offlineFirst = offlineFirst;
+        return this;
+    }
+
+    /**
+     * Maximum staleness of the cached response served while offline, defaults to 1 day.
+     */
+    public HttpCachePolicy setOfflineMaxStale(long maxStale, TimeUnit unit) {
+        if (maxStale < 0) {
+            throw new IllegalArgumentException("maxStale < 0");
+        }
+        this.offlineMaxStaleSeconds = Math.min(unit.toSeconds(maxStale), Integer.MAX_VALUE);
+        return this;
+    }
+
+    /**
+     * @return forced max-age in seconds, <code>-1</code> if caching of the path is not forced
+     */
+    long getForcedMaxAgeSeconds(String encodedPath) {
+        for (ForcedCache forcedCache : forcedCaches) {
+            if (encodedPath.startsWith(forcedCache.pathPrefix)) {
+                return forcedCache.maxAgeSeconds;
+            }
+        }
+        return -1;
+    }
+
+    boolean hasForcedCaches() {
+        return !forcedCaches.isEmpty();
+    }
+
+    long getStaleWhileRevalidateSeconds() {
+        return staleWhileRevalidateSeconds;
+    }
+
+    long getStaleIfErrorSeconds() {
+        return staleIfErrorSeconds;
+    }
+
+    boolean isOfflineFirst() {
+        return offlineFirst;
+    }
+
+    long getOfflineMaxStaleSeconds() {
+        return offlineMaxStaleSeconds;
+    }
+
+    private static class ForcedCache {
+
+        final String pathPrefix;
+
+        final long maxAgeSeconds;
+
+        ForcedCache(String pathPrefix, long maxAgeSeconds) {
+            this.pathPrefix = pathPrefix;
+            this.maxAgeSeconds = maxAgeSeconds;
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+package com.educards.nuts.retrofit2;
+
+import android.util.Log;
+import okhttp3.*;
+import okhttp3.logging.HttpLoggingInterceptor.Level;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSource;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Network interceptor logging HTTP exchanges with bounded cost.
+ * <p>
+ * Unlike {@link okhttp3.logging.HttpLoggingInterceptor} bodies are never buffered as a whole,
+ * just the first {@link #setMaxBodyBytes(long) max body bytes} are copied (response body is peeked,
+ * request body is written to a sink which drops bytes beyond the cap). Gzipped response bodies
+ * (as transparently requested by OkHttp) are decoded from the peeked bytes until the cap is reached. Only a
+ * {@link #setSampleRate(double) sample} of exchanges may be logged and values of
+ * {@link #redactHeader(String) sensitive headers} (<code>Cookie</code>, <code>Set-Cookie</code>
+ * and <code>Authorization</code> by default) are replaced.
+ * </p>
+ * <p>
+ * All settings may be changed at runtime (e.g. {@link #setLevel(Level)} from a debug screen).
+ * With {@link Level#NONE} the exchange just passes through.
+ * </p>
+ */
+public class HttpLogger implements Interceptor {
+
+    private static final String TAG = "HttpLogger";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private volatile Level level = Level.NONE;
+
+    private volatile double sampleRate = 1;
+
+    private volatile long maxBodyBytes = 4 * 1024;
+
+    /**
+     * Copy on write.
+     */
+    private volatile Set<String> redactedHeaders = newRedactedHeaders(Arrays.asList("Authorization", "Cookie", "Set-Cookie"));
+
+    public HttpLogger setLevel(Level level) {
+        if (level == null) {
+            throw new NullPointerException("level == null");
+        }
+        this.level = level;
+        return this;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Fraction of exchanges which are logged, from 0 to 1 (default, all exchanges).
+     */
+    public HttpLogger setSampleRate(double sampleRate) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("sampleRate not in [0, 1]");
+        }
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Maximum number of logged bytes of each body at {@link Level#BODY}, defaults to 4KiB.
+     */
+    public HttpLogger setMaxBodyBytes(long maxBodyBytes) {
+        if (maxBodyBytes < 0) {
+            throw new IllegalArgumentException("maxBodyBytes < 0");
+        }
+        this.maxBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    /**
+     * Logs value of given header (case insensitive) as <code>[redacted]</code>.
+     */
+    public synchronized HttpLogger redactHeader(String name) {
+        Set<String> headers = newRedactedHeaders(redactedHeaders);
+        headers.add(name);
+        redactedHeaders = Collections.unmodifiableSet(headers);
+        return this;
+    }
+
+    private static Set<String> newRedactedHeaders(Iterable<String> names) {
+        Set<String> headers = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : names) {
+            headers.add(name);
+        }
+        return headers;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Level level = this.level;
+        double sampleRate = this.sampleRate;
+        if (level == Level.NONE || (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)) {
+            return chain.proceed(chain.request());
+        }
+
+        Request request = chain.request();
+        Connection connection = chain.connection();
+        StringBuilder log = new StringBuilder();
+        log.append("--> ").append(request.method()).append(' ').append(request.url());
+        if (connection != null) {
+            log.append(' ').append(connection.protocol());
+        }
+        if (level != Level.BASIC) {
+            appendHeaders(log, request.headers());
+            if (level == Level.BODY) {
+                appendRequestBody(log, request);
+            }
+        }
+        log(log.toString());
+
+        long startNs = System.nanoTime();
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            log(String.format("<-- HTTP FAILED %s: %s", request.url(), e));
+            throw e;
+        }
+        long tookMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+
+        log.setLength(0);
+        log.append("<-- ").append(response.code());
+        if (!response.message().isEmpty()) {
+            log.append(' ').append(response.message());
+        }
+        log.append(' ').append(request.url()).append(" (").append(tookMs).append("ms)");
+        if (level != Level.BASIC) {
+            appendHeaders(log, response.headers());
+            if (level == Level.BODY) {
+                appendResponseBody(log, response);
+            }
+        }
+        log(log.toString());
+        return response;
+    }
+
+    /**
+     * Writes single logged message (request or response), to logcat by default.
+     */
+    protected void log(String message) {
+        Log.d(TAG, message);
+    }
+
+    private void appendHeaders(StringBuilder log, Headers headers) {
+        Set<String> redactedHeaders = this.redactedHeaders;
+        for (int i = 0; i < headers.size(); i++) {
+            String name = headers.name(i);
+            log.append('\n').append(name).append(": ")
+                    .append(redactedHeaders.contains(name) ? "[redacted]" : headers.value(i));
+        }
+    }
+
+    private void appendRequestBody(StringBuilder log, Request request) throws IOException {
+        RequestBody body = request.body();
+        if (body == null) {
+            return;
+        }
+        if (body.isDuplex() || body.isOneShot() || request.header("Content-Encoding") != null || !isText(body.contentType())) {
+            log.append("\n(body omitted)");
+            return;
+        }
+        CappedSink sink = new CappedSink(maxBodyBytes);
+        BufferedSink bufferedSink = Okio.buffer(sink);
+        body.writeTo(bufferedSink);
+        bufferedSink.flush();
+        appendBody(log, sink.buffer, sink.total, body.contentType());
+    }
+
+    private void appendResponseBody(StringBuilder log, Response response) throws IOException {
+        ResponseBody body = response.body();
+        if (body == null || body.contentLength() == 0) {
+            return;
+        }
+        String contentEncoding = response.header("Content-Encoding");
+        boolean gzip = "gzip".equalsIgnoreCase(contentEncoding);
+        if ((contentEncoding != null && !gzip && !"identity".equalsIgnoreCase(contentEncoding)) || !isText(body.contentType())) {
+            log.append("\n(body omitted)");
+            return;
+        }
+        if (gzip) {
+            // the peek buffers just the compressed bytes needed to decode the cap
+            Buffer buffer = new Buffer();
+            GzipSource decoded = new GzipSource(body.source().peek());
+            boolean complete = false;
+            while (!complete && buffer.size() < maxBodyBytes) {
+                complete = decoded.read(buffer, maxBodyBytes - buffer.size()) == -1;
+            }
+            appendBody(log, buffer, complete ? buffer.size() : -1, body.contentType());
+            return;
+        }
+        ResponseBody peeked = response.peekBody(maxBodyBytes);
+        Buffer buffer = new Buffer();
+        buffer.writeAll(peeked.source());
+        appendBody(log, buffer, body.contentLength(), body.contentType());
+    }
+
+    private static void appendBody(StringBuilder log, Buffer logged, long total, MediaType contentType) {
+        Charset charset = contentType != null ? contentType.charset(UTF8) : UTF8;
+        long loggedBytes = logged.size();
+        log.append('\n').append(logged.readString(charset));
+        if (total < 0) {
+            log.append("\n(").append(loggedBytes).append(" bytes logged)");
+        } else if (total > loggedBytes) {
+            log.append("\n(").append(loggedBytes).append(" of ").append(total).append(" bytes logged)");
+        }
+    }
+
+    private static boolean isText(MediaType contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String subtype = contentType.subtype();
+        return "text".equals(contentType.type()) || subtype.contains("json") || subtype.contains("xml")
+                || subtype.equals("x-www-form-urlencoded");
+    }
+
+    /**
+     * Keeps first bytes written and counts (and drops) the rest.
+     */
+    private static class CappedSink implements Sink {
+
+        final Buffer buffer = new Buffer();
+
+        final long cap;
+
+        long total;
+
+        CappedSink(long cap) {
+            this.cap = cap;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            long kept = Math.min(byteCount, cap - buffer.size());
+            if (kept > 0) {
+                source.read(buffer, kept);
+            }
+            source.skip(byteCount - Math.max(kept, 0));
+            total += byteCount;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces identical idempotent calls which are in flight at the same time into single network exchange.
+ * <p>
+ * Calls are identical if they have the same method, URL, headers and response type. The first call
+ * of a kind is executed and each identical call enqueued before it completes just joins it.
+ * All joined calls receive the same response (including the body decoded just once), therefore
+ * the decoded body is the very same instance for all callers and must not be modified by them.
+ * Calls whose body can be read just once ({@link ResponseBody}, {@link JsonStream}) are not coalesced.
+ * Cancellation is reference counted: {@link #cancel(Participant)} detaches single call
+ * and the network exchange is canceled only when no call is left.
+ * </p>
+ */
+class InFlightCalls {
+
+    /**
+     * Flights by their key. Guarded by <code>this</code>.
+     */
+    private final Map<Key, Flight<?>> flights = new HashMap<Key, Flight<?>>();
+
+    /**
+     * Only calls without side effects (and without body) can share the response.
+     * Calls with overridden cache control want their own response. Body which is read
+     * by the caller (raw or streamed) can't be shared.
+     */
+    static boolean isCoalescible(Call<?> call, Type responseType) {
+        okhttp3.Request request = call.request();
+        return !isOneShot(responseType) && request.body() == null && ("GET".equals(request.method()) || "HEAD".equals(request.method()))
+                && HttpCacheInterceptor.getCacheControlOverride(request) == null;
+    }
+
+    /**
+     * @return whether body of given type can be consumed just once, e.g. {@link ResponseBody}
+     * (also wrapped in {@link Response}) or {@link JsonStream}
+     */
+    private static boolean isOneShot(Type responseType) {
+        if (responseType instanceof ParameterizedType) {
+            ParameterizedType parameterizedType = (ParameterizedType) responseType;
+            if (parameterizedType.getRawType() == Response.class) {
+                return isOneShot(parameterizedType.getActualTypeArguments()[0]);
+            }
+            responseType = parameterizedType.getRawType();
+        }
+        return responseType instanceof Class && Closeable.class.isAssignableFrom((Class<?>) responseType);
+    }
+
+    /**
+     * Enqueues the call or joins identical call in flight.
+     *
+     * @return participant handle allowing to cancel the call
+     */
+    <T> Participant enqueue(Call<T> call, Type responseType, Callback<T> callback) {
+        Participant participant = new Participant(call, callback);
+        if (call.isCanceled()) {
+            // neither joins a flight (it would get its response) nor starts one (others would be canceled)
+            callback.onFailure(call, new IOException("Canceled"));
+            return participant;
+        }
+        final Key key = new Key(call.request(), responseType);
+        final Flight<T> flight;
+        synchronized (this) {
+            @SuppressWarnings("unchecked")
+            Flight<T> inFlight = (Flight<T>) flights.get(key);
+            if (inFlight != null) {
+                inFlight.participants.add(participant);
+                participant.flight = inFlight;
+                return participant; // joined
+            }
+            flight = new Flight<T>(call);
+            flight.participants.add(participant);
+            participant.flight = flight;
+            flights.put(key, flight);
+        }
+
+        call.enqueue(new Callback<T>() {
+            @Override
+            public void onResponse(Call<T> call, Response<T> response) {
+                List<Participant> participants = land(key, flight);
+                if (participants.size() > 1 && !response.isSuccessful() && response.errorBody() != null) {
+                    // error body can be read just once, each participant gets own copy
+                    byte[] errorBody;
+                    MediaType contentType = response.errorBody().contentType();
+                    try {
+                        errorBody = response.errorBody().bytes();
+                    } catch (IOException e) {
+                        deliverFailure(participants, e);
+                        return;
+                    }
+                    for (Participant participant : participants) {
+                        participant.<T>callback().onResponse(participant.<T>call(),
+                                Response.<T>error(ResponseBody.create(errorBody, contentType), response.raw()));
+                    }
+                    return;
+                }
+                for (Participant participant : participants) {
+                    participant.<T>callback().onResponse(participant.<T>call(), response);
+                }
+            }
+
+            @Override
+            public void onFailure(Call<T> call, Throwable t) {
+                deliverFailure(land(key, flight), t);
+            }
+        });
+        return participant;
+    }
+
+    /**
+     * Detaches the participant from its flight and reports it as canceled. The network
+     * exchange is canceled if there are no other participants.
+     */
+    void cancel(Participant participant) {
+        synchronized (this) {
+            Flight<?> flight = participant.flight;
+            if (flight == null || !flight.participants.remove(participant)) {
+                return; // already completed or canceled
+            }
+            if (flight.participants.isEmpty()) {
+                flights.values().remove(flight);
+                flight.call.cancel();
+            }
+        }
+        participant.callback().onFailure(participant.call(), new IOException("Canceled"));
+    }
+
+    /**
+     * @return participants of the completed flight
+     */
+    private synchronized List<Participant> land(Key key, Flight<?> flight) {
+        if (flights.get(key) == flight) {
+            flights.remove(key); // identical calls enqueued from now on go to the network again
+        }
+        List<Participant> participants = new ArrayList<Participant>(flight.participants);
+        flight.participants.clear();
+        return participants;
+    }
+
+    private static void deliverFailure(List<Participant> participants, Throwable t) {
+        for (Participant participant : participants) {
+            participant.callback().onFailure(participant.call(), t);
+        }
+    }
+
+    private static class Flight<T> {
+
+        /**
+         * Call doing the network exchange.
+         */
+        final Call<T> call;
+
+        /**
+         * Guarded by the enclosing {@link InFlightCalls}.
+         */
+        final List<Participant> participants = new ArrayList<Participant>();
+
+        Flight(Call<T> call) {
+            this.call = call;
+        }
+    }
+
+    static class Participant {
+
+        private final Call<?> call;
+
+        private final Callback<?> callback;
+
+        /**
+         * <code>null</code> if the call was canceled before it was enqueued.
+         */
+        private Flight<?> flight;
+
+        Participant(Call<?> call, Callback<?> callback) {
+            this.call = call;
+            this.callback = callback;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> Call<T> call() {
+            return (Call<T>) call;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> Callback<T> callback() {
+            return (Callback<T>) callback;
+        }
+    }
+
+    private static class Key {
+
+        private final String method;
+
+        private final okhttp3.HttpUrl url;
+
+        private final okhttp3.Headers headers;
+
+        private final Type responseType;
+
+        Key(okhttp3.Request request, Type responseType) {
+            this.method = request.method();
+            this.url = request.url();
+            this.headers = request.headers();
+            this.responseType = responseType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return method.equals(key.method) && url.equals(key.url) && headers.equals(key.headers)
+                    && responseType.equals(key.responseType);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = method.hashCode();
+            result = 31 * result + url.hashCode();
+            result = 31 * result + headers.hashCode();
+            result = 31 * result + responseType.hashCode();
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.educards.nuts.retrofit2;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+
+import java.io.IOException;
+
+/**
+ * Request body encoded by {@link CachingJacksonConverterFactory}. Keeps the value so it can be
+ * encoded to Smile instead once the server is known to support it. The value is encoded lazily,
+ * when the body is first measured or written, so it's encoded just once in the format actually sent.
+ */
+class JacksonRequestBody extends RequestBody {
+
+    private final Object value;
+
+    private final MediaType contentType;
+
+    private final ObjectWriter writer;
+
+    /**
+     * <code>null</code> if the body can't be encoded to Smile (or already is Smile).
+     */
+    private final ObjectWriter smileWriter;
+
+    /**
+     * Guarded by <code>this</code>.
+     */
+    private Buffer encoded;
+
+    JacksonRequestBody(Object value, MediaType contentType, ObjectWriter writer, ObjectWriter smileWriter) {
+        this.value = value;
+        this.contentType = contentType;
+        this.writer = writer;
+        this.smileWriter = smileWriter;
+    }
+
+    /**
+     * @return the body encoded to Smile, this body if it can't be
+     */
+    RequestBody toSmile() {
+        if (smileWriter == null) {
+            return this;
+        }
+        return new JacksonRequestBody(value, CachingJacksonConverterFactory.SMILE, smileWriter, null);
+    }
+
+    private synchronized Buffer encoded() throws IOException {
+        if (encoded == null) {
+            encoded = CachingJacksonConverterFactory.encode(writer, value);
+        }
+        return encoded;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return encoded().size();
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        Buffer copy = encoded().clone(); // shares the segments, the body may be written again (retry, logging)
+        sink.write(copy, copy.size());
+    }
+
+}
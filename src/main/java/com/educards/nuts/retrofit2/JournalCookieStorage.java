@@ -0,0 +1,450 @@
+package com.educards.nuts.retrofit2;
+
+import android.util.Log;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * {@link CookieStorage} keeping cookies in an append-only journal file. This is the default storage
+ * of {@link PersistentHttpCookieStore}.
+ * <p>
+ * Every {@link #write(boolean, Map) write} appends a single frame holding just the changed cookies
+ * so it costs O(changed bytes) instead of O(all cookies). All cookies are kept in memory, the journal
+ * is replayed on first access. Once the journal grows beyond {@link #COMPACTION_GARBAGE_RATIO} times
+ * the size of live cookies (and {@link #COMPACTION_MIN_SIZE}) it's compacted: live cookies are written
+ * to a new file which atomically replaces the journal.
+ * </p>
+ * <p>
+ * Layout:
+ * <blockquote><pre>
+ * magic:"NCJ" formatVersion:u8 frame*
+ * frame: payloadLength:varint payload crc32(payload):u32
+ * payload: (CLEAR | PUT domain name value | REMOVE domain name)*
+ * </pre></blockquote>
+ * Varints and strings are encoded as in {@link CookieCodec}. A frame is applied only if it's complete
+ * and its checksum matches, replay stops at the first damaged frame (e.g. write interrupted by a crash)
+ * and the journal is truncated there.
+ * </p>
+ * <p>
+ * Each frame is synced to the disk before {@link #write(boolean, Map) write} returns. Unless
+ * {@link PersistentHttpCookieStore} runs in write-behind mode (see
+ * {@link PersistentHttpCookieStore.Config#setFlushInterval(long, java.util.concurrent.TimeUnit)})
+ * the write and the sync happen on the thread changing the cookies, e.g. OkHttp thread
+ * receiving a response with <code>Set-Cookie</code>. Configure the flush interval to batch
+ * the changes and move the syncs off those threads.
+ * </p>
+ */
+public class JournalCookieStorage implements CookieStorage {
+
+    private static final String LOG_TAG = "JournalCookieStorage";
+
+    static final String JOURNAL_FILE = "cookies.journal";
+
+    private static final byte[] MAGIC = {'N', 'C', 'J', 1};
+
+    private static final int OP_CLEAR = 0;
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+
+    /**
+     * Journal isn't compacted below this size (in bytes).
+     */
+    static final long COMPACTION_MIN_SIZE = 16 * 1024;
+
+    /**
+     * Journal is compacted once it's this many times bigger than the live cookies.
+     */
+    static final int COMPACTION_GARBAGE_RATIO = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    private final CookieStorage migrateFrom;
+
+    private final Executor compactionExecutor;
+
+    /**
+     * Replayed journal (domain &rarr; name &rarr; encoded cookie), <code>null</code> until first access.
+     */
+    private Map<String, Map<String, String>> cookies;
+
+    private RandomAccessFile journal;
+
+    /**
+     * Length of the journal up to the end of the last complete frame.
+     */
+    private long validLength;
+
+    /**
+     * Size the live cookies take in the journal.
+     */
+    private long liveLength;
+
+    private boolean compactionScheduled;
+
+    /**
+     * Storage which compacts the journal on the writing thread.
+     */
+    public JournalCookieStorage(File file) {
+        this(file, null, null);
+    }
+
+    /**
+     * @param file journal file
+     * @param migrateFrom storage whose cookies are imported (and cleared) when the journal
+     *                    doesn't exist yet, can be <code>null</code>
+     * @param compactionExecutor executor running the compaction, <code>null</code> compacts on the writing thread
+     */
+    public JournalCookieStorage(File file, CookieStorage migrateFrom, Executor compactionExecutor) {
+        this.file = file;
+        this.migrateFrom = migrateFrom;
+        this.compactionExecutor = compactionExecutor;
+    }
+
+    @Override
+    public synchronized Collection<String> loadDomains() throws IOException {
+        open();
+        return new ArrayList<String>(cookies.keySet());
+    }
+
+    @Override
+    public synchronized Map<String, String> loadCookies(String domain) throws IOException {
+        open();
+        Map<String, String> domainCookies = cookies.get(domain);
+        return domainCookies != null ? new HashMap<String, String>(domainCookies) : new HashMap<String, String>();
+    }
+
+    @Override
+    public synchronized void write(boolean clear, Map<String, Map<String, String>> changes) throws IOException {
+        open();
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        if (clear) {
+            payload.write(OP_CLEAR);
+        }
+        for (Map.Entry<String, Map<String, String>> domainChanges : changes.entrySet()) {
+            for (Map.Entry<String, String> change : domainChanges.getValue().entrySet()) {
+                writeRecord(payload, domainChanges.getKey(), change.getKey(), change.getValue());
+            }
+        }
+        if (payload.size() == 0) {
+            return;
+        }
+        append(frame(payload.toByteArray()));
+
+        if (clear) {
+            cookies.clear();
+            liveLength = 0;
+        }
+        for (Map.Entry<String, Map<String, String>> domainChanges : changes.entrySet()) {
+            for (Map.Entry<String, String> change : domainChanges.getValue().entrySet()) {
+                apply(domainChanges.getKey(), change.getKey(), change.getValue());
+            }
+        }
+
+        if (needsCompaction()) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Replays the journal (or migrates the cookies into a new one) on first access.
+     */
+    private void open() throws IOException {
+        if (cookies != null) {
+            return;
+        }
+        try {
+            replayOrMigrate();
+        } catch (IOException e) {
+            cookies = null; // retried on next access
+            throw e;
+        }
+    }
+
+    private void replayOrMigrate() throws IOException {
+        liveLength = 0;
+        if (!file.exists()) {
+            Map<String, Map<String, String>> imported = new HashMap<String, Map<String, String>>();
+            if (migrateFrom != null) {
+                for (String domain : migrateFrom.loadDomains()) {
+                    imported.put(domain, migrateFrom.loadCookies(domain));
+                }
+            }
+            cookies = new HashMap<String, Map<String, String>>();
+            for (Map.Entry<String, Map<String, String>> domainCookies : imported.entrySet()) {
+                for (Map.Entry<String, String> cookie : domainCookies.getValue().entrySet()) {
+                    apply(domainCookies.getKey(), cookie.getKey(), cookie.getValue());
+                }
+            }
+            rewrite();
+            if (!imported.isEmpty()) {
+                try {
+                    migrateFrom.write(true, Collections.<String, Map<String, String>>emptyMap());
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to clear migrated cookies", e);
+                }
+            }
+            return;
+        }
+
+        cookies = new HashMap<String, Map<String, String>>();
+        byte[] data = readFully(file);
+        if (data.length < MAGIC.length || !Arrays.equals(MAGIC, Arrays.copyOf(data, MAGIC.length))) {
+            Log.w(LOG_TAG, String.format("Unreadable cookie journal, starting empty [file=%s]", file));
+            rewrite();
+            return;
+        }
+
+        int position = MAGIC.length;
+        while (position < data.length) {
+            int frameEnd = replayFrame(data, position);
+            if (frameEnd < 0) {
+                Log.w(LOG_TAG, String.format("Cookie journal damaged, truncating [file=%s, validLength=%d, length=%d]",
+                        file, position, data.length));
+                break;
+            }
+            position = frameEnd;
+        }
+
+        journal = new RandomAccessFile(file, "rw");
+        validLength = position;
+        if (validLength < data.length) {
+            journal.setLength(validLength);
+        }
+        if (needsCompaction()) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Applies the frame starting at given position.
+     *
+     * @return position right after the frame or <code>-1</code> if the frame is incomplete or damaged
+     */
+    private int replayFrame(byte[] data, int position) {
+        List<String[]> records = new ArrayList<String[]>();
+        boolean clear = false;
+        int frameEnd;
+        try {
+            CookieCodec.Reader header = new CookieCodec.Reader(data, position, data.length);
+            long payloadLength = header.readVarLong();
+            int payloadStart = header.position();
+            if (payloadLength < 0 || payloadLength > data.length - payloadStart - 4) {
+                return -1;
+            }
+            int payloadEnd = payloadStart + (int) payloadLength;
+
+            CRC32 crc = new CRC32();
+            crc.update(data, payloadStart, (int) payloadLength);
+            long storedCrc = ((data[payloadEnd] & 0xFFL) << 24) | ((data[payloadEnd + 1] & 0xFFL) << 16)
+                    | ((data[payloadEnd + 2] & 0xFFL) << 8) | (data[payloadEnd + 3] & 0xFFL);
+            if (crc.getValue() != storedCrc) {
+                return -1;
+            }
+            frameEnd = payloadEnd + 4;
+
+            CookieCodec.Reader payload = new CookieCodec.Reader(data, payloadStart, payloadEnd);
+            while (payload.hasMore()) {
+                int op = payload.readByte();
+                if (op == OP_CLEAR) {
+                    clear = true;
+                    records.clear();
+                } else if (op == OP_PUT) {
+                    records.add(new String[] {payload.readString(), payload.readString(), payload.readString()});
+                } else if (op == OP_REMOVE) {
+                    records.add(new String[] {payload.readString(), payload.readString(), null});
+                } else {
+                    return -1;
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+
+        if (clear) {
+            cookies.clear();
+            liveLength = 0;
+        }
+        for (String[] record : records) {
+            apply(record[0], record[1], record[2]);
+        }
+        return frameEnd;
+    }
+
+    /**
+     * Updates replayed cookies with single change.
+     *
+     * @param value encoded cookie, <code>null</code> for removal
+     */
+    private void apply(String domain, String name, String value) {
+        Map<String, String> domainCookies = cookies.get(domain);
+        String previous = null;
+        if (value != null) {
+            if (domainCookies == null) {
+                domainCookies = new HashMap<String, String>();
+                cookies.put(domain, domainCookies);
+            }
+            previous = domainCookies.put(name, value);
+            liveLength += recordLength(domain, name, value);
+        } else if (domainCookies != null) {
+            previous = domainCookies.remove(name);
+            if (domainCookies.isEmpty()) {
+                cookies.remove(domain);
+            }
+        }
+        if (previous != null) {
+            liveLength -= recordLength(domain, name, previous);
+        }
+    }
+
+    private void append(byte[] frame) throws IOException {
+        try {
+            journal.seek(validLength);
+            journal.write(frame);
+            journal.getFD().sync();
+            validLength += frame.length;
+        } catch (IOException e) {
+            try {
+                journal.setLength(validLength); // drop the partial frame so the next one follows a complete one
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
+    private boolean needsCompaction() {
+        return validLength > COMPACTION_MIN_SIZE && validLength > COMPACTION_GARBAGE_RATIO * (MAGIC.length + liveLength);
+    }
+
+    private void scheduleCompaction() {
+        if (compactionExecutor == null) {
+            compact();
+            return;
+        }
+        if (compactionScheduled) {
+            return;
+        }
+        compactionScheduled = true;
+        compactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (JournalCookieStorage.this) {
+                    compactionScheduled = false;
+                    if (needsCompaction()) {
+                        compact();
+                    }
+                }
+            }
+        });
+    }
+
+    private void compact() {
+        try {
+            rewrite();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to compact cookie journal", e);
+        }
+    }
+
+    /**
+     * Replaces the journal with a new one holding just the live cookies.
+     */
+    private void rewrite() throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream((int) Math.min(liveLength, Integer.MAX_VALUE - 8));
+        for (Map.Entry<String, Map<String, String>> domainCookies : cookies.entrySet()) {
+            for (Map.Entry<String, String> cookie : domainCookies.getValue().entrySet()) {
+                writeRecord(payload, domainCookies.getKey(), cookie.getKey(), cookie.getValue());
+            }
+        }
+
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to create " + parent);
+        }
+        File compacted = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(compacted);
+        try {
+            out.write(MAGIC);
+            if (payload.size() > 0) {
+                out.write(frame(payload.toByteArray()));
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!compacted.renameTo(file)) {
+            throw new IOException("Failed to replace " + file);
+        }
+
+        if (journal != null) {
+            try {
+                journal.close(); // still refers to the replaced file
+            } catch (IOException ignored) {
+            }
+        }
+        journal = new RandomAccessFile(file, "rw");
+        validLength = journal.length();
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, String domain, String name, String value) {
+        out.write(value != null ? OP_PUT : OP_REMOVE);
+        CookieCodec.writeString(out, domain);
+        CookieCodec.writeString(out, name);
+        if (value != null) {
+            CookieCodec.writeString(out, value);
+        }
+    }
+
+    private static byte[] frame(byte[] payload) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 9);
+        CookieCodec.writeVarLong(out, payload.length);
+        out.write(payload, 0, payload.length);
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        long value = crc.getValue();
+        out.write((int) (value >>> 24));
+        out.write((int) (value >>> 16));
+        out.write((int) (value >>> 8));
+        out.write((int) value);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return size of PUT record of the cookie
+     */
+    private static long recordLength(String domain, String name, String value) {
+        return 1 + stringLength(domain) + stringLength(name) + stringLength(value);
+    }
+
+    private static long stringLength(String value) {
+        long length = value.getBytes(UTF_8).length;
+        return length + varLongLength(length + 1);
+    }
+
+    private static int varLongLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package com.educards.nuts.retrofit2;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectReader;
+import okhttp3.ResponseBody;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Response body with a JSON (or Smile) array whose elements are decoded one by one as they are read
+ * from the network. Endpoints returning large collections declare it as their response type,
+ * e.g. <code>TemplateCall&lt;JsonStream&lt;Item&gt;&gt;</code>, so no list of all elements
+ * is ever built (see {@link JsonStreamConverterFactory}).
+ * <p>
+ * The stream is handed over to {@link com.educards.nuts.Template#onRequestSucceeded(Object)} while
+ * the body is still being received, on a background thread. Elements are pulled by the consumer
+ * ({@link #hasNext()}/{@link #next()}, {@link #forEach(Callback)}, {@link #forEachChunk(int, ChunkCallback)})
+ * so nothing is read ahead of the consumer beyond socket buffers (backpressure). The stream must be
+ * {@link #close() closed} once consumed or abandoned, the consumer may stop early by returning
+ * <code>false</code> from the callback. {@link TemplateCall#cancel()} cancels the stream being
+ * consumed from another thread (the consumer gets {@link IOException}).
+ * </p>
+ * <p>
+ * Unlike other response bodies the stream can be consumed just once, therefore calls with this
+ * response type are never coalesced. The slot of {@link PriorityDispatcher} (and permit of
+ * {@link ConcurrencyLimiter}) is released once the response headers arrive, the stream is consumed
+ * outside of these limits (the connection is still busy until the stream is closed).
+ * </p>
+ */
+public class JsonStream<T> implements Closeable {
+
+    public interface Callback<T> {
+
+        /**
+         * @return <code>false</code> to stop reading the stream
+         */
+        boolean onElement(T element);
+
+    }
+
+    public interface ChunkCallback<T> {
+
+        /**
+         * @return <code>false</code> to stop reading the stream
+         */
+        boolean onChunk(List<T> chunk);
+
+    }
+
+    private final ResponseBody body;
+
+    private final ObjectReader reader;
+
+    private JsonParser parser;
+
+    /**
+     * Token of the next element, <code>null</code> if not read yet.
+     */
+    private JsonToken nextToken;
+
+    private boolean finished;
+
+    JsonStream(ResponseBody body, ObjectReader reader) {
+        this.body = body;
+        this.reader = reader;
+    }
+
+    public boolean hasNext() throws IOException {
+        if (finished) {
+            return false;
+        }
+        if (nextToken == null) {
+            if (parser == null) {
+                parser = reader.getFactory().createParser(body.byteStream());
+                JsonToken token = parser.nextToken();
+                if (token == null) {
+                    finished = true; // empty body
+                    return false;
+                }
+                if (token != JsonToken.START_ARRAY) {
+                    throw new IOException(String.format("Expected JSON array but was %s", token));
+                }
+            }
+            nextToken = parser.nextToken();
+            if (nextToken == null) {
+                throw new IOException("Truncated JSON array");
+            }
+            if (nextToken == JsonToken.END_ARRAY) {
+                finished = true;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public T next() throws IOException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T element = reader.readValue(parser);
+        nextToken = null;
+        return element;
+    }
+
+    /**
+     * Reads the rest of the stream element by element and closes it.
+     */
+    public void forEach(Callback<T> callback) throws IOException {
+        try {
+            while (hasNext()) {
+                if (!callback.onElement(next())) {
+                    break;
+                }
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Reads the rest of the stream in chunks of given size (the last one may be smaller) and closes it.
+     */
+    public void forEachChunk(int chunkSize, ChunkCallback<T> callback) throws IOException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize < 1");
+        }
+        try {
+            List<T> chunk = new ArrayList<T>(chunkSize);
+            while (hasNext()) {
+                chunk.add(next());
+                if (chunk.size() == chunkSize) {
+                    if (!callback.onChunk(chunk)) {
+                        return;
+                    }
+                    chunk = new ArrayList<T>(chunkSize); // the callback may keep the chunk
+                }
+            }
+            if (!chunk.isEmpty()) {
+                callback.onChunk(chunk);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Releases the body. Unread elements are discarded.
+     */
+    @Override
+    public void close() {
+        finished = true;
+        if (parser != null) {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // the body is closed anyway
+            }
+        }
+        body.close();
+    }
+
+}
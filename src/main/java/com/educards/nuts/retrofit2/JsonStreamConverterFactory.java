@@ -0,0 +1,70 @@
+package com.educards.nuts.retrofit2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+/**
+ * Converts response bodies of {@link JsonStream} type. Must be added before the converter
+ * factory handling other JSON bodies since that one accepts any type.
+ */
+public class JsonStreamConverterFactory extends Converter.Factory {
+
+    private final ObjectMapper objectMapper;
+
+    private final ObjectMapper smileObjectMapper;
+
+    private JsonStreamConverterFactory(ObjectMapper objectMapper, ObjectMapper smileObjectMapper) {
+        this.objectMapper = objectMapper;
+        this.smileObjectMapper = smileObjectMapper;
+    }
+
+    public static JsonStreamConverterFactory create(ObjectMapper objectMapper) {
+        return create(objectMapper, null);
+    }
+
+    /**
+     * @param smileObjectMapper mapper of Smile payloads, <code>null</code> for JSON only
+     */
+    public static JsonStreamConverterFactory create(ObjectMapper objectMapper, ObjectMapper smileObjectMapper) {
+        if (objectMapper == null) {
+            throw new NullPointerException("objectMapper == null");
+        }
+        return new JsonStreamConverterFactory(objectMapper, smileObjectMapper);
+    }
+
+    /**
+     * @return whether bodies of given type are streamed
+     */
+    static boolean isJsonStream(Type type) {
+        return getRawType(type) == JsonStream.class;
+    }
+
+    @Override
+    public Converter<ResponseBody, ?> responseBodyConverter(Type type, Annotation[] annotations, Retrofit retrofit) {
+        if (!isJsonStream(type)) {
+            return null;
+        }
+        if (!(type instanceof ParameterizedType)) {
+            throw new IllegalArgumentException("JsonStream must be parameterized with its element type");
+        }
+        Type elementType = getParameterUpperBound(0, (ParameterizedType) type);
+        final ObjectReader reader = objectMapper.readerFor(objectMapper.getTypeFactory().constructType(elementType));
+        final ObjectReader smileReader = smileObjectMapper != null
+                ? smileObjectMapper.readerFor(smileObjectMapper.getTypeFactory().constructType(elementType)) : null;
+        return new Converter<ResponseBody, JsonStream<?>>() {
+            @Override
+            public JsonStream<?> convert(ResponseBody body) {
+                boolean smile = smileReader != null && CachingJacksonConverterFactory.isSmile(body.contentType());
+                return new JsonStream<Object>(body, smile ? smileReader : reader); // body is read (and closed) by the consumer
+            }
+        };
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.educards.nuts.retrofit2;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of durations with log-linear buckets (8 buckets per power of two,
+ * values are precise to 12.5%). Recording doesn't allocate nor lock so it can be done
+ * for every call, reads see the counts recorded so far.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Durations are recorded in microseconds up to 2^40us (~12 days).
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    public void record(long duration, TimeUnit unit) {
+        long micros = Math.min(Math.max(unit.toMicros(duration), 0), MAX_VALUE);
+        counts.incrementAndGet(bucketIndex(micros));
+        totalMicros.addAndGet(micros);
+        count.incrementAndGet();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return mean duration, zero if nothing has been recorded
+     */
+    public long getMean(TimeUnit unit) {
+        long count = this.count.get();
+        return count == 0 ? 0 : unit.convert(totalMicros.get() / count, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @param percentile percentile from 0 to 100, e.g. 95 for p95
+     * @return duration not exceeded by given percentage of recorded durations
+     * (midpoint of its bucket), zero if nothing has been recorded
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile not in [0, 100]");
+        }
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long lower = bucketLowerBound(i);
+                long upper = bucketLowerBound(i + 1) - 1;
+                return unit.convert((lower + upper) / 2, TimeUnit.MICROSECONDS);
+            }
+        }
+        return unit.convert(MAX_VALUE, TimeUnit.MICROSECONDS);
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long bucketLowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.educards.nuts.retrofit2;
+
+import android.os.Build;
+import android.util.Log;
+
+import java.net.HttpCookie;
+import java.util.*;
+
+import okhttp3.Cookie;
+import okhttp3.CookieJar;
+import okhttp3.HttpUrl;
+
+/**
+ * {@link CookieJar} backed by {@link PersistentHttpCookieStore}.
+ * <p>
+ * Unlike {@link okhttp3.JavaNetCookieJar} over {@link java.net.CookieManager} it doesn't format
+ * cookies to headers and parse them back on every request. Cookies received from the server
+ * are stored together with their OkHttp representation, cookies loaded from storage are converted
+ * once and the conversion is cached. Matching follows OkHttp ({@link Cookie#matches(HttpUrl)}, RFC 6265).
+ * </p>
+ */
+public class PersistentCookieJar implements CookieJar {
+
+    public static final String TAG = PersistentCookieJar.class.getSimpleName();
+
+    /**
+     * Cached in place of stored cookies which can't be converted so the conversion isn't retried.
+     */
+    private static final Cookie UNUSABLE = new Cookie.Builder().name("unusable").value("").domain("invalid").build();
+
+    private final PersistentHttpCookieStore cookieStore;
+
+    public PersistentCookieJar(PersistentHttpCookieStore cookieStore) {
+        this.cookieStore = cookieStore;
+    }
+
+    public PersistentHttpCookieStore getCookieStore() {
+        return cookieStore;
+    }
+
+    @Override
+    public void saveFromResponse(HttpUrl url, List<Cookie> cookies) {
+        long now = System.currentTimeMillis();
+        List<HttpCookie> httpCookies = new ArrayList<HttpCookie>(cookies.size());
+        List<Cookie> okHttpCookies = new ArrayList<Cookie>(cookies.size());
+        for (Cookie cookie : cookies) {
+            HttpCookie httpCookie = toHttpCookie(cookie, now);
+            if (httpCookie != null) {
+                httpCookies.add(httpCookie);
+                okHttpCookies.add(cookie);
+            }
+        }
+        cookieStore.addAll(url.uri(), httpCookies, okHttpCookies);
+    }
+
+    @Override
+    public List<Cookie> loadForRequest(HttpUrl url) {
+        List<StoredCookie> candidates = new ArrayList<StoredCookie>();
+        cookieStore.collectCandidates(url.host(), candidates);
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        long now = System.currentTimeMillis();
+        List<Cookie> result = new ArrayList<Cookie>(candidates.size());
+        Set<HttpCookie> resultSet = new HashSet<HttpCookie>(); // same cookie may be stored under several URIs
+        for (StoredCookie stored : candidates) {
+            Cookie cookie = okHttpCookie(stored);
+            if (cookie != null && cookie.matches(url) && resultSet.add(stored.cookie)) {
+                stored.lastAccessed = now;
+                result.add(cookie);
+            }
+        }
+        return result;
+    }
+
+    private static Cookie okHttpCookie(StoredCookie stored) {
+        Cookie cookie = stored.okHttpCookie;
+        if (cookie == null) {
+            cookie = toOkHttpCookie(stored);
+            stored.okHttpCookie = cookie != null ? cookie : UNUSABLE; // benign race, conversion is idempotent
+        }
+        return cookie != UNUSABLE ? cookie : null;
+    }
+
+    /**
+     * @return <code>null</code> if the cookie can't be represented by {@link HttpCookie}
+     */
+    private static HttpCookie toHttpCookie(Cookie cookie, long now) {
+        HttpCookie httpCookie;
+        try {
+            httpCookie = new HttpCookie(cookie.name(), cookie.value());
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, String.format("Cookie not stored [name=%s]", cookie.name()), e);
+            return null; // e.g. reserved attribute name
+        }
+        // leading dot distinguishes domain cookies from host-only cookies
+        httpCookie.setDomain(cookie.hostOnly() ? cookie.domain() : "." + cookie.domain());
+        httpCookie.setPath(cookie.path());
+        httpCookie.setSecure(cookie.secure());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            httpCookie.setHttpOnly(cookie.httpOnly());
+        }
+        httpCookie.setMaxAge(cookie.persistent() ? Math.max(0, (cookie.expiresAt() - now) / 1000) : -1);
+        httpCookie.setVersion(0); // Netscape style cookie received in Set-Cookie
+        return httpCookie;
+    }
+
+    /**
+     * @return <code>null</code> if the cookie can't be represented by {@link Cookie}
+     * (e.g. invalid domain)
+     */
+    private static Cookie toOkHttpCookie(StoredCookie stored) {
+        HttpCookie httpCookie = stored.cookie;
+        String domain = httpCookie.getDomain();
+        String path = httpCookie.getPath();
+        try {
+            Cookie.Builder builder = new Cookie.Builder()
+                    .name(httpCookie.getName())
+                    .value(httpCookie.getValue() != null ? httpCookie.getValue() : "")
+                    .path(path != null ? path : "/");
+            if (domain.startsWith(".")) {
+                builder.domain(domain.substring(1));
+            } else if (stored.uri != null && domain.equalsIgnoreCase(stored.uri.getHost())) {
+                builder.hostOnlyDomain(domain); // java.net.CookieManager defaults the domain to the request host
+            } else {
+                builder.domain(domain); // explicit Domain attribute stored through java.net.CookieManager
+            }
+            if (stored.expiresAt != Long.MAX_VALUE) {
+                builder.expiresAt(stored.expiresAt);
+            }
+            if (httpCookie.getSecure()) {
+                builder.secure();
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && httpCookie.isHttpOnly()) {
+                builder.httpOnly();
+            }
+            return builder.build();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, String.format("Stored cookie not usable by OkHttp [name=%s, domain=%s]",
+                    httpCookie.getName(), domain), e);
+            return null;
+        }
+    }
+
+}
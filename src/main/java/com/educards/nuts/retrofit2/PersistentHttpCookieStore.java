@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.text.TextUtils;
 import android.util.Log;
+import okio.ByteString;
 
 import java.io.*;
 import java.net.CookieStore;
@@ -11,25 +12,157 @@ import java.net.HttpCookie;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A persistent cookie store for Android which implements the {@link CookieStore} interface.
  * Cookies are stored and will persist on the user's device between application sessions since
- * they are serialized and stored in {@link SharedPreferences}.
+ * they are serialized and stored in a {@link CookieStorage}, by default in an append-only
+ * journal file (see {@link JournalCookieStorage}). Cookies stored in {@link SharedPreferences}
+ * by older versions are moved to the journal on first access.
+ * <p>
+ * Cookies are stored in compact binary form (see {@link CookieCodec}). Entries written
+ * by older versions in hex encoded Java serialization form are still readable and get
+ * rewritten to the binary form after they are loaded.
+ * </p>
+ * <p>
+ * Only cookies which changed since the last write are encoded and written. By default
+ * every mutation is committed before the mutating method returns. With
+ * {@link Config#setFlushInterval(long, TimeUnit) flush interval} configured the store works
+ * in write-behind mode instead: mutations update memory immediately and a background writer
+ * persists all changes made during the interval in a single batch. Call {@link #flush()}
+ * to persist pending changes synchronously (e.g. on shutdown). Changes whose write failed
+ * are kept pending and written together with the next batch.
+ * </p>
+ * <p>
+ * With {@link Config#setLazyLoading(boolean) lazy loading} the constructor returns immediately
+ * and stored cookies are decoded on a background thread. Stored domains are grouped by their
+ * last two host labels ("site") and any access needing cookies of a site which has not been
+ * decoded yet decodes just that site on the calling thread.
+ * </p>
+ * <p>
+ * Expired cookies are purged (and the purge persisted) through a queue ordered by expiry time.
+ * The number of cookies is bounded per domain and in total (see {@link Config#setMaxCookiesPerDomain(int)}
+ * and {@link Config#setMaxCookies(int)}), least recently used cookies are evicted first.
+ * </p>
+ * <p>
+ * Reads ({@link #get(URI)}, {@link #getCookies()}, {@link #getURIs()}) never lock once the cookies
+ * are loaded. They work on an immutable snapshot of the store which writers republish (copy-on-write,
+ * only the modified per-URI lists and index path are copied) after each modification. Writers are
+ * serialized by the store monitor. Reads just skip expired cookies and leave their removal
+ * to a background purge.
+ * </p>
  */
 public class PersistentHttpCookieStore implements CookieStore {
     private static final String LOG_TAG = "PersistentHttpCkieStr";
-    private static final String COOKIE_PREFS = "CookiePrefsFile";
-    private static final String COOKIE_NAME_PREFIX = "cookie_";
-    private static final String COOKIE_DOMAIN_PREFIX = "domain_";
-    private static final String COOKIE_DOMAIN_STORE = "domains";
 
     /**
+     * Marks cookies stored by {@link CookieCodec} (Base64). Legacy entries
+     * are hex strings so they never start with this character.
+     */
+    private static final String BINARY_COOKIE_PREFIX = "#";
+
+    private static final Comparator<StoredCookie> EXPIRY_ORDER = new Comparator<StoredCookie>() {
+        @Override
+        public int compare(StoredCookie a, StoredCookie b) {
+            return a.expiresAt < b.expiresAt ? -1 : (a.expiresAt == b.expiresAt ? 0 : 1);
+        }
+    };
+
+    private static final Comparator<StoredCookie> LRU_ORDER = new Comparator<StoredCookie>() {
+        @Override
+        public int compare(StoredCookie a, StoredCookie b) {
+            return a.lastAccessed < b.lastAccessed ? -1 : (a.lastAccessed == b.lastAccessed ? 0 : 1);
+        }
+    };
+
+    /**
+     * Writers' view of the cookies, guarded by the store monitor.
      * this map may have null keys!
      */
-    private final Map<URI, List<HttpCookie>> cookiesCache;
+    private final Map<URI, List<StoredCookie>> cookiesCache;
+
+    /**
+     * Readers' view of the cookies.
+     */
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    /**
+     * URIs whose cookie lists changed since the last {@link #publish()}.
+     */
+    private final Set<URI> unpublishedUris = new HashSet<URI>();
+
+    /**
+     * Cookies with finite lifetime ordered by expiry. Removed cookies are dropped lazily.
+     */
+    private PriorityQueue<StoredCookie> expiryQueue = new PriorityQueue<StoredCookie>(16, EXPIRY_ORDER);
+
+    /**
+     * Number of cookies in {@link #cookiesCache}.
+     */
+    private int cookieCount;
+
+    private final int maxCookiesPerDomain;
+
+    private final int maxCookies;
+
+    /**
+     * Domain index over all cookies in {@link #cookiesCache}.
+     */
+    private CookieDomainIndex domainIndex = CookieDomainIndex.EMPTY;
+
+    /**
+     * Cookies in {@link #cookiesCache} by name (case sensitive as the names are in the persistent store).
+     */
+    private final Map<String, Set<StoredCookie>> nameIndex = new HashMap<String, Set<StoredCookie>>();
+
+    private final CookieStorage storage;
+
+    private final long flushIntervalMs;
+
+    /**
+     * Runs background loading, write-behind flushes and purges. Its thread is started on first use.
+     */
+    private final ScheduledExecutorService backgroundExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PersistentHttpCookieStore-background");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AtomicBoolean purgeScheduled = new AtomicBoolean();
+
+    /**
+     * Serializes writes to {@link #storage} so the batches land in order they were drained.
+     * Never acquired while holding the store monitor.
+     */
+    private final Object flushLock = new Object();
+
+    /**
+     * Cookie names (per URI) changed since the last flush.
+     */
+    private final Map<URI, Set<String>> pendingCookieNames = new HashMap<URI, Set<String>>();
+
+    private boolean pendingClear;
 
-    private final SharedPreferences cookiePrefs;
+    private boolean flushScheduled;
+
+    /**
+     * Whether the list of stored domains has been read into {@link #unloadedSites}.
+     */
+    private boolean storedDomainsRead;
+
+    /**
+     * Stored domains (grouped by site) whose cookies haven't been decoded into {@link #cookiesCache} yet.
+     * Domains of unqualified hosts are grouped under empty site.
+     */
+    private final Map<String, List<String>> unloadedSites = new HashMap<String, List<String>>();
 
     /**
      * Construct a persistent cookie store.
@@ -37,163 +170,737 @@ public class PersistentHttpCookieStore implements CookieStore {
      * @param context Context to attach cookie store to
      */
     public PersistentHttpCookieStore(Context context) {
-        cookiePrefs = context.getSharedPreferences(COOKIE_PREFS, 0);
-        cookiesCache = new HashMap<URI, List<HttpCookie>>();
-
-        // Load any previously stored domains into the cache
-        String storedCookieDomains = cookiePrefs.getString(COOKIE_DOMAIN_STORE, null);
-        if (storedCookieDomains != null) {
-            // Get all the domains
-            String[] storedCookieDomainsArray = TextUtils.split(storedCookieDomains, ",");
-            for (String domain : storedCookieDomainsArray) {
-                // Get the cookie names under the domain
-                String storedCookiesNames = cookiePrefs.getString(COOKIE_DOMAIN_PREFIX + domain,
-                        null);
-                if (storedCookiesNames != null) {
-                    String[] storedCookieNamesArray = TextUtils.split(storedCookiesNames, ",");
-                    if (storedCookieNamesArray != null) {
-                        List<HttpCookie> cookies = new ArrayList<HttpCookie>();
-                        for (String cookieName : storedCookieNamesArray) {
-                            // Get the serialized cookies, deserialize it and add it to our cache
-                            String encodedCookie = cookiePrefs.getString(COOKIE_NAME_PREFIX + domain
-                                    + cookieName, null);
-                            if (encodedCookie != null)
-                                cookies.add(decodeCookie(encodedCookie));
-                        }
-                        cookiesCache.put(URI.create(domain), cookies);
-                    }
+        this(context, new Config());
+    }
+
+    /**
+     * Construct a persistent cookie store.
+     *
+     * @param context Context to attach cookie store to
+     * @param config Store configuration
+     */
+    public PersistentHttpCookieStore(Context context, Config config) {
+        storage = config.storage != null ? config.storage : new JournalCookieStorage(
+                new File(context.getFilesDir(), JournalCookieStorage.JOURNAL_FILE),
+                new SharedPreferencesCookieStorage(context), backgroundExecutor);
+        flushIntervalMs = config.flushIntervalMs;
+        maxCookiesPerDomain = config.maxCookiesPerDomain;
+        maxCookies = config.maxCookies;
+        cookiesCache = new HashMap<URI, List<StoredCookie>>();
+
+        if (config.lazyLoading) {
+            backgroundExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadAllSitesInBackground();
+                }
+            });
+
+        } else {
+            synchronized (this) {
+                ensureAllLoaded();
+            }
+            persist(); // migrate legacy encoded cookies, if any
+        }
+    }
+
+    /**
+     * Decodes stored sites one by one, releasing the store monitor in between
+     * so the callers which need a particular site don't wait for all the others.
+     */
+    private void loadAllSitesInBackground() {
+        while (true) {
+            synchronized (this) {
+                readStoredDomains();
+                if (unloadedSites.isEmpty()) {
+                    break;
+                }
+                loadSite(unloadedSites.keySet().iterator().next());
+            }
+        }
+        persist(); // migrate legacy encoded cookies, if any
+    }
+
+    /**
+     * Makes sure all cookies which might match given host are loaded.
+     * Legacy encoded cookies are only marked pending, migrated by the next flush.
+     */
+    private void ensureLoaded(String host) {
+        readStoredDomains();
+        if (unloadedSites.isEmpty()) {
+            publish(); // marks the snapshot as loaded so that readers don't lock again
+            return;
+        }
+        String site = siteOf(host);
+        if (site == null) {
+            ensureAllLoaded(); // unqualified hosts may match ".local" cookies of any site
+        } else if (unloadedSites.containsKey(site)) {
+            loadSite(site);
+        }
+    }
+
+    private void ensureAllLoaded() {
+        readStoredDomains();
+        while (!unloadedSites.isEmpty()) {
+            loadSite(unloadedSites.keySet().iterator().next());
+        }
+        publish(); // even if there was nothing to load, the snapshot has to be marked as loaded
+    }
+
+    private void readStoredDomains() {
+        if (storedDomainsRead) {
+            return;
+        }
+        storedDomainsRead = true;
+
+        // Load any previously stored domains (just the list, cookies are decoded per site)
+        Collection<String> storedCookieDomains;
+        try {
+            storedCookieDomains = storage.loadDomains();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to load stored cookie domains", e);
+            return;
+        }
+        for (String domain : storedCookieDomains) {
+            String site = siteOf(URI.create(domain).getHost());
+            if (site == null) {
+                site = "";
+            }
+            List<String> siteDomains = unloadedSites.get(site);
+            if (siteDomains == null) {
+                siteDomains = new ArrayList<String>();
+                unloadedSites.put(site, siteDomains);
+            }
+            siteDomains.add(domain);
+        }
+    }
+
+    /**
+     * Decodes cookies of all stored domains of the site into the cache.
+     */
+    private void loadSite(String site) {
+        long now = System.currentTimeMillis();
+        for (String domain : unloadedSites.remove(site)) {
+            // Get the serialized cookies under the domain
+            Map<String, String> encodedCookies;
+            try {
+                encodedCookies = storage.loadCookies(domain);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, String.format("Failed to load stored cookies [domain=%s]", domain), e);
+                continue;
+            }
+            if (encodedCookies.isEmpty()) {
+                continue;
+            }
+
+            URI uri = URI.create(domain);
+            List<StoredCookie> cookies = new ArrayList<StoredCookie>();
+            cookiesCache.put(uri, cookies);
+            for (Map.Entry<String, String> entry : encodedCookies.entrySet()) {
+                // deserialize the cookie and add it to our cache
+                String encodedCookie = entry.getValue();
+                HttpCookie cookie = decodeCookie(encodedCookie);
+                if (cookie == null) {
+                    continue;
+                }
+                StoredCookie stored = new StoredCookie(uri, cookie, now);
+                if (stored.hasExpired(now)) {
+                    markPending(uri, entry.getKey()); // drop it from the persistent store as well
+                    continue;
+                }
+                cookies.add(stored);
+                track(stored);
+                if (!encodedCookie.startsWith(BINARY_COOKIE_PREFIX)) {
+                    markPending(uri, cookie.getName()); // migrate to binary form
                 }
             }
+            while (maxCookiesPerDomain > 0 && cookies.size() > maxCookiesPerDomain) {
+                removeStored(Collections.min(cookies, LRU_ORDER));
+            }
+        }
+        if (maxCookies > 0 && cookieCount > maxCookies) {
+            evictLeastRecentlyUsed(cookieCount - maxCookies, null);
         }
+        publish();
     }
 
-    public synchronized void add(URI uri, HttpCookie cookie) {
+    /**
+     * @return last two labels of the host or <code>null</code> for unqualified (or missing) host
+     */
+    private static String siteOf(String host) {
+        if (host == null) {
+            return null;
+        }
+        String normalizedHost = host.toLowerCase(Locale.US);
+        int lastDot = normalizedHost.lastIndexOf('.');
+        if (lastDot <= 0) {
+            return null;
+        }
+        int secondLastDot = normalizedHost.lastIndexOf('.', lastDot - 1);
+        return secondLastDot < 0 ? normalizedHost : normalizedHost.substring(secondLastDot + 1);
+    }
+
+    public void add(URI uri, HttpCookie cookie) {
         if (cookie == null) {
             throw new NullPointerException("cookie == null");
         }
+        addAll(uri, Collections.singletonList(cookie), null);
+    }
 
-        uri = cookiesUri(uri);
-        List<HttpCookie> cookies = cookiesCache.get(uri);
-        if (cookies == null) {
-            cookies = new ArrayList<HttpCookie>();
-            cookiesCache.put(uri, cookies);
-        } else {
-            cookies.remove(cookie);
+    /**
+     * Adds cookies under single lock acquisition and persists them in one write.
+     *
+     * @param okHttpCookies OkHttp representation of the added cookies (same order)
+     *                      cached for {@link PersistentCookieJar}, can be <code>null</code>
+     */
+    void addAll(URI uri, List<HttpCookie> cookies, List<okhttp3.Cookie> okHttpCookies) {
+        if (cookies.isEmpty()) {
+            return;
         }
-        cookies.add(cookie);
 
-        // Save cookie into persistent store
-        SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
-        prefsWriter.putString(COOKIE_DOMAIN_STORE, TextUtils.join(",", cookiesCache.keySet()));
+        synchronized (this) {
+            uri = cookiesUri(uri);
+            ensureLoaded(uri != null ? uri.getHost() : null);
+            long now = System.currentTimeMillis();
+            purgeExpired(now);
 
-        Set<String> cookieNames = new HashSet<String>();
-        for (HttpCookie httpCookie : cookies) {
-            cookieNames.add(httpCookie.getName());
-            prefsWriter.putString(COOKIE_NAME_PREFIX + uri + httpCookie.getName(),
-                    encodeCookie(new SerializableHttpCookie(httpCookie)));
+            List<StoredCookie> uriCookies = cookiesCache.get(uri);
+            if (uriCookies == null) {
+                uriCookies = new ArrayList<StoredCookie>();
+                cookiesCache.put(uri, uriCookies);
+                unpublishedUris.add(uri);
+            }
+            for (int i = 0; i < cookies.size(); i++) {
+                HttpCookie cookie = cookies.get(i);
+                int replacedIndex = indexOf(uriCookies, cookie);
+                if (replacedIndex >= 0) {
+                    removeStored(uriCookies.get(replacedIndex));
+                }
+                StoredCookie stored = new StoredCookie(uri, cookie, now);
+                if (okHttpCookies != null) {
+                    stored.okHttpCookie = okHttpCookies.get(i);
+                }
+                uriCookies.add(stored);
+                track(stored);
+                markPending(uri, cookie.getName());
+
+                // RFC 6265 5.3 storage limits
+                while (maxCookiesPerDomain > 0 && uriCookies.size() > maxCookiesPerDomain) {
+                    removeStored(leastRecentlyUsed(uriCookies, stored));
+                }
+                if (maxCookies > 0 && cookieCount > maxCookies) {
+                    evictLeastRecentlyUsed(cookieCount - maxCookies, stored);
+                }
+            }
+            publish();
         }
-        prefsWriter.putString(COOKIE_DOMAIN_PREFIX + uri, TextUtils.join(",", cookieNames));
-        prefsWriter.commit();
+
+        // Save cookie into persistent store
+        persist();
     }
 
-    public synchronized List<HttpCookie> get(URI uri) {
+    public List<HttpCookie> get(URI uri) {
         if (uri == null) {
             throw new NullPointerException("uri == null");
         }
 
+        Snapshot snapshot = this.snapshot;
+        if (!snapshot.loaded) {
+            synchronized (this) {
+                ensureLoaded(uri.getHost());
+            }
+            snapshot = this.snapshot;
+        }
+
+        long now = System.currentTimeMillis();
+        boolean expiredSeen = false;
         List<HttpCookie> result = new ArrayList<HttpCookie>();
+        Set<HttpCookie> resultSet = new HashSet<HttpCookie>(); // for dedup, same equality as result.contains()
         // get cookies associated with given URI. If none, returns an empty list
-        List<HttpCookie> cookiesForUri = cookiesCache.get(uri);
+        List<StoredCookie> cookiesForUri = snapshot.cookiesByUri.get(uri);
         if (cookiesForUri != null) {
-            for (Iterator<HttpCookie> i = cookiesForUri.iterator(); i.hasNext(); ) {
-                HttpCookie cookie = i.next();
-                if (cookie.hasExpired()) {
-                    i.remove(); // remove expired cookies
+            for (StoredCookie stored : cookiesForUri) {
+                if (stored.hasExpired(now)) {
+                    expiredSeen = true;
                 } else {
-                    result.add(cookie);
+                    stored.lastAccessed = now;
+                    result.add(stored.cookie);
+                    resultSet.add(stored.cookie);
                 }
             }
         }
 
-        // get all cookies that domain matches the URI
-        for (Map.Entry<URI, List<HttpCookie>> entry : cookiesCache.entrySet()) {
-            if (uri.equals(entry.getKey())) {
+        // get all cookies that domain matches the URI,
+        // the index narrows the scan down to cookies whose domain is a suffix of the host
+        List<StoredCookie> candidates = new ArrayList<StoredCookie>();
+        snapshot.domainIndex.collectCandidates(uri.getHost(), candidates);
+        for (StoredCookie stored : candidates) {
+            if (uri.equals(stored.uri)) {
                 continue; // skip the given URI; we've already handled it
             }
-            List<HttpCookie> entryCookies = entry.getValue();
-            for (Iterator<HttpCookie> i = entryCookies.iterator(); i.hasNext(); ) {
-                HttpCookie cookie = i.next();
-                if (!HttpCookie.domainMatches(cookie.getDomain(), uri.getHost())) {
-                    continue;
-                }
-                if (cookie.hasExpired()) {
-                    i.remove(); // remove expired cookies
-                } else if (!result.contains(cookie)) {
-                    result.add(cookie);
-                }
+            HttpCookie cookie = stored.cookie;
+            if (!HttpCookie.domainMatches(cookie.getDomain(), uri.getHost())) {
+                continue;
+            }
+            if (stored.hasExpired(now)) {
+                expiredSeen = true;
+            } else if (resultSet.add(cookie)) {
+                stored.lastAccessed = now;
+                result.add(cookie);
             }
         }
 
+        if (expiredSeen) {
+            schedulePurge(); // remove expired cookies
+        }
         return Collections.unmodifiableList(result);
     }
 
-    public synchronized List<HttpCookie> getCookies() {
+    /**
+     * Lock-free check whether the cookie (including its value) is stored under given URI and hasn't expired.
+     */
+    boolean contains(URI uri, HttpCookie cookie) {
+        URI storedUri = cookiesUri(uri);
+        Snapshot snapshot = this.snapshot;
+        if (!snapshot.loaded) {
+            synchronized (this) {
+                ensureLoaded(storedUri != null ? storedUri.getHost() : null);
+            }
+            snapshot = this.snapshot;
+        }
+
+        List<StoredCookie> cookies = snapshot.cookiesByUri.get(storedUri);
+        int index = cookies != null ? indexOf(cookies, cookie) : -1;
+        if (index < 0) {
+            return false;
+        }
+        StoredCookie stored = cookies.get(index);
+        return !stored.hasExpired(System.currentTimeMillis())
+                && TextUtils.equals(stored.cookie.getValue(), cookie.getValue());
+    }
+
+    /**
+     * Lock-free lookup of live cookies whose domain is a suffix of given host,
+     * used by {@link PersistentCookieJar} which does the exact matching itself.
+     */
+    void collectCandidates(String host, List<StoredCookie> result) {
+        Snapshot snapshot = this.snapshot;
+        if (!snapshot.loaded) {
+            synchronized (this) {
+                ensureLoaded(host);
+            }
+            snapshot = this.snapshot;
+        }
+
+        long now = System.currentTimeMillis();
+        boolean expiredSeen = false;
+        List<StoredCookie> candidates = new ArrayList<StoredCookie>();
+        snapshot.domainIndex.collectCandidates(host, candidates);
+        for (StoredCookie stored : candidates) {
+            if (stored.hasExpired(now)) {
+                expiredSeen = true;
+            } else {
+                result.add(stored);
+            }
+        }
+
+        if (expiredSeen) {
+            schedulePurge(); // remove expired cookies
+        }
+    }
+
+    public List<HttpCookie> getCookies() {
+        Snapshot snapshot = loadedSnapshot();
+
+        long now = System.currentTimeMillis();
+        boolean expiredSeen = false;
         List<HttpCookie> result = new ArrayList<HttpCookie>();
-        for (List<HttpCookie> list : cookiesCache.values()) {
-            for (Iterator<HttpCookie> i = list.iterator(); i.hasNext(); ) {
-                HttpCookie cookie = i.next();
-                if (cookie.hasExpired()) {
-                    i.remove(); // remove expired cookies
-                } else if (!result.contains(cookie)) {
-                    result.add(cookie);
+        Set<HttpCookie> resultSet = new HashSet<HttpCookie>();
+        for (List<StoredCookie> cookies : snapshot.cookiesByUri.values()) {
+            for (StoredCookie stored : cookies) {
+                if (stored.hasExpired(now)) {
+                    expiredSeen = true;
+                } else if (resultSet.add(stored.cookie)) {
+                    result.add(stored.cookie);
                 }
             }
         }
+
+        if (expiredSeen) {
+            schedulePurge(); // remove expired cookies
+        }
         return Collections.unmodifiableList(result);
     }
 
-    public synchronized List<URI> getURIs() {
-        List<URI> result = new ArrayList<URI>(cookiesCache.keySet());
+    public List<URI> getURIs() {
+        List<URI> result = new ArrayList<URI>(loadedSnapshot().cookiesByUri.keySet());
         result.remove(null); // sigh
         return Collections.unmodifiableList(result);
     }
 
-    public synchronized boolean remove(URI uri, HttpCookie cookie) {
+    /**
+     * @return snapshot with all stored cookies loaded
+     */
+    private Snapshot loadedSnapshot() {
+        Snapshot snapshot = this.snapshot;
+        if (!snapshot.loaded) {
+            synchronized (this) {
+                ensureAllLoaded();
+            }
+            snapshot = this.snapshot;
+        }
+        return snapshot;
+    }
+
+    public boolean remove(URI uri, HttpCookie cookie) {
         if (cookie == null) {
             throw new NullPointerException("cookie == null");
         }
 
-        if (cookiesCache.containsKey(uri) && cookiesCache.get(uri).remove(cookie)) {
-            SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
+        synchronized (this) {
+            ensureLoaded(uri != null ? uri.getHost() : null);
+            List<StoredCookie> cookies = cookiesCache.get(uri);
+            int removedIndex = cookies != null ? indexOf(cookies, cookie) : -1;
+            if (removedIndex < 0) {
+                return false;
+            }
+            removeStored(cookies.get(removedIndex));
+            publish();
+        }
+
+        persist();
+        return true;
+    }
 
-            List<HttpCookie> cookies = cookiesCache.get(uri);
-            Set<String> cookieNames = new HashSet<String>();
-            for (HttpCookie httpCookie : cookies) {
-                cookieNames.add(httpCookie.getName());
+    /**
+     * Removes all cookies with given name regardless of the URI they are stored under.
+     * Cookies are looked up by a name index and the removal is persisted in a single write.
+     *
+     * @return <code>true</code> if any cookie has been removed
+     */
+    public boolean removeByName(String name) {
+        if (name == null) {
+            throw new NullPointerException("name == null");
+        }
+
+        synchronized (this) {
+            ensureAllLoaded(); // cookies of sites not loaded yet have to go as well
+            Set<StoredCookie> sameName = nameIndex.get(name);
+            if (sameName == null) {
+                return false;
             }
+            for (StoredCookie stored : new ArrayList<StoredCookie>(sameName)) {
+                removeStored(stored);
+            }
+            publish();
+        }
 
-            prefsWriter.putString(COOKIE_DOMAIN_PREFIX + uri,
-                    TextUtils.join(",", cookieNames));
-            prefsWriter.remove(COOKIE_NAME_PREFIX + uri + cookie.getName());
-            prefsWriter.commit();
-            return true;
+        persist();
+        return true;
+    }
+
+    public boolean removeAll() {
+        boolean result;
+        synchronized (this) {
+            // Clear cookies from cache
+            result = !cookiesCache.isEmpty();
+            cookiesCache.clear();
+            domainIndex = CookieDomainIndex.EMPTY;
+            nameIndex.clear();
+            expiryQueue.clear();
+            cookieCount = 0;
+            readStoredDomains();
+            result |= !unloadedSites.isEmpty();
+            unloadedSites.clear(); // nothing left to load
+            unpublishedUris.clear();
+            snapshot = Snapshot.EMPTY_LOADED; // readers stay lock-free, there is nothing to load
+
+            // Clear cookies from persistent store, anything pending is obsolete now
+            pendingCookieNames.clear();
+            pendingClear = true;
         }
 
-        return false;
+        persist();
+        return result;
     }
 
-    public synchronized boolean removeAll() {
-        // Clear cookies from persistent store
-        cookiePrefs.edit().clear().commit();
+    /**
+     * Synchronously writes all pending changes to the persistent store.
+     * Useful in write-behind mode before the process goes away, no-op otherwise.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            boolean clear;
+            Map<String, Map<String, StoredCookie>> changedCookies = new HashMap<String, Map<String, StoredCookie>>();
+            Map<URI, Set<String>> flushedCookieNames;
+
+            synchronized (this) {
+                flushScheduled = false;
+                if (!pendingClear && pendingCookieNames.isEmpty()) {
+                    return;
+                }
+
+                clear = pendingClear;
+                for (Map.Entry<URI, Set<String>> pending : pendingCookieNames.entrySet()) {
+                    URI uri = pending.getKey();
+                    List<StoredCookie> uriCookies = cookiesCache.get(uri);
+                    if (uriCookies == null) {
+                        uriCookies = Collections.emptyList();
+                    }
+
+                    Map<String, StoredCookie> cookiesByName = new HashMap<String, StoredCookie>();
+                    for (StoredCookie stored : uriCookies) {
+                        cookiesByName.put(stored.cookie.getName(), stored);
+                    }
+
+                    // cookies no longer present under the URI are removed from the storage
+                    Map<String, StoredCookie> uriChanges = new HashMap<String, StoredCookie>();
+                    for (String name : pending.getValue()) {
+                        uriChanges.put(name, cookiesByName.get(name));
+                    }
+                    changedCookies.put(String.valueOf(uri), uriChanges);
+                }
+
+                flushedCookieNames = new HashMap<URI, Set<String>>(pendingCookieNames);
+                pendingClear = false;
+                pendingCookieNames.clear();
+            }
+
+            // encode and write outside of the store monitor so the readers aren't blocked by disk I/O
+            Map<String, Map<String, String>> changes = new HashMap<String, Map<String, String>>();
+            for (Map.Entry<String, Map<String, StoredCookie>> uriChanges : changedCookies.entrySet()) {
+                Map<String, String> encodedChanges = new HashMap<String, String>();
+                for (Map.Entry<String, StoredCookie> change : uriChanges.getValue().entrySet()) {
+                    StoredCookie stored = change.getValue();
+                    encodedChanges.put(change.getKey(),
+                            stored != null ? encodeCookie(stored.cookie, stored.expiresAt) : null);
+                }
+                changes.put(uriChanges.getKey(), encodedChanges);
+            }
+            try {
+                storage.write(clear, changes);
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to persist cookies, changes are kept for the next write", e);
+                synchronized (this) {
+                    // a failed clear must precede anything written later, otherwise removed cookies come back
+                    pendingClear |= clear;
+                    for (Map.Entry<URI, Set<String>> flushed : flushedCookieNames.entrySet()) {
+                        for (String name : flushed.getValue()) {
+                            markPending(flushed.getKey(), name);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a cookie just put into {@link #cookiesCache} with the index and the expiry queue.
+     */
+    private void track(StoredCookie stored) {
+        domainIndex = domainIndex.with(stored);
+        Set<StoredCookie> sameName = nameIndex.get(stored.cookie.getName());
+        if (sameName == null) {
+            sameName = new HashSet<StoredCookie>();
+            nameIndex.put(stored.cookie.getName(), sameName);
+        }
+        sameName.add(stored);
+        unpublishedUris.add(stored.uri);
+        if (stored.expiresAt != Long.MAX_VALUE) {
+            expiryQueue.add(stored);
+        }
+        cookieCount++;
+    }
+
+    /**
+     * Removes the cookie from memory and marks it to be removed from the persistent store.
+     */
+    private void removeStored(StoredCookie stored) {
+        cookiesCache.get(stored.uri).remove(stored);
+        domainIndex = domainIndex.without(stored);
+        Set<StoredCookie> sameName = nameIndex.get(stored.cookie.getName());
+        sameName.remove(stored);
+        if (sameName.isEmpty()) {
+            nameIndex.remove(stored.cookie.getName());
+        }
+        unpublishedUris.add(stored.uri);
+        stored.removed = true;
+        cookieCount--;
+        markPending(stored.uri, stored.cookie.getName());
+    }
+
+    /**
+     * Makes changes done by writers visible to readers. Only the lists of URIs modified
+     * since the last publish are copied.
+     */
+    private void publish() {
+        Snapshot current = snapshot;
+        boolean loaded = storedDomainsRead && unloadedSites.isEmpty();
+        if (unpublishedUris.isEmpty() && current.domainIndex == domainIndex && current.loaded == loaded) {
+            return;
+        }
+
+        Map<URI, List<StoredCookie>> cookiesByUri = new HashMap<URI, List<StoredCookie>>(current.cookiesByUri);
+        for (URI uri : unpublishedUris) {
+            List<StoredCookie> cookies = cookiesCache.get(uri);
+            if (cookies == null) {
+                cookiesByUri.remove(uri);
+            } else {
+                cookiesByUri.put(uri, Collections.unmodifiableList(new ArrayList<StoredCookie>(cookies)));
+            }
+        }
+        unpublishedUris.clear();
+        snapshot = new Snapshot(Collections.unmodifiableMap(cookiesByUri), domainIndex, loaded);
+    }
+
+    /**
+     * Lets background thread remove expired cookies (and persist the removal)
+     * so the readers don't have to take the store monitor.
+     */
+    private void schedulePurge() {
+        if (!purgeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        backgroundExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean purged;
+                synchronized (PersistentHttpCookieStore.this) {
+                    purgeScheduled.set(false);
+                    purged = purgeExpired(System.currentTimeMillis());
+                    publish();
+                }
+                if (purged) {
+                    persist();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes all cookies which expired by given time.
+     *
+     * @return <code>true</code> if any cookie has been removed
+     */
+    private boolean purgeExpired(long now) {
+        boolean purged = false;
+        while (!expiryQueue.isEmpty() && expiryQueue.peek().hasExpired(now)) {
+            StoredCookie stored = expiryQueue.poll();
+            if (!stored.removed) {
+                removeStored(stored);
+                purged = true;
+            }
+        }
+
+        // replaced and removed cookies stay queued until they expire, don't let them pile up
+        if (expiryQueue.size() > 2 * cookieCount + 32) {
+            PriorityQueue<StoredCookie> compacted = new PriorityQueue<StoredCookie>(cookieCount + 1, EXPIRY_ORDER);
+            for (StoredCookie stored : expiryQueue) {
+                if (!stored.removed) {
+                    compacted.add(stored);
+                }
+            }
+            expiryQueue = compacted;
+        }
+        return purged;
+    }
+
+    /**
+     * Evicts given number of least recently used cookies across all loaded domains.
+     *
+     * @param keep cookie which must not be evicted, can be null
+     */
+    private void evictLeastRecentlyUsed(int count, StoredCookie keep) {
+        List<StoredCookie> all = new ArrayList<StoredCookie>(cookieCount);
+        for (List<StoredCookie> cookies : cookiesCache.values()) {
+            all.addAll(cookies);
+        }
+        Collections.sort(all, LRU_ORDER);
+        for (int i = 0; i < all.size() && count > 0; i++) {
+            if (all.get(i) != keep) {
+                removeStored(all.get(i));
+                count--;
+            }
+        }
+    }
 
-        // Clear cookies from cache
-        boolean result = !cookiesCache.isEmpty();
-        cookiesCache.clear();
+    private static StoredCookie leastRecentlyUsed(List<StoredCookie> cookies, StoredCookie keep) {
+        StoredCookie result = null;
+        for (StoredCookie stored : cookies) {
+            if (stored != keep && (result == null || stored.lastAccessed < result.lastAccessed)) {
+                result = stored;
+            }
+        }
         return result;
     }
 
+    private static int indexOf(List<StoredCookie> cookies, HttpCookie cookie) {
+        for (int i = 0; i < cookies.size(); i++) {
+            if (cookies.get(i).cookie.equals(cookie)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
-     * Serializes HttpCookie object into String
+     * Records that stored state of the cookie needs to be rewritten on next flush.
+     */
+    private void markPending(URI uri, String cookieName) {
+        Set<String> names = pendingCookieNames.get(uri);
+        if (names == null) {
+            names = new HashSet<String>();
+            pendingCookieNames.put(uri, names);
+        }
+        names.add(cookieName);
+    }
+
+    /**
+     * Writes pending changes right away or, in write-behind mode, makes sure
+     * a flush is scheduled. Must not be called while holding the store monitor.
+     */
+    private void persist() {
+        if (flushIntervalMs == 0) {
+            flush();
+            return;
+        }
+
+        synchronized (this) {
+            if (flushScheduled) {
+                return; // coalesced with an already scheduled flush
+            }
+            flushScheduled = true;
+        }
+        backgroundExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Serializes HttpCookie object into String using {@link CookieCodec}
+     *
+     * @param cookie cookie to be encoded, can be null
+     * @param expiresAt absolute expiry time in millis, {@link Long#MAX_VALUE} for session cookies
+     * @return cookie encoded as String
+     */
+    protected String encodeCookie(HttpCookie cookie, long expiresAt) {
+        if (cookie == null)
+            return null;
+
+        String base64 = ByteString.of(CookieCodec.encode(cookie, expiresAt)).base64();
+        int end = base64.length();
+        while (end > 0 && base64.charAt(end - 1) == '=') {
+            end--; // stored unpadded
+        }
+        return BINARY_COOKIE_PREFIX + base64.substring(0, end);
+    }
+
+    /**
+     * Serializes HttpCookie object into String in the legacy format
+     * (hex encoded Java serialization). No longer written by the store.
      *
      * @param cookie cookie to be encoded, can be null
      * @return cookie encoded as String
@@ -221,6 +928,30 @@ public class PersistentHttpCookieStore implements CookieStore {
      * @return decoded cookie or null if exception occured
      */
     protected HttpCookie decodeCookie(String cookieString) {
+        if (!cookieString.startsWith(BINARY_COOKIE_PREFIX)) {
+            return decodeLegacyCookie(cookieString);
+        }
+
+        ByteString bytes = ByteString.decodeBase64(cookieString.substring(BINARY_COOKIE_PREFIX.length()));
+        if (bytes == null) {
+            Log.d(LOG_TAG, "Bad Base64 in decodeCookie");
+            return null;
+        }
+        try {
+            return CookieCodec.decode(bytes.toByteArray());
+        } catch (IOException e) {
+            Log.d(LOG_TAG, "IOException in decodeCookie", e);
+        }
+        return null;
+    }
+
+    /**
+     * Returns HttpCookie decoded from cookie string in the legacy format
+     *
+     * @param cookieString hex encoded serialized {@link SerializableHttpCookie}
+     * @return decoded cookie or null if exception occured
+     */
+    protected HttpCookie decodeLegacyCookie(String cookieString) {
         byte[] bytes = hexStringToByteArray(cookieString);
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(
                 bytes);
@@ -232,9 +963,9 @@ public class PersistentHttpCookieStore implements CookieStore {
             cookie = ((SerializableHttpCookie) objectInputStream.readObject())
                     .getCookie();
         } catch (IOException e) {
-            Log.d(LOG_TAG, "IOException in decodeCookie", e);
+            Log.d(LOG_TAG, "IOException in decodeLegacyCookie", e);
         } catch (ClassNotFoundException e) {
-            Log.d(LOG_TAG, "ClassNotFoundException in decodeCookie", e);
+            Log.d(LOG_TAG, "ClassNotFoundException in decodeLegacyCookie", e);
         }
 
         return cookie;
@@ -287,4 +1018,108 @@ public class PersistentHttpCookieStore implements CookieStore {
             return uri; // probably a URI with no host
         }
     }
+
+    /**
+     * Immutable view of the store published to readers.
+     */
+    private static class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(Collections.<URI, List<StoredCookie>>emptyMap(),
+                CookieDomainIndex.EMPTY, false);
+
+        /**
+         * Empty store with nothing left to load (e.g. once all cookies are removed).
+         */
+        static final Snapshot EMPTY_LOADED = new Snapshot(Collections.<URI, List<StoredCookie>>emptyMap(),
+                CookieDomainIndex.EMPTY, true);
+
+        /**
+         * this map may have null keys!
+         */
+        final Map<URI, List<StoredCookie>> cookiesByUri;
+
+        final CookieDomainIndex domainIndex;
+
+        /**
+         * Whether all stored cookies are loaded (see {@link Config#setLazyLoading(boolean)}).
+         */
+        final boolean loaded;
+
+        Snapshot(Map<URI, List<StoredCookie>> cookiesByUri, CookieDomainIndex domainIndex, boolean loaded) {
+            this.cookiesByUri = cookiesByUri;
+            this.domainIndex = domainIndex;
+            this.loaded = loaded;
+        }
+    }
+
+    /**
+     * Configuration of {@link PersistentHttpCookieStore}.
+     */
+    public static class Config {
+
+        private long flushIntervalMs;
+
+        private boolean lazyLoading;
+
+        private int maxCookiesPerDomain = 50;
+
+        private int maxCookies = 3000;
+
+        private CookieStorage storage;
+
+        /**
+         * Enables write-behind mode. Changes are persisted by a background writer
+         * at most once per given interval. Zero (default) persists every change synchronously.
+         */
+        public Config setFlushInterval(long interval, TimeUnit unit) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("interval < 0");
+            }
+            this.flushIntervalMs = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Enables lazy loading. The store constructor doesn't decode stored cookies,
+         * they are decoded on a background thread or on first access of the particular site.
+         * Disabled by default.
+         */
+        public Config setLazyLoading(boolean lazyLoading) {
+            this.lazyLoading = lazyLoading;
+            return this;
+        }
+
+        /**
+         * Maximum number of cookies stored per domain (cookie URI host), least recently used
+         * cookies are evicted beyond it. Defaults to 50 (RFC 6265 minimum), zero means unbounded.
+         */
+        public Config setMaxCookiesPerDomain(int maxCookiesPerDomain) {
+            if (maxCookiesPerDomain < 0) {
+                throw new IllegalArgumentException("maxCookiesPerDomain < 0");
+            }
+            this.maxCookiesPerDomain = maxCookiesPerDomain;
+            return this;
+        }
+
+        /**
+         * Maximum number of cookies in the store, least recently used cookies are evicted
+         * beyond it. Defaults to 3000 (RFC 6265 minimum), zero means unbounded.
+         */
+        public Config setMaxCookies(int maxCookies) {
+            if (maxCookies < 0) {
+                throw new IllegalArgumentException("maxCookies < 0");
+            }
+            this.maxCookies = maxCookies;
+            return this;
+        }
+
+        /**
+         * Storage backend of the store. Defaults to {@link JournalCookieStorage} in application
+         * files directory which imports cookies from {@link SharedPreferencesCookieStorage}.
+         */
+        public Config setStorage(CookieStorage storage) {
+            this.storage = storage;
+            return this;
+        }
+    }
 }
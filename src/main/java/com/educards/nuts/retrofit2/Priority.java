@@ -0,0 +1,26 @@
+package com.educards.nuts.retrofit2;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Annotation type to set priority of Retrofit call, see {@link CallPriority}. Calls which are not
+ * annotated have {@link CallPriority#NORMAL} priority unless set by {@link TemplateCall#setPriority(CallPriority)}.
+ * <p>
+ * Example usage:
+ * <blockquote><pre>
+ * &#64;Priority(CallPriority.PREFETCH)
+ * &#64;GET("path/to/items")
+ * TemplateCall&lt;List&lt;Item&gt;&gt; prefetchItems();
+ * </pre></blockquote></p>
+ */
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface Priority {
+
+    CallPriority value();
+
+}
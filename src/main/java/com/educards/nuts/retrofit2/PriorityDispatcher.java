@@ -0,0 +1,231 @@
+package com.educards.nuts.retrofit2;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Limits {@link TemplateCall}s in flight and starts waiting calls in order of their {@link CallPriority}
+ * (FIFO within the same priority) instead of the FIFO order of OkHttp dispatcher.
+ * <p>
+ * Some of the slots are reserved for {@link CallPriority#IMMEDIATE} calls so that a call the user
+ * is waiting for starts right away even if the other slots are taken by background calls.
+ * {@link CallPriority#PREFETCH} calls are deferred while any immediate call is in flight
+ * or a call of higher priority is waiting and only a few of them may be in flight at once.
+ * Calls already started are not interrupted.
+ * </p>
+ * <p>
+ * The dispatcher is wired by {@link DefaultRetrofitBuilder.Config#setPriorityDispatcher(PriorityDispatcher)}.
+ * </p>
+ */
+public class PriorityDispatcher {
+
+    private static final CallPriority[] PRIORITIES = CallPriority.values();
+
+    private int maxCalls = 8;
+
+    private int reservedImmediateCalls = 2;
+
+    private int maxPrefetchCalls = 2;
+
+    /**
+     * Calls in flight by priority. Guarded by <code>this</code>.
+     */
+    private final int[] inFlight = new int[PRIORITIES.length];
+
+    private int inFlightTotal;
+
+    /**
+     * Waiting calls by priority. Guarded by <code>this</code>.
+     */
+    private final Waiters waiters = new Waiters();
+
+    /**
+     * Maximum number of calls in flight, defaults to 8.
+     */
+    public synchronized PriorityDispatcher setMaxCalls(int maxCalls) {
+        if (maxCalls <= reservedImmediateCalls) {
+            throw new IllegalArgumentException("maxCalls <= reservedImmediateCalls");
+        }
+        this.maxCalls = maxCalls;
+        return this;
+    }
+
+    /**
+     * Number of slots only {@link CallPriority#IMMEDIATE} calls may use, defaults to 2.
+     */
+    public synchronized PriorityDispatcher setReservedImmediateCalls(int reservedImmediateCalls) {
+        if (reservedImmediateCalls < 0 || reservedImmediateCalls >= maxCalls) {
+            throw new IllegalArgumentException("0 <= reservedImmediateCalls < maxCalls must hold");
+        }
+        this.reservedImmediateCalls = reservedImmediateCalls;
+        return this;
+    }
+
+    /**
+     * Maximum number of {@link CallPriority#PREFETCH} calls in flight, defaults to 2.
+     */
+    public synchronized PriorityDispatcher setMaxPrefetchCalls(int maxPrefetchCalls) {
+        if (maxPrefetchCalls < 1) {
+            throw new IllegalArgumentException("maxPrefetchCalls < 1");
+        }
+        this.maxPrefetchCalls = maxPrefetchCalls;
+        return this;
+    }
+
+    public synchronized int getInFlight(CallPriority priority) {
+        return inFlight[priority.ordinal()];
+    }
+
+    public synchronized int getWaiting(CallPriority priority) {
+        return waiters.size(priority);
+    }
+
+    synchronized int getMaxCalls() {
+        return maxCalls;
+    }
+
+    /**
+     * Takes a slot for a call of given priority or queues the waiter which is run once it gets the slot.
+     *
+     * @return <code>true</code> if the slot was taken (and the waiter won't be run)
+     */
+    boolean acquire(CallPriority priority, Runnable waiter) {
+        synchronized (this) {
+            if (waiters.isEmpty(priority) && canStart(priority)) {
+                take(priority);
+                return true;
+            }
+            waiters.add(priority, waiter);
+        }
+        return false;
+    }
+
+    /**
+     * @return <code>true</code> if the waiter was still waiting (and won't be run)
+     */
+    boolean withdraw(CallPriority priority, Runnable waiter) {
+        Deque<Runnable> started;
+        synchronized (this) {
+            if (!waiters.remove(priority, waiter)) {
+                return false;
+            }
+            started = startWaiting(); // e.g. prefetch waiting for this call
+        }
+        run(started);
+        return true;
+    }
+
+    /**
+     * Returns the slot of a completed call of given priority and starts waiting calls it makes room for.
+     */
+    void release(CallPriority priority) {
+        Deque<Runnable> started;
+        synchronized (this) {
+            inFlight[priority.ordinal()]--;
+            inFlightTotal--;
+            started = startWaiting();
+        }
+        run(started);
+    }
+
+    private boolean canStart(CallPriority priority) {
+        switch (priority) {
+            case IMMEDIATE:
+                return inFlightTotal < maxCalls;
+            case NORMAL:
+                return inFlightTotal < maxCalls - reservedImmediateCalls && waiters.isEmpty(CallPriority.IMMEDIATE);
+            default:
+                return inFlightTotal < maxCalls - reservedImmediateCalls
+                        && inFlight[CallPriority.PREFETCH.ordinal()] < maxPrefetchCalls
+                        && inFlight[CallPriority.IMMEDIATE.ordinal()] == 0
+                        && waiters.isEmpty(CallPriority.IMMEDIATE) && waiters.isEmpty(CallPriority.NORMAL);
+        }
+    }
+
+    private void take(CallPriority priority) {
+        inFlight[priority.ordinal()]++;
+        inFlightTotal++;
+    }
+
+    /**
+     * @return waiters which got their slots, <code>null</code> if none
+     */
+    private Deque<Runnable> startWaiting() {
+        Deque<Runnable> started = null;
+        for (CallPriority priority : PRIORITIES) {
+            while (!waiters.isEmpty(priority) && canStart(priority)) {
+                if (started == null) {
+                    started = new ArrayDeque<Runnable>();
+                }
+                take(priority);
+                started.addLast(waiters.poll(priority));
+            }
+        }
+        return started;
+    }
+
+    private static void run(Deque<Runnable> started) {
+        if (started != null) {
+            for (Runnable waiter : started) {
+                waiter.run();
+            }
+        }
+    }
+
+    /**
+     * FIFO queues of waiters by priority, not thread safe.
+     */
+    static class Waiters {
+
+        @SuppressWarnings("unchecked")
+        private final Deque<Runnable>[] queues = new Deque[PRIORITIES.length];
+
+        Waiters() {
+            for (int i = 0; i < queues.length; i++) {
+                queues[i] = new ArrayDeque<Runnable>();
+            }
+        }
+
+        void add(CallPriority priority, Runnable waiter) {
+            queues[priority.ordinal()].addLast(waiter);
+        }
+
+        boolean remove(CallPriority priority, Runnable waiter) {
+            return queues[priority.ordinal()].remove(waiter);
+        }
+
+        Runnable poll(CallPriority priority) {
+            return queues[priority.ordinal()].pollFirst();
+        }
+
+        /**
+         * @return first waiter of the highest priority, <code>null</code> if there is none
+         */
+        Runnable poll() {
+            for (Deque<Runnable> queue : queues) {
+                if (!queue.isEmpty()) {
+                    return queue.pollFirst();
+                }
+            }
+            return null;
+        }
+
+        boolean isEmpty(CallPriority priority) {
+            return queues[priority.ordinal()].isEmpty();
+        }
+
+        boolean isEmpty() {
+            for (Deque<Runnable> queue : queues) {
+                if (!queue.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int size(CallPriority priority) {
+            return queues[priority.ordinal()].size();
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package com.educards.nuts.retrofit2;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Annotation type to mark Retrofit call which is retried on transient failures according to
+ * the {@link RetryPolicy} configured by {@link TemplateCallAdapterFactory.Config#setRetryPolicy(RetryPolicy)}
+ * (or the default one if there is none). Marks the call as idempotent so calls of any HTTP method
+ * (e.g. POST with idempotency key) may be annotated. Calls of idempotent HTTP methods are retried
+ * without the annotation once a retry policy is configured.
+ * <p>
+ * Example usage:
+ * <blockquote><pre>
+ * &#64;Retry(maxAttempts = 5, hedge = true)
+ * &#64;GET("path/to/service/method")
+ * TemplateCall&lt;String&gt; getServerItem(@Path("uuid") UUID itemUuid);
+ * </pre></blockquote></p>
+ */
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface Retry {
+
+    /**
+     * Maximum number of attempts including the first one, zero for the policy default.
+     */
+    int maxAttempts() default 0;
+
+    /**
+     * Whether a slow GET call is hedged even if hedging is not enabled by the policy,
+     * see {@link RetryPolicy#setHedging(boolean)}.
+     */
+    boolean hedge() default false;
+
+}
@@ -0,0 +1,217 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.Response;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How calls are retried on transient failures (IO errors and responses with
+ * {@link #setRetryableStatusCodes(int...) retryable status}).
+ * <p>
+ * Attempts are delayed by exponential backoff with full jitter unless the server says how long
+ * to wait by <code>Retry-After</code>. Retries are limited by a budget shared by all calls using
+ * the policy (token bucket which is refilled by successful calls) so retries don't multiply
+ * the load of a server which is failing anyway.
+ * </p>
+ * <p>
+ * With {@link #setHedging(boolean) hedging} a GET call which doesn't complete within its
+ * usual time (p95 measured by {@link CallMetrics} if available) is sent once more and the
+ * first response is taken, the other copy is canceled. Hedges are paid from the retry budget.
+ * </p>
+ * <p>
+ * Retries and hedges are attempts of the same {@link TemplateCall}, they don't pass {@link CircuitBreaker}
+ * and take no {@link ConcurrencyLimiter} permit again (a hedged call has two attempts in flight
+ * on a single permit). Each attempt reports its outcome to both though.
+ * </p>
+ */
+public class RetryPolicy {
+
+    private int maxAttempts = 3;
+
+    private long initialBackoffMs = 500;
+
+    private long maxBackoffMs = 10 * 1000;
+
+    private long maxRetryAfterMs = 60 * 1000;
+
+    private int[] retryableStatusCodes = {408, 429, 502, 503, 504};
+
+    private boolean hedging;
+
+    private long hedgeDelayMs = 1000;
+
+    private int maxTokens = 10;
+
+    private double tokenRatio = 0.1;
+
+    /**
+     * Retry budget. Guarded by <code>this</code>.
+     */
+    private double tokens = maxTokens;
+
+    /**
+     * Maximum number of attempts including the first one, defaults to 3.
+     */
+    public RetryPolicy setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts < 1");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Backoff before the first retry and the maximum one. The backoff doubles with each attempt
+     * and the actual delay is random between zero and the backoff. Defaults to 500ms and 10s.
+     */
+    public RetryPolicy setBackoff(long initialBackoff, long maxBackoff, TimeUnit unit) {
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("0 <= initialBackoff <= maxBackoff must hold");
+        }
+        this.initialBackoffMs = unit.toMillis(initialBackoff);
+        this.maxBackoffMs = unit.toMillis(maxBackoff);
+        return this;
+    }
+
+    /**
+     * Longest <code>Retry-After</code> waited for, responses asking to wait longer are not retried.
+     * Defaults to 1 minute.
+     */
+    public RetryPolicy setMaxRetryAfter(long maxRetryAfter, TimeUnit unit) {
+        if (maxRetryAfter < 0) {
+            throw new IllegalArgumentException("maxRetryAfter < 0");
+        }
+        this.maxRetryAfterMs = unit.toMillis(maxRetryAfter);
+        return this;
+    }
+
+    /**
+     * Response status codes which are retried, defaults to 408, 429, 502, 503 and 504.
+     */
+    public RetryPolicy setRetryableStatusCodes(int... retryableStatusCodes) {
+        int[] codes = retryableStatusCodes.clone();
+        Arrays.sort(codes);
+        this.retryableStatusCodes = codes;
+        return this;
+    }
+
+    /**
+     * Retry budget. Each retry (or hedge) takes one token, each successful call returns
+     * <code>tokenRatio</code> tokens. Retries are allowed while more than half of the tokens
+     * is left. Defaults to 10 tokens and ratio 0.1.
+     */
+    public synchronized RetryPolicy setRetryBudget(int maxTokens, double tokenRatio) {
+        if (maxTokens < 1) {
+            throw new IllegalArgumentException("maxTokens < 1");
+        }
+        if (tokenRatio <= 0) {
+            throw new IllegalArgumentException("tokenRatio <= 0");
+        }
+        this.maxTokens = maxTokens;
+        this.tokenRatio = tokenRatio;
+        this.tokens = maxTokens;
+        return this;
+    }
+
+    /**
+     * Hedges GET calls retried by this policy. Disabled by default.
+     */
+    public RetryPolicy setHedging(boolean hedging) {
+        this.hedging = hedging;
+        return this;
+    }
+
+    /**
+     * Delay of the hedge of a call whose endpoint has no latency measured (yet), defaults to 1s.
+     */
+    public RetryPolicy setHedgeDelay(long hedgeDelay, TimeUnit unit) {
+        if (hedgeDelay <= 0) {
+            throw new IllegalArgumentException("hedgeDelay <= 0");
+        }
+        this.hedgeDelayMs = unit.toMillis(hedgeDelay);
+        return this;
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    boolean isHedging() {
+        return hedging;
+    }
+
+    long getHedgeDelayMs() {
+        return hedgeDelayMs;
+    }
+
+    /**
+     * @return whether calls of given HTTP method are retried without {@link Retry} annotation
+     */
+    static boolean isIdempotent(String method) {
+        return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method)
+                || "DELETE".equals(method) || "OPTIONS".equals(method);
+    }
+
+    /**
+     * Responses which didn't come from the network (e.g. 504 of unsatisfiable <code>only-if-cached</code>
+     * request while offline) are never retried.
+     */
+    boolean isRetryable(Response response) {
+        return response.networkResponse() != null
+                && Arrays.binarySearch(retryableStatusCodes, response.code()) >= 0;
+    }
+
+    /**
+     * @param attempt number of the failed attempt (starting at 1)
+     * @param response failed response, <code>null</code> if the attempt failed with IO error
+     * @return delay of the next attempt, <code>-1</code> if the call should not be retried
+     */
+    long getRetryDelayMs(int attempt, Response response) {
+        if (response != null) {
+            long retryAfterMs = getRetryAfterMs(response);
+            if (retryAfterMs >= 0) {
+                return retryAfterMs <= maxRetryAfterMs ? retryAfterMs : -1;
+            }
+        }
+        long backoffMs = initialBackoffMs << Math.min(attempt - 1, 30);
+        if (backoffMs <= 0 || backoffMs > maxBackoffMs) {
+            backoffMs = maxBackoffMs;
+        }
+        return backoffMs > 0 ? ThreadLocalRandom.current().nextLong(backoffMs + 1) : 0;
+    }
+
+    /**
+     * @return delay requested by <code>Retry-After</code>, <code>-1</code> if there is none
+     */
+    private static long getRetryAfterMs(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            Date date = response.headers().getDate("Retry-After");
+            return date != null ? Math.max(0, date.getTime() - System.currentTimeMillis()) : -1;
+        }
+    }
+
+    /**
+     * @return whether the budget allows one more retry (the token is taken if so)
+     */
+    synchronized boolean tryAcquireRetry() {
+        if (tokens <= maxTokens / 2.0) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        tokens = Math.min(maxTokens, tokens + tokenRatio);
+    }
+
+}
@@ -0,0 +1,369 @@
+package com.educards.nuts.retrofit2;
+
+import android.util.Log;
+import okhttp3.CacheControl;
+import okhttp3.Request;
+import okio.Timeout;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Call retried (and hedged) according to {@link RetryPolicy}. Each attempt is a clone of the original call.
+ * Only the final outcome is delivered, retryable error responses of earlier attempts are discarded.
+ */
+class RetryingCall<T> implements Call<T> {
+
+    private static final String TAG = "RetryingCall";
+
+    /**
+     * Schedules delayed attempts, the attempts themselves run on OkHttp dispatcher.
+     */
+    private static final ScheduledExecutorService SCHEDULER = newScheduler();
+
+    /**
+     * Minimal number of measured calls of the endpoint to derive the hedge delay from.
+     */
+    private static final int MIN_HEDGE_SAMPLES = 20;
+
+    private final Call<T> original;
+
+    private final RetryPolicy policy;
+
+    private final int maxAttempts;
+
+    private final boolean hedge;
+
+    /**
+     * <code>null</code> if calls are not measured.
+     */
+    private final CallMetrics callMetrics;
+
+    private volatile boolean canceled;
+
+    /**
+     * Guarded by <code>this</code>.
+     */
+    private boolean executed;
+
+    /**
+     * Number of attempts started. Guarded by <code>this</code>.
+     */
+    private int attempts;
+
+    /**
+     * Attempts in flight (more than one if hedged). Guarded by <code>this</code>.
+     */
+    private final List<Call<T>> inFlight = new ArrayList<Call<T>>();
+
+    /**
+     * Scheduled retry or hedge. Guarded by <code>this</code>.
+     */
+    private Future<?> scheduled;
+
+    /**
+     * Guarded by <code>this</code>.
+     */
+    private boolean completed;
+
+    private Callback<T> callback;
+
+    RetryingCall(Call<T> original, RetryPolicy policy, int maxAttempts, boolean hedge, CallMetrics callMetrics) {
+        this.original = original;
+        this.policy = policy;
+        this.maxAttempts = maxAttempts;
+        this.hedge = hedge;
+        this.callMetrics = callMetrics;
+    }
+
+    @Override
+    public Response<T> execute() throws IOException {
+        markExecuted();
+        for (int attempt = 1; ; attempt++) {
+            Call<T> call = newAttempt(attempt);
+            synchronized (this) {
+                attempts = attempt;
+                inFlight.add(call);
+            }
+            Response<T> response = null;
+            IOException failure = null;
+            try {
+                response = call.execute();
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    inFlight.remove(call);
+                }
+            }
+            long delayMs = getRetryDelayMs(attempt, response, failure);
+            if (delayMs < 0) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return response;
+            }
+            discard(response);
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for retry");
+            }
+            if (canceled) {
+                throw new IOException("Canceled");
+            }
+        }
+    }
+
+    @Override
+    public void enqueue(Callback<T> callback) {
+        markExecuted();
+        this.callback = callback;
+        start();
+        if (hedge && "GET".equals(original.request().method()) && maxAttempts > 1) {
+            long hedgeDelayMs = getHedgeDelayMs();
+            synchronized (this) {
+                if (!completed) {
+                    scheduled = SCHEDULER.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            hedge();
+                        }
+                    }, hedgeDelayMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private void start() {
+        Call<T> call = null;
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            if (!canceled) {
+                attempts++;
+                call = newAttempt(attempts);
+                inFlight.add(call);
+            } else if (!inFlight.isEmpty()) {
+                return; // the cancellation is reported by the attempt in flight
+            } else {
+                completed = true; // canceled before the attempt started
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                }
+            }
+        }
+        if (call == null) {
+            callback.onFailure(this, new IOException("Canceled"));
+            return;
+        }
+        call.enqueue(new Callback<T>() {
+            @Override
+            public void onResponse(Call<T> call, Response<T> response) {
+                onAttemptCompleted(call, response, null);
+            }
+
+            @Override
+            public void onFailure(Call<T> call, Throwable t) {
+                onAttemptCompleted(call, null, t);
+            }
+        });
+    }
+
+    private void hedge() {
+        synchronized (this) {
+            if (completed || canceled || inFlight.size() != 1 || attempts >= maxAttempts || !policy.tryAcquireRetry()) {
+                return; // completed, waiting for retry or no budget
+            }
+            Log.d(TAG, String.format("Hedging slow call [request=%s]", original.request()));
+        }
+        start();
+    }
+
+    private void onAttemptCompleted(Call<T> call, Response<T> response, Throwable failure) {
+        List<Call<T>> losers;
+        synchronized (this) {
+            inFlight.remove(call);
+            if (completed) {
+                discard(response); // the other copy has won
+                return;
+            }
+            if (!canceled) {
+                boolean retryable = response != null ? policy.isRetryable(response.raw()) : failure instanceof IOException;
+                if (retryable && !inFlight.isEmpty()) {
+                    discard(response); // the other copy may still succeed
+                    return;
+                }
+                long delayMs = getRetryDelayMs(attempts, response, failure);
+                if (delayMs >= 0) {
+                    discard(response);
+                    scheduled = SCHEDULER.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            start();
+                        }
+                    }, delayMs, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            completed = true;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            losers = new ArrayList<Call<T>>(inFlight);
+            inFlight.clear();
+        }
+        for (Call<T> loser : losers) {
+            loser.cancel();
+        }
+        if (response != null) {
+            callback.onResponse(this, response);
+        } else {
+            callback.onFailure(this, failure);
+        }
+    }
+
+    /**
+     * @return delay of the next attempt, <code>-1</code> if the outcome of given attempt is final
+     */
+    private long getRetryDelayMs(int attempt, Response<T> response, Throwable failure) {
+        if (response != null && response.isSuccessful()) {
+            policy.onSuccess();
+            return -1;
+        }
+        if (canceled || attempt >= maxAttempts) {
+            return -1;
+        }
+        boolean retryable = response != null ? policy.isRetryable(response.raw()) : failure instanceof IOException;
+        if (!retryable) {
+            return -1;
+        }
+        long delayMs = policy.getRetryDelayMs(attempt, response != null ? response.raw() : null);
+        if (delayMs < 0 || !policy.tryAcquireRetry()) {
+            return -1;
+        }
+        Log.i(TAG, String.format("Retrying call in %dms [request=%s, attempt=%d, failure=%s]", delayMs,
+                original.request(), attempt, response != null ? response.code() : failure));
+        return delayMs;
+    }
+
+    private long getHedgeDelayMs() {
+        if (callMetrics != null) {
+            LatencyHistogram histogram = callMetrics.getHistogram(callMetrics.getEndpoint(original.request()), CallMetrics.Phase.CALL);
+            if (histogram != null && histogram.getCount() >= MIN_HEDGE_SAMPLES) {
+                return Math.max(1, histogram.getPercentile(95, TimeUnit.MILLISECONDS));
+            }
+        }
+        return policy.getHedgeDelayMs();
+    }
+
+    private Call<T> newAttempt(int attempt) {
+        if (attempt == 1) {
+            return original;
+        }
+        Call<T> call = original.clone();
+        CacheControl cacheControl = HttpCacheInterceptor.getCacheControlOverride(original.request());
+        if (cacheControl != null) {
+            HttpCacheInterceptor.overrideCacheControl(call.request(), cacheControl);
+        }
+        return call;
+    }
+
+    private static void discard(Response<?> response) {
+        if (response == null) {
+            return;
+        }
+        if (response.errorBody() != null) {
+            response.errorBody().close();
+        }
+        if (response.body() instanceof Closeable) {
+            try {
+                ((Closeable) response.body()).close(); // e.g. JsonStream of the losing hedge
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close discarded response body", e);
+            }
+        }
+    }
+
+    private synchronized void markExecuted() {
+        if (executed) {
+            throw new IllegalStateException("Already executed.");
+        }
+        executed = true;
+    }
+
+    @Override
+    public synchronized boolean isExecuted() {
+        return executed;
+    }
+
+    @Override
+    public void cancel() {
+        canceled = true;
+        List<Call<T>> calls;
+        boolean waiting;
+        synchronized (this) {
+            calls = new ArrayList<Call<T>>(inFlight);
+            waiting = !completed && calls.isEmpty() && scheduled != null && callback != null;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+            if (waiting) {
+                completed = true;
+            }
+        }
+        for (Call<T> call : calls) {
+            call.cancel(); // reported to the callback by the attempt
+        }
+        if (waiting) {
+            callback.onFailure(this, new IOException("Canceled"));
+        }
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return canceled;
+    }
+
+    @Override
+    public Call<T> clone() {
+        return new RetryingCall<T>(original.clone(), policy, maxAttempts, hedge, callMetrics);
+    }
+
+    @Override
+    public Request request() {
+        return original.request();
+    }
+
+    @Override
+    public Timeout timeout() {
+        return original.timeout();
+    }
+
+    private static ScheduledExecutorService newScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TemplateCall-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.educards.nuts.retrofit2;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * {@link CookieStorage} keeping cookies in {@link SharedPreferences} (the format used by
+ * {@link PersistentHttpCookieStore} before storage backends were pluggable).
+ * <p>
+ * Every write commits the whole preferences file, prefer {@link JournalCookieStorage} for anything
+ * but reading cookies stored by older versions.
+ * </p>
+ */
+public class SharedPreferencesCookieStorage implements CookieStorage {
+
+    static final String COOKIE_PREFS = "CookiePrefsFile";
+    private static final String COOKIE_NAME_PREFIX = "cookie_";
+    private static final String COOKIE_DOMAIN_PREFIX = "domain_";
+    private static final String COOKIE_DOMAIN_STORE = "domains";
+
+    private final SharedPreferences cookiePrefs;
+
+    public SharedPreferencesCookieStorage(Context context) {
+        this(context.getSharedPreferences(COOKIE_PREFS, 0));
+    }
+
+    public SharedPreferencesCookieStorage(SharedPreferences cookiePrefs) {
+        this.cookiePrefs = cookiePrefs;
+    }
+
+    @Override
+    public Collection<String> loadDomains() {
+        return split(cookiePrefs.getString(COOKIE_DOMAIN_STORE, null));
+    }
+
+    @Override
+    public Map<String, String> loadCookies(String domain) {
+        Map<String, String> result = new HashMap<String, String>();
+        for (String cookieName : split(cookiePrefs.getString(COOKIE_DOMAIN_PREFIX + domain, null))) {
+            String encodedCookie = cookiePrefs.getString(COOKIE_NAME_PREFIX + domain + cookieName, null);
+            if (encodedCookie != null) {
+                result.put(cookieName, encodedCookie);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void write(boolean clear, Map<String, Map<String, String>> changes) throws IOException {
+        SharedPreferences.Editor prefsWriter = cookiePrefs.edit();
+        if (clear) {
+            prefsWriter.clear(); // applied by the editor before any put
+        }
+
+        Set<String> domains = new LinkedHashSet<String>(clear ? Collections.<String>emptyList() : loadDomains());
+        for (Map.Entry<String, Map<String, String>> domainChanges : changes.entrySet()) {
+            String domain = domainChanges.getKey();
+            Set<String> names = new LinkedHashSet<String>(clear ? Collections.<String>emptyList()
+                    : split(cookiePrefs.getString(COOKIE_DOMAIN_PREFIX + domain, null)));
+            for (Map.Entry<String, String> change : domainChanges.getValue().entrySet()) {
+                String key = COOKIE_NAME_PREFIX + domain + change.getKey();
+                if (change.getValue() != null) {
+                    prefsWriter.putString(key, change.getValue());
+                    names.add(change.getKey());
+                } else {
+                    prefsWriter.remove(key);
+                    names.remove(change.getKey());
+                }
+            }
+
+            if (names.isEmpty()) {
+                prefsWriter.remove(COOKIE_DOMAIN_PREFIX + domain);
+                domains.remove(domain);
+            } else {
+                prefsWriter.putString(COOKIE_DOMAIN_PREFIX + domain, TextUtils.join(",", names));
+                domains.add(domain);
+            }
+        }
+        prefsWriter.putString(COOKIE_DOMAIN_STORE, TextUtils.join(",", domains));
+
+        if (!prefsWriter.commit()) {
+            throw new IOException("Failed to commit cookie preferences");
+        }
+    }
+
+    private static List<String> split(String joined) {
+        if (joined == null) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(TextUtils.split(joined, ","));
+    }
+
+}
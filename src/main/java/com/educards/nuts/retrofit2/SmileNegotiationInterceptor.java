@@ -0,0 +1,100 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.*;
+import retrofit2.Invocation;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Negotiates Smile binary payloads handled by {@link CachingJacksonConverterFactory}
+ * and {@link JsonStreamConverterFactory}.
+ * <p>
+ * Requests of endpoints whose response is decoded by those converters prefer Smile (JSON is still accepted)
+ * unless they set <code>Accept</code> explicitly. Endpoints returning raw {@link ResponseBody}
+ * (or no body) are left alone. Once an endpoint responds with Smile, its request bodies encoded
+ * by the converter are sent in Smile too. Endpoints not supporting Smile keep receiving JSON.
+ * </p>
+ */
+class SmileNegotiationInterceptor implements Interceptor {
+
+    static final String ACCEPT = CachingJacksonConverterFactory.SMILE + ", application/json;q=0.9, */*;q=0.8";
+
+    /**
+     * Whether responses of the (Retrofit service) method are decoded by Jackson.
+     */
+    private final ConcurrentMap<Method, Boolean> decodedByJackson = new ConcurrentHashMap<Method, Boolean>();
+
+    /**
+     * Endpoints (host and service method) which responded with Smile.
+     */
+    private final Set<String> smileEndpoints = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Invocation invocation = request.tag(Invocation.class);
+        if (invocation == null || !isDecodedByJackson(invocation.method())) {
+            return chain.proceed(request);
+        }
+        String endpoint = request.url().host() + " " + invocation.method();
+
+        Request.Builder builder = null;
+        if (request.header("Accept") == null) {
+            builder = request.newBuilder().header("Accept", ACCEPT);
+        }
+        if (request.body() instanceof JacksonRequestBody && smileEndpoints.contains(endpoint)) {
+            RequestBody smileBody = ((JacksonRequestBody) request.body()).toSmile();
+            if (builder == null) {
+                builder = request.newBuilder();
+            }
+            builder.method(request.method(), smileBody);
+        }
+
+        Response response = chain.proceed(builder != null ? builder.build() : request);
+        ResponseBody body = response.body();
+        if (body != null && CachingJacksonConverterFactory.isSmile(body.contentType())) {
+            smileEndpoints.add(endpoint);
+        }
+        return response;
+    }
+
+    private boolean isDecodedByJackson(Method method) {
+        Boolean decoded = decodedByJackson.get(method);
+        if (decoded == null) {
+            decoded = isDecodedByJackson(method.getGenericReturnType());
+            decodedByJackson.put(method, decoded);
+        }
+        return decoded;
+    }
+
+    /**
+     * @param returnType return type of a service method, e.g. <code>TemplateCall&lt;Item&gt;</code>
+     * @return <code>false</code> if the response type is handled by Retrofit built-in converters
+     */
+    private static boolean isDecodedByJackson(Type returnType) {
+        if (!(returnType instanceof ParameterizedType)) {
+            return false;
+        }
+        Type responseType = ((ParameterizedType) returnType).getActualTypeArguments()[0];
+        if (responseType instanceof WildcardType) {
+            responseType = ((WildcardType) responseType).getUpperBounds()[0];
+        }
+        if (responseType instanceof ParameterizedType) {
+            responseType = ((ParameterizedType) responseType).getRawType();
+        }
+        if (!(responseType instanceof Class)) {
+            return true; // e.g. generic array
+        }
+        Class<?> rawType = (Class<?>) responseType;
+        return rawType != ResponseBody.class && rawType != Void.class && !"kotlin.Unit".equals(rawType.getName());
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.educards.nuts.retrofit2;
+
+import java.net.HttpCookie;
+import java.net.URI;
+
+/**
+ * Cookie held by {@link PersistentHttpCookieStore} together with the URI it's stored under
+ * and the bookkeeping needed for expiry and LRU eviction.
+ * Mutable fields are guarded by the owning store, except for {@link #lastAccessed}
+ * and {@link #okHttpCookie} which lock-free readers update.
+ */
+class StoredCookie {
+
+    final URI uri;
+
+    final HttpCookie cookie;
+
+    /**
+     * Absolute expiry time in millis, {@link Long#MAX_VALUE} for session cookies.
+     */
+    final long expiresAt;
+
+    volatile long lastAccessed;
+
+    /**
+     * {@link #cookie} converted by {@link PersistentCookieJar}, created lazily.
+     */
+    volatile okhttp3.Cookie okHttpCookie;
+
+    /**
+     * Set once the cookie is no longer in the store, lets the expiry queue drop it lazily.
+     */
+    boolean removed;
+
+    StoredCookie(URI uri, HttpCookie cookie, long now) {
+        this.uri = uri;
+        this.cookie = cookie;
+        this.expiresAt = expiresAt(cookie, now);
+        this.lastAccessed = now;
+    }
+
+    boolean hasExpired(long now) {
+        return now >= expiresAt;
+    }
+
+    private static long expiresAt(HttpCookie cookie, long now) {
+        long maxAge = cookie.getMaxAge();
+        if (maxAge < 0) {
+            return Long.MAX_VALUE;
+        }
+        return maxAge > (Long.MAX_VALUE - now) / 1000 ? Long.MAX_VALUE - 1 : now + maxAge * 1000;
+    }
+
+}
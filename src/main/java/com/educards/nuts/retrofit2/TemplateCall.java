@@ -2,15 +2,21 @@ package com.educards.nuts.retrofit2;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.os.AsyncTask;
 import android.os.Looper;
 import android.util.Log;
 import com.educards.nuts.*;
+import okhttp3.CacheControl;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
 
+import java.io.IOException;
+import java.lang.reflect.Type;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TemplateCall<T> extends Request {
 
@@ -18,15 +24,81 @@ public class TemplateCall<T> extends Request {
 
     private boolean callIsSecured;
 
-    private AuthTokenProvider authTokenProvider;
+    private AuthTokenAcquisition authTokenAcquisition;
 
     private Call<T> call;
 
+    /**
+     * Calls in flight this call may join, <code>null</code> if coalescing is disabled.
+     */
+    private InFlightCalls inFlightCalls;
+
+    private Type responseType;
+
+    /**
+     * Metrics of the phases of this call, <code>null</code> if not measured.
+     */
+    private CallMetrics callMetrics;
+
+    /**
+     * <code>null</code> if there is no circuit breaker.
+     */
+    private CircuitBreaker circuitBreaker;
+
+    /**
+     * <code>null</code> if concurrency is not limited.
+     */
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * <code>null</code> if calls are dispatched in FIFO order.
+     */
+    private PriorityDispatcher priorityDispatcher;
+
+    private CallPriority priority;
+
+    /**
+     * Set while the call waits for a slot of {@link #priorityDispatcher} or a permit of {@link #concurrencyLimiter}.
+     */
+    private volatile PendingDispatch pendingDispatch;
+
+    /**
+     * When the call has been enqueued (by {@link System#nanoTime()}).
+     */
+    private long enqueuedAtNs;
+
+    /**
+     * Set once the call joined (or started) coalesced flight.
+     */
+    private volatile InFlightCalls.Participant inFlightParticipant;
+
+    /**
+     * Set by {@link #cancel()}, the call itself stays running if shared by a coalesced flight.
+     */
+    private volatile boolean canceled;
+
+    /**
+     * Note that calls created by this constructor don't share auth token acquisition
+     * with other calls, see {@link TemplateCallAdapterFactory}.
+     */
     public TemplateCall(boolean callIsSecured, AuthTokenProvider authTokenProvider, Call<T> call) {
+        this(callIsSecured, new AuthTokenAcquisition(authTokenProvider), null, null, null, null, null, CallPriority.NORMAL, null, call);
+    }
+
+    TemplateCall(boolean callIsSecured, AuthTokenAcquisition authTokenAcquisition, InFlightCalls inFlightCalls,
+                 CallMetrics callMetrics, CircuitBreaker circuitBreaker, ConcurrencyLimiter concurrencyLimiter,
+                 PriorityDispatcher priorityDispatcher, CallPriority priority, Type responseType, Call<T> call) {
         super(Protocol.HTTP, getUri(call));
 
         this.callIsSecured = callIsSecured;
-        this.authTokenProvider = authTokenProvider;
+        this.authTokenAcquisition = authTokenAcquisition;
+        this.inFlightCalls = inFlightCalls;
+        this.callMetrics = callMetrics;
+        this.circuitBreaker = circuitBreaker;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.priorityDispatcher = priorityDispatcher;
+        this.priority = priority;
+        this.responseType = responseType;
         this.call = call;
     }
 
@@ -42,6 +114,62 @@ public class TemplateCall<T> extends Request {
         return call;
     }
 
+    /**
+     * Overrides cache control of this call, e.g. {@link CacheControl#FORCE_NETWORK} to refresh
+     * or {@link CacheControl#FORCE_CACHE} to show whatever is cached. Such call bypasses
+     * {@link HttpCachePolicy} and is never coalesced with other calls. Has effect only if
+     * the HTTP cache is enabled (see {@link DefaultRetrofitBuilder.Config#setHttpCacheEnabled(boolean)})
+     * and must be set before the call is enqueued.
+     *
+     * @param cacheControl cache control, <code>null</code> to remove the override
+     */
+    public TemplateCall<T> setCacheControl(CacheControl cacheControl) {
+        HttpCacheInterceptor.overrideCacheControl(call.request(), cacheControl);
+        return this;
+    }
+
+    /**
+     * Overrides priority of this call set by {@link Priority} (or the default {@link CallPriority#NORMAL}).
+     * Has effect only if the calls are dispatched by {@link PriorityDispatcher} (see
+     * {@link DefaultRetrofitBuilder.Config#setPriorityDispatcher(PriorityDispatcher)}) or
+     * {@link ConcurrencyLimiter} and must be set before the call is enqueued.
+     */
+    public TemplateCall<T> setPriority(CallPriority priority) {
+        if (priority == null) {
+            throw new NullPointerException("priority == null");
+        }
+        this.priority = priority;
+        return this;
+    }
+
+    public CallPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Cancels the call. Unlike {@link Call#cancel()} of {@link #getCall()} it cancels coalesced call
+     * (see {@link TemplateCallAdapterFactory.Config#setCoalesceInFlightCalls(boolean)})
+     * just for this caller, the shared network exchange is canceled once all callers cancel.
+     * Call waiting for a slot of {@link PriorityDispatcher} or a permit of {@link ConcurrencyLimiter}
+     * fails right away.
+     */
+    public void cancel() {
+        canceled = true;
+        PendingDispatch waiting = pendingDispatch;
+        if (waiting != null && waiting.withdraw()) {
+            pendingDispatch = null;
+            call.cancel();
+            waiting.callback.onFailure(call, new IOException("Canceled"));
+            return;
+        }
+        InFlightCalls.Participant participant = inFlightParticipant;
+        if (participant != null) {
+            inFlightCalls.cancel(participant);
+        } else {
+            call.cancel();
+        }
+    }
+
     /**
      * @param activity Currently activity. This is necessary for the case if authentication is needed
      *                 right before the network call. In such scenario an authentication process
@@ -59,6 +187,7 @@ public class TemplateCall<T> extends Request {
             throw new RuntimeException(String.format("A network call template must be defined [call=%s].", call));
         }
 
+        enqueuedAtNs = System.nanoTime();
         callback.setTemplate(template); // just a dependency hitch
 
         // TODO Should this be called on UI thread in case !mainThread (see below)?
@@ -70,12 +199,20 @@ public class TemplateCall<T> extends Request {
             // that auth token is provided to the underlying transport layer.
             // However, the AuthTokenProvider uses IPC to acquire AuthToken from
             // another process (to support SSO) and IPC call can't be made in main (UI) thread.
+            // Concurrent secured calls share single acquisition (see AuthTokenAcquisition).
             boolean mainThread = Thread.currentThread().equals(Looper.getMainLooper().getThread());
-            if (mainThread) {
-                ensureAuthTokenAndEnqueueAsync(activity, callback);
-            } else {
-                ensureAuthTokenAndEnqueue(activity, callback);
-            }
+            authTokenAcquisition.acquire(activity, mainThread, new AuthTokenAcquisition.Callback() {
+                @Override
+                public void onAuthTokenAcquired(AuthToken authToken) {
+                    recordPhase(CallMetrics.Phase.AUTH_TOKEN, System.nanoTime() - enqueuedAtNs);
+                    enqueueImpl(callback); // straight to OkHttp dispatcher, no main thread hop
+                }
+
+                @Override
+                public void onAuthTokenMissing() {
+                    onMissingAuthTokenFailure(callback);
+                }
+            });
 
         } else {
             // This call is not secured, don't care about authentication, just enqueue
@@ -83,32 +220,92 @@ public class TemplateCall<T> extends Request {
         }
     }
 
-    private void ensureAuthTokenAndEnqueueAsync(final Activity activity, final TemplateCallback<T> callback) {
-        new AsyncTask<Void, Void, AuthToken>() {
+    /**
+     * Enqueues a group of calls which are reported to the template as a whole.
+     * <p>
+     * {@link Template#onRequestInProgress()} is called once for the group. If any of the calls
+     * is secured the auth token is acquired just once (calls are expected to be created by the same
+     * {@link TemplateCallAdapterFactory}) and then all calls are enqueued at once so they run in parallel.
+     * When the last call completes the template receives {@link Template#onRequestSucceeded(Object)}
+     * with the result of each call (in order of the calls) whether the call succeeded or not.
+     * If there is no valid auth token no call is enqueued and the template receives
+     * {@link Template#onRequestFailed(RequestFailData)} with {@link RequestFailReason#AUTH_ERROR}.
+     * </p>
+     *
+     * @param activity Current activity, see {@link #enqueue(Activity, Template, TemplateCallback)}
+     */
+    public static void enqueueAll(Activity activity, final Template<List<TemplateCallResult<?>>> template, final TemplateCall<?>... calls) {
 
-            @Override
-            protected AuthToken doInBackground(Void... voids) {
-                return authTokenProvider.getInstalledAuthToken(activity);
+        if (template == null) {
+            throw new RuntimeException(String.format("A network call template must be defined [calls=%s].", Arrays.toString(calls)));
+        }
+
+        long enqueuedAtNs = System.nanoTime();
+        for (TemplateCall<?> call : calls) {
+            call.enqueuedAtNs = enqueuedAtNs;
+        }
+
+        template.onRequestInProgress(); // single progress for the whole group
+
+        if (calls.length == 0) {
+            template.onRequestSucceeded(Collections.<TemplateCallResult<?>>emptyList());
+            return;
+        }
+
+        final Batch batch = new Batch(template, calls.length);
+        TemplateCall<?> securedCall = null;
+        for (TemplateCall<?> call : calls) {
+            if (call.callIsSecured) {
+                securedCall = call;
+                break;
+            }
+        }
+
+        if (securedCall == null) {
+            for (int i = 0; i < calls.length; i++) {
+                calls[i].enqueueInBatch(batch, i);
             }
+            return;
+        }
 
+        final TemplateCall<?> failedCall = securedCall;
+        boolean mainThread = Thread.currentThread().equals(Looper.getMainLooper().getThread());
+        securedCall.authTokenAcquisition.acquire(activity, mainThread, new AuthTokenAcquisition.Callback() {
             @Override
-            protected void onPostExecute(AuthToken authToken) {
-                if (authToken == null) {
-                    onMissingAuthTokenFailure(callback);
-                } else {
-                    enqueueImpl(callback);
+            public void onAuthTokenAcquired(AuthToken authToken) {
+                for (int i = 0; i < calls.length; i++) {
+                    if (calls[i].callIsSecured) {
+                        calls[i].recordPhase(CallMetrics.Phase.AUTH_TOKEN, System.nanoTime() - calls[i].enqueuedAtNs);
+                    }
+                    calls[i].enqueueInBatch(batch, i);
                 }
             }
-        }.execute();
+
+            @Override
+            public void onAuthTokenMissing() {
+                Log.i(TAG, String.format(
+                        "Calls have not been enqueued due to missing auth token, " +
+                        "new token was requested [calls=%s]", Arrays.toString(calls)));
+                template.onRequestFailed(new RequestFailData(failedCall, RequestFailReason.AUTH_ERROR));
+            }
+        });
     }
 
-    private void ensureAuthTokenAndEnqueue(Activity activity, TemplateCallback<T> callback) {
-        AuthToken authToken = authTokenProvider.getInstalledAuthToken(activity);
-        if (authToken == null) {
-            onMissingAuthTokenFailure(callback);
-        } else {
-            enqueueImpl(callback);
-        }
+    private void enqueueInBatch(final Batch batch, final int index) {
+        final TemplateCallback<T> classifier = new TemplateCallback<T>();
+        dispatch(new Callback<T>() {
+            @Override
+            public void onResponse(Call<T> call, Response<T> response) {
+                RequestFailReason failReason = classifier.isRequestSuccessful(TemplateCall.this, response)
+                        ? null : classifier.getFailReason(TemplateCall.this, response);
+                batch.complete(index, new TemplateCallResult<T>(TemplateCall.this, response, null, failReason));
+            }
+            @Override
+            public void onFailure(Call<T> call, Throwable t) {
+                Log.e(TAG, String.format("Request failed [call=%s]", call), t);
+                batch.complete(index, new TemplateCallResult<T>(TemplateCall.this, null, t, RequestFailReason.OTHER));
+            }
+        });
     }
 
     private final void onMissingAuthTokenFailure(TemplateCallback<T> callback) {
@@ -125,17 +322,253 @@ public class TemplateCall<T> extends Request {
         callback.onFailure(TemplateCall.this, null, failReason);
     }
 
+    /**
+     * Results of calls enqueued by {@link #enqueueAll(Activity, Template, TemplateCall[])}.
+     */
+    private static class Batch {
+
+        private final Template<List<TemplateCallResult<?>>> template;
+
+        private final TemplateCallResult<?>[] results;
+
+        private final AtomicInteger remaining;
+
+        Batch(Template<List<TemplateCallResult<?>>> template, int size) {
+            this.template = template;
+            this.results = new TemplateCallResult<?>[size];
+            this.remaining = new AtomicInteger(size);
+        }
+
+        void complete(int index, TemplateCallResult<?> result) {
+            results[index] = result;
+            if (remaining.decrementAndGet() == 0) { // the decrement publishes all results to the last one
+                template.onRequestSucceeded(Collections.unmodifiableList(Arrays.asList(results)));
+            }
+        }
+    }
+
     private void enqueueImpl(final TemplateCallback<T> callback) {
-        call.enqueue(new Callback<T>() {
+        dispatch(new Callback<T>() {
             @Override
             public void onResponse(Call<T> call, Response<T> response) {
                 callback.onResponse(TemplateCall.this, response);
             }
             @Override
             public void onFailure(Call<T> call, Throwable t) {
-                callback.onFailure(TemplateCall.this, t, RequestFailReason.OTHER);
+                if (t instanceof CircuitOpenException) {
+                    callback.onCircuitOpen(TemplateCall.this, (CircuitOpenException) t); // not sent at all
+                } else {
+                    callback.onFailure(TemplateCall.this, t, RequestFailReason.OTHER);
+                }
             }
         });
     }
 
+    /**
+     * Hands the call over to OkHttp dispatcher, coalesced with identical call in flight if enabled.
+     * The call fails fast if the circuit of its host is open, waits for a slot by its priority
+     * and then waits if the host is at its concurrency limit.
+     */
+    private void dispatch(Callback<T> callback) {
+        if (callMetrics != null) {
+            callback = new MeasuringCallback(callback);
+        }
+        String host = call.request().url().host();
+        if (circuitBreaker != null) {
+            CircuitBreaker.Permit permit = circuitBreaker.tryAcquire(host);
+            if (permit == null) {
+                Log.i(TAG, String.format("Call failed fast, circuit is open [call=%s]", call));
+                callback.onFailure(call, new CircuitOpenException(host));
+                return;
+            }
+            if (permit.isProbe()) {
+                callback = new ProbeCallback(permit, callback);
+            }
+        }
+        if (priorityDispatcher != null) {
+            PendingDispatch dispatch = new PrioritizedDispatch(host, callback);
+            pendingDispatch = dispatch;
+            if (priorityDispatcher.acquire(priority, dispatch)) {
+                dispatch.run();
+            }
+            return;
+        }
+        dispatchLimited(host, callback);
+    }
+
+    private void dispatchLimited(String host, Callback<T> callback) {
+        if (concurrencyLimiter != null) {
+            PendingDispatch dispatch = new LimitedDispatch(host, callback);
+            pendingDispatch = dispatch;
+            if (concurrencyLimiter.acquire(host, priority, dispatch)) {
+                dispatch.run();
+            }
+            return;
+        }
+        dispatchNow(callback);
+    }
+
+    private void dispatchNow(Callback<T> callback) {
+        if (inFlightCalls != null && InFlightCalls.isCoalescible(call, responseType)) {
+            inFlightParticipant = inFlightCalls.enqueue(call, responseType, callback);
+        } else {
+            call.enqueue(callback);
+        }
+    }
+
+    private void recordPhase(CallMetrics.Phase phase, long durationNs) {
+        if (callMetrics != null) {
+            callMetrics.record(callMetrics.getEndpoint(call.request()), phase, durationNs);
+        }
+    }
+
+    /**
+     * Dispatch run once the call gets its slot (or permit), the slot is released when the call completes,
+     * i.e. before the response is delivered. Body of a {@link JsonStream} is therefore consumed outside
+     * of the limits. The slot is not held until the stream is closed since a consumer which never closes it
+     * would starve other calls.
+     */
+    private abstract class PendingDispatch implements Runnable {
+
+        final String host;
+
+        final Callback<T> callback;
+
+        PendingDispatch(String host, Callback<T> callback) {
+            this.host = host;
+            this.callback = callback;
+        }
+
+        /**
+         * @return <code>true</code> if the dispatch was still waiting (and won't be run)
+         */
+        abstract boolean withdraw();
+
+        abstract void release();
+
+        abstract void proceed(Callback<T> callback);
+
+        @Override
+        public void run() {
+            pendingDispatch = null;
+            proceed(new Callback<T>() {
+                @Override
+                public void onResponse(Call<T> call, Response<T> response) {
+                    release();
+                    callback.onResponse(call, response);
+                }
+
+                @Override
+                public void onFailure(Call<T> call, Throwable t) {
+                    release();
+                    callback.onFailure(call, t);
+                }
+            });
+        }
+    }
+
+    private class PrioritizedDispatch extends PendingDispatch {
+
+        PrioritizedDispatch(String host, Callback<T> callback) {
+            super(host, callback);
+        }
+
+        @Override
+        boolean withdraw() {
+            return priorityDispatcher.withdraw(priority, this);
+        }
+
+        @Override
+        void release() {
+            priorityDispatcher.release(priority);
+        }
+
+        @Override
+        void proceed(Callback<T> callback) {
+            dispatchLimited(host, callback);
+        }
+    }
+
+    private class LimitedDispatch extends PendingDispatch {
+
+        LimitedDispatch(String host, Callback<T> callback) {
+            super(host, callback);
+        }
+
+        @Override
+        boolean withdraw() {
+            return concurrencyLimiter.withdraw(host, priority, this);
+        }
+
+        @Override
+        void release() {
+            concurrencyLimiter.release(host);
+        }
+
+        @Override
+        void proceed(Callback<T> callback) {
+            dispatchNow(callback);
+        }
+    }
+
+    /**
+     * Reports the outcome of a probe call to the half open {@link CircuitBreaker}.
+     */
+    private class ProbeCallback implements Callback<T> {
+
+        private final CircuitBreaker.Permit probe;
+
+        private final Callback<T> callback;
+
+        ProbeCallback(CircuitBreaker.Permit probe, Callback<T> callback) {
+            this.probe = probe;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onResponse(Call<T> call, Response<T> response) {
+            if (response.raw().networkResponse() == null) {
+                circuitBreaker.onProbeCanceled(probe); // served from the cache, says nothing about the host
+            } else {
+                int code = response.code();
+                circuitBreaker.onProbeResult(probe, code == 429 || code >= 500);
+            }
+            callback.onResponse(call, response);
+        }
+
+        @Override
+        public void onFailure(Call<T> call, Throwable t) {
+            if (canceled || call.isCanceled()) {
+                circuitBreaker.onProbeCanceled(probe);
+            } else {
+                circuitBreaker.onProbeResult(probe, true);
+            }
+            callback.onFailure(call, t);
+        }
+    }
+
+    /**
+     * Records time from enqueue to the callback.
+     */
+    private class MeasuringCallback implements Callback<T> {
+
+        private final Callback<T> callback;
+
+        MeasuringCallback(Callback<T> callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onResponse(Call<T> call, Response<T> response) {
+            recordPhase(CallMetrics.Phase.ENQUEUE_TO_CALLBACK, System.nanoTime() - enqueuedAtNs);
+            callback.onResponse(call, response);
+        }
+
+        @Override
+        public void onFailure(Call<T> call, Throwable t) {
+            recordPhase(CallMetrics.Phase.ENQUEUE_TO_CALLBACK, System.nanoTime() - enqueuedAtNs);
+            callback.onFailure(call, t);
+        }
+    }
+
 }
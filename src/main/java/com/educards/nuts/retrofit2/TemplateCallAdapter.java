@@ -8,16 +8,61 @@ import java.lang.reflect.Type;
 
 public class TemplateCallAdapter<R> implements CallAdapter<R, TemplateCall> {
 
+    /**
+     * Policy of calls marked by {@link Retry} if no policy is configured.
+     */
+    private static final RetryPolicy DEFAULT_RETRY_POLICY = new RetryPolicy();
+
     private boolean callIsSecured;
 
     private Type type;
 
-    private AuthTokenProvider authTokenProvider;
+    private AuthTokenAcquisition authTokenAcquisition;
+
+    private InFlightCalls inFlightCalls;
+
+    private CallMetrics callMetrics;
+
+    private CircuitBreaker circuitBreaker;
+
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    private PriorityDispatcher priorityDispatcher;
+
+    /**
+     * Priority set by {@link Priority}, {@link CallPriority#NORMAL} if the calls are not marked.
+     */
+    private CallPriority priority;
+
+    /**
+     * Policy of the calls, <code>null</code> if calls are retried only if marked by {@link Retry}.
+     */
+    private RetryPolicy retryPolicy;
+
+    /**
+     * <code>null</code> if the calls are not marked.
+     */
+    private Retry retry;
 
     public TemplateCallAdapter(boolean callIsSecured, AuthTokenProvider authTokenProvider, Type type) {
+        this(callIsSecured, new AuthTokenAcquisition(authTokenProvider), null, null, null, null, null, null, null, CallPriority.NORMAL, type);
+    }
+
+    TemplateCallAdapter(boolean callIsSecured, AuthTokenAcquisition authTokenAcquisition, InFlightCalls inFlightCalls,
+                        CallMetrics callMetrics, CircuitBreaker circuitBreaker, ConcurrencyLimiter concurrencyLimiter,
+                        PriorityDispatcher priorityDispatcher, RetryPolicy retryPolicy, Retry retry, CallPriority priority,
+                        Type type) {
         this.callIsSecured = callIsSecured;
         this.type = type;
-        this.authTokenProvider = authTokenProvider;
+        this.authTokenAcquisition = authTokenAcquisition;
+        this.inFlightCalls = inFlightCalls;
+        this.callMetrics = callMetrics;
+        this.circuitBreaker = circuitBreaker;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.priorityDispatcher = priorityDispatcher;
+        this.priority = priority;
+        this.retryPolicy = retryPolicy;
+        this.retry = retry;
     }
 
     @Override
@@ -27,7 +72,14 @@ public class TemplateCallAdapter<R> implements CallAdapter<R, TemplateCall> {
 
     @Override
     public TemplateCall adapt(Call<R> call) {
-        return new TemplateCall(callIsSecured, authTokenProvider, call);
+        if (retry != null || (retryPolicy != null && RetryPolicy.isIdempotent(call.request().method()))) {
+            RetryPolicy policy = retryPolicy != null ? retryPolicy : DEFAULT_RETRY_POLICY;
+            int maxAttempts = retry != null && retry.maxAttempts() > 0 ? retry.maxAttempts() : policy.getMaxAttempts();
+            boolean hedge = policy.isHedging() || (retry != null && retry.hedge());
+            call = new RetryingCall<R>(call, policy, maxAttempts, hedge, callMetrics);
+        }
+        return new TemplateCall(callIsSecured, authTokenAcquisition, inFlightCalls, callMetrics, circuitBreaker, concurrencyLimiter,
+                priorityDispatcher, priority, type, call);
     }
 
 }
@@ -7,13 +7,54 @@ import retrofit2.Retrofit;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.concurrent.Executor;
 
 public class TemplateCallAdapterFactory extends CallAdapter.Factory {
 
-    private AuthTokenProvider authTokenProvider;
+    /**
+     * Shared by all calls created by this factory so concurrent secured calls
+     * acquire the auth token just once.
+     */
+    private AuthTokenAcquisition authTokenAcquisition;
 
-    private TemplateCallAdapterFactory(AuthTokenProvider authTokenProvider) {
-        this.authTokenProvider = authTokenProvider;
+    /**
+     * Shared by all calls created by this factory, <code>null</code> if coalescing is disabled.
+     */
+    private InFlightCalls inFlightCalls;
+
+    /**
+     * <code>null</code> if calls are not measured.
+     */
+    private CallMetrics callMetrics;
+
+    /**
+     * <code>null</code> if only calls marked by {@link Retry} are retried.
+     */
+    private RetryPolicy retryPolicy;
+
+    /**
+     * <code>null</code> if there is no circuit breaker.
+     */
+    private CircuitBreaker circuitBreaker;
+
+    /**
+     * <code>null</code> if concurrency is not limited.
+     */
+    private ConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * <code>null</code> if calls are dispatched in FIFO order.
+     */
+    private PriorityDispatcher priorityDispatcher;
+
+    private TemplateCallAdapterFactory(AuthTokenProvider authTokenProvider, Config config) {
+        this.authTokenAcquisition = new AuthTokenAcquisition(authTokenProvider, config.authExecutor);
+        this.inFlightCalls = config.coalesceInFlightCalls ? new InFlightCalls() : null;
+        this.callMetrics = config.callMetrics;
+        this.retryPolicy = config.retryPolicy;
+        this.circuitBreaker = config.circuitBreaker;
+        this.concurrencyLimiter = config.concurrencyLimiter;
+        this.priorityDispatcher = config.priorityDispatcher;
     }
 
     @Override
@@ -28,7 +69,9 @@ public class TemplateCallAdapterFactory extends CallAdapter.Factory {
                 return null;
             } else {
                 Type actualTypeArgument = enclosingType.getActualTypeArguments()[0];
-                return new TemplateCallAdapter<>(isCallSecured(annotations), authTokenProvider, actualTypeArgument);
+                return new TemplateCallAdapter<>(isCallSecured(annotations), authTokenAcquisition, inFlightCalls, callMetrics,
+                        circuitBreaker, concurrencyLimiter, priorityDispatcher, retryPolicy, getRetry(annotations),
+                        getPriority(annotations), actualTypeArgument);
             }
 
         } catch (ClassCastException e) {
@@ -47,8 +90,126 @@ public class TemplateCallAdapterFactory extends CallAdapter.Factory {
         return false;
     }
 
+    private CallPriority getPriority(Annotation[] annotations) {
+        if (annotations != null) {
+            for (Annotation annotation : annotations) {
+                if (annotation.annotationType() == Priority.class) {
+                    return ((Priority) annotation).value();
+                }
+            }
+        }
+        return CallPriority.NORMAL;
+    }
+
+    private Retry getRetry(Annotation[] annotations) {
+        if (annotations != null) {
+            for (Annotation annotation : annotations) {
+                if (annotation.annotationType() == Retry.class) {
+                    return (Retry) annotation;
+                }
+            }
+        }
+        return null;
+    }
+
     public static final TemplateCallAdapterFactory create(AuthTokenProvider authTokenProvider) {
-        return new TemplateCallAdapterFactory(authTokenProvider);
+        return new TemplateCallAdapterFactory(authTokenProvider, new Config());
+    }
+
+    /**
+     * @param authExecutor executor acquiring auth token for secured calls enqueued from main thread
+     */
+    public static final TemplateCallAdapterFactory create(AuthTokenProvider authTokenProvider, Executor authExecutor) {
+        return new TemplateCallAdapterFactory(authTokenProvider, new Config().setAuthExecutor(authExecutor));
+    }
+
+    public static final TemplateCallAdapterFactory create(AuthTokenProvider authTokenProvider, Config config) {
+        return new TemplateCallAdapterFactory(authTokenProvider, config);
+    }
+
+    public static class Config {
+
+        private Executor authExecutor = AuthTokenAcquisition.DEFAULT_EXECUTOR;
+
+        private boolean coalesceInFlightCalls;
+
+        private CallMetrics callMetrics;
+
+        private RetryPolicy retryPolicy;
+
+        private CircuitBreaker circuitBreaker;
+
+        private ConcurrencyLimiter concurrencyLimiter;
+
+        private PriorityDispatcher priorityDispatcher;
+
+        /**
+         * Executor acquiring auth token for secured calls enqueued from main thread.
+         * Defaults to a small pool dedicated to auth.
+         */
+        public Config setAuthExecutor(Executor authExecutor) {
+            if (authExecutor == null) {
+                throw new NullPointerException("authExecutor == null");
+            }
+            this.authExecutor = authExecutor;
+            return this;
+        }
+
+        /**
+         * Identical GET (and HEAD) calls in flight at the same time share single network exchange
+         * and its decoded response, see {@link TemplateCall#cancel()}. Disabled by default.
+         */
+        public Config setCoalesceInFlightCalls(boolean coalesceInFlightCalls) {
+            this.coalesceInFlightCalls = coalesceInFlightCalls;
+            return this;
+        }
+
+        /**
+         * Metrics recording auth token acquisition and enqueue to callback time of the calls
+         * (and hedge delays, see {@link RetryPolicy}). Calls are not measured by default.
+         */
+        public Config setCallMetrics(CallMetrics callMetrics) {
+            this.callMetrics = callMetrics;
+            return this;
+        }
+
+        /**
+         * Retries calls of idempotent HTTP methods (GET, HEAD, PUT, DELETE, OPTIONS) and calls marked
+         * by {@link Retry} according to given policy. By default only calls marked by {@link Retry}
+         * are retried (by default policy).
+         */
+        public Config setRetryPolicy(RetryPolicy retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Calls to a host whose circuit is open fail fast with {@link CircuitOpenException}.
+         * Outcomes of the calls must be reported by {@link DefaultRetrofitBuilder} (or the same
+         * breaker configured by {@link DefaultRetrofitBuilder.Config#setCircuitBreaker(CircuitBreaker)}).
+         */
+        public Config setCircuitBreaker(CircuitBreaker circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * Calls over the concurrency limit of their host wait until a call to the host completes.
+         * The limit adapts only if samples are reported (see {@link DefaultRetrofitBuilder.Config#setConcurrencyLimiter(ConcurrencyLimiter)}).
+         */
+        public Config setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+            this.concurrencyLimiter = concurrencyLimiter;
+            return this;
+        }
+
+        /**
+         * Calls are started in order of their {@link CallPriority} with slots reserved for
+         * {@link CallPriority#IMMEDIATE} calls. Calls are dispatched in FIFO order by default.
+         */
+        public Config setPriorityDispatcher(PriorityDispatcher priorityDispatcher) {
+            this.priorityDispatcher = priorityDispatcher;
+            return this;
+        }
     }
 
 }
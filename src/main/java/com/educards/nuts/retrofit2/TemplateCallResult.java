@@ -0,0 +1,75 @@
+package com.educards.nuts.retrofit2;
+
+import com.educards.nuts.RequestFailReason;
+import retrofit2.Response;
+
+/**
+ * Outcome of single call enqueued by {@link TemplateCall#enqueueAll(android.app.Activity, com.educards.nuts.Template, TemplateCall[])}.
+ */
+public class TemplateCallResult<T> {
+
+    private final TemplateCall<T> call;
+
+    private final Response<T> response;
+
+    private final Throwable error;
+
+    private final RequestFailReason failReason;
+
+    TemplateCallResult(TemplateCall<T> call, Response<T> response, Throwable error, RequestFailReason failReason) {
+        this.call = call;
+        this.response = response;
+        this.error = error;
+        this.failReason = failReason;
+    }
+
+    public TemplateCall<T> getCall() {
+        return call;
+    }
+
+    public boolean isSuccessful() {
+        return failReason == null;
+    }
+
+    /**
+     * @return response body, <code>null</code> if the call failed
+     */
+    public T getBody() {
+        return isSuccessful() ? response.body() : null;
+    }
+
+    /**
+     * @return response, <code>null</code> if the call failed before receiving any
+     */
+    public Response<T> getResponse() {
+        return response;
+    }
+
+    /**
+     * @return cause of the failure if the call failed before receiving response, <code>null</code> otherwise
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return whether the call failed fast without being sent since the circuit of its host
+     * is open (see {@link CircuitBreaker}), the error is {@link CircuitOpenException} then
+     */
+    public boolean isCircuitOpen() {
+        return error instanceof CircuitOpenException;
+    }
+
+    /**
+     * @return reason of the failure, <code>null</code> if the call succeeded
+     */
+    public RequestFailReason getFailReason() {
+        return failReason;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("TemplateCallResult [call=%s, failReason=%s]", call.getCall(), failReason);
+    }
+
+}
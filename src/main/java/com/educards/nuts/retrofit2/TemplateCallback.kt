@@ -14,15 +14,22 @@ open class TemplateCallback<S> {
         if (isRequestSuccessful(call, response)) {
             template?.onRequestSucceeded(response.body())
         } else {
-            if (isNetworkingDisabled(call, response)) {
-                template?.onRequestFailed(fail(call, RequestFailReason.NETWORKING_DISABLED))
-            } else if (isAuthError(call, response)) {
-                template?.onRequestFailed(fail(call, RequestFailReason.AUTH_ERROR))
-            } else if (isServerError(call, response)) {
-                template?.onRequestFailed(fail(call, RequestFailReason.SERVER_ERROR))
-            } else {
-                template?.onRequestFailed(fail(call, RequestFailReason.OTHER))
-            }
+            template?.onRequestFailed(fail(call, getFailReason(call, response)))
+        }
+    }
+
+    /**
+     * Reason of the failure of unsuccessful response.
+     */
+    fun getFailReason(call: TemplateCall<S>?, response: Response<S>?): RequestFailReason {
+        return if (isNetworkingDisabled(call, response)) {
+            RequestFailReason.NETWORKING_DISABLED
+        } else if (isAuthError(call, response)) {
+            RequestFailReason.AUTH_ERROR
+        } else if (isServerError(call, response)) {
+            RequestFailReason.SERVER_ERROR
+        } else {
+            RequestFailReason.OTHER
         }
     }
 
@@ -35,6 +42,17 @@ open class TemplateCallback<S> {
         template?.onRequestFailed(fail(call, failReason))
     }
 
+    /**
+     * Called instead of [onFailure] when the call failed fast without being sent since the circuit
+     * of its host is open (see [CircuitBreaker]). Unlike a real server error no response was received
+     * and the call may succeed once the circuit closes. Reports [RequestFailReason.OTHER] to the template
+     * by default, override to tell the user that the service is temporarily unavailable.
+     */
+    open fun onCircuitOpen(call: TemplateCall<S>, e: CircuitOpenException) {
+        Log.i(TAG, "Request failed fast, circuit is open [call=${call.call}, host=${e.host}]")
+        template?.onRequestFailed(fail(call, RequestFailReason.OTHER))
+    }
+
     fun isRequestSuccessful(call: TemplateCall<S>?, response: Response<S>?): Boolean {
         return response != null && response.isSuccessful
     }
@@ -0,0 +1,78 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.http.GET;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Identical {@link TemplateCall}s coalesced by {@link InFlightCalls} against {@link MockWebServer}.
+ */
+public class CoalescingTest {
+
+    interface Api {
+
+        @GET("item")
+        TemplateCall<Map<String, Object>> item();
+
+    }
+
+    private final MockWebServer server = new MockWebServer();
+
+    private Api api;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+        api = TestRetrofit.build(server, TestRetrofit.config(new TestConnectivityMonitor())
+                .setCoalesceInFlightCalls(true)).getRetrofit().create(Api.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void identicalCallsShareExchange() throws Exception {
+        server.enqueue(new MockResponse().setBody("{}").setBodyDelay(200, TimeUnit.MILLISECONDS));
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(3);
+
+        for (int i = 0; i < 3; i++) {
+            api.item().enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        }
+
+        assertTrue(template.await(10, TimeUnit.SECONDS));
+        assertEquals(3, template.successes.get());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void callCanceledBeforeDispatchDoesNotJoin() throws Exception {
+        server.enqueue(new MockResponse().setBody("{}").setBodyDelay(200, TimeUnit.MILLISECONDS));
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(1);
+        RecordingTemplate<Map<String, Object>> canceledTemplate = new RecordingTemplate<Map<String, Object>>(1);
+
+        api.item().enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        TemplateCall<Map<String, Object>> canceled = api.item();
+        canceled.cancel();
+        canceled.enqueue(null, canceledTemplate, new TemplateCallback<Map<String, Object>>());
+
+        assertTrue(canceledTemplate.await(1, TimeUnit.SECONDS));
+        assertEquals(1, canceledTemplate.failures.get());
+        assertTrue(template.await(10, TimeUnit.SECONDS));
+        assertEquals(1, template.successes.get());
+        assertEquals(0, canceledTemplate.successes.get());
+        assertEquals(1, server.getRequestCount());
+    }
+
+}
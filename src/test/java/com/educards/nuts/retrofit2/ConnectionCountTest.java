@@ -0,0 +1,91 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Test;
+import retrofit2.http.GET;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts connections a burst of parallel calls opens to {@link MockWebServer}
+ * with HTTP/1.1 and with HTTP/2 (prior knowledge, cleartext).
+ */
+public class ConnectionCountTest {
+
+    private static final int CALLS = 10;
+
+    interface Api {
+
+        @GET("item")
+        TemplateCall<Map<String, Object>> item();
+
+    }
+
+    private final MockWebServer server = new MockWebServer();
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void http2MultiplexesBurstOverOneConnection() throws Exception {
+        server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+        server.start();
+
+        int connections = burst(TestRetrofit.config(new TestConnectivityMonitor())
+                .setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+                .setMaxRequestsPerHost(CALLS)
+                .setConnectionPool(5, 5, TimeUnit.MINUTES)
+                .setPingInterval(10, TimeUnit.SECONDS));
+
+        assertEquals(1, connections);
+    }
+
+    @Test
+    public void http11OpensConnectionPerParallelCall() throws Exception {
+        server.start();
+
+        int connections = burst(TestRetrofit.config(new TestConnectivityMonitor())
+                .setConnectionPool(5, 5, TimeUnit.MINUTES));
+
+        assertTrue("connections=" + connections, connections > 1);
+    }
+
+    /**
+     * @return number of connections the burst of calls has been served over
+     */
+    private int burst(DefaultRetrofitBuilder.Config config) throws Exception {
+        Api api = TestRetrofit.build(server, config).getRetrofit().create(Api.class);
+        for (int i = 0; i < CALLS; i++) {
+            server.enqueue(new MockResponse().setBody("{}").setBodyDelay(200, TimeUnit.MILLISECONDS));
+        }
+
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(CALLS);
+        for (int i = 0; i < CALLS; i++) {
+            api.item().enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        }
+        assertTrue(template.await(10, TimeUnit.SECONDS));
+        assertEquals(CALLS, template.successes.get());
+
+        int connections = 0;
+        for (int i = 0; i < CALLS; i++) {
+            RecordedRequest request = server.takeRequest();
+            if (request.getSequenceNumber() == 0) { // first request on its connection
+                connections++;
+            }
+        }
+        return connections;
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.http.GET;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Pooled connections dropped on connectivity changes reported by {@link TestConnectivityMonitor},
+ * observed by {@link MockWebServer} as the request sequence number on a connection.
+ */
+public class ConnectivityEvictionTest {
+
+    interface Api {
+
+        @GET("item")
+        TemplateCall<ResponseBody> item();
+
+    }
+
+    private final MockWebServer server = new MockWebServer();
+
+    private final TestConnectivityMonitor connectivityMonitor = new TestConnectivityMonitor();
+
+    private DefaultRetrofitBuilder builder;
+
+    private Api api;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+        builder = TestRetrofit.build(server, TestRetrofit.config(connectivityMonitor)
+                .setConnectionPool(5, 5, TimeUnit.MINUTES));
+        api = builder.getRetrofit().create(Api.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void connectivityChangeEvictsPooledConnections() throws Exception {
+        assertEquals(0, call());
+        assertEquals(1, call()); // pooled connection reused
+
+        connectivityMonitor.setConnected(false);
+        connectivityMonitor.setConnected(true);
+
+        assertEquals(0, call());
+        assertEquals(1, call());
+    }
+
+    @Test
+    public void closedBuilderKeepsConnections() throws Exception {
+        assertEquals(0, call());
+
+        builder.close();
+        connectivityMonitor.setConnected(false);
+        connectivityMonitor.setConnected(true);
+
+        assertEquals(1, call());
+    }
+
+    /**
+     * @return sequence number of the request on its connection
+     */
+    private int call() throws Exception {
+        server.enqueue(new MockResponse().setBody("x"));
+        api.item().getCall().execute().body().close();
+        return server.takeRequest().getSequenceNumber();
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.educards.nuts.retrofit2;
+
+import android.content.ContextWrapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link CookieCodec} and its replacement of the legacy format (hex encoded Java serialization
+ * of {@link SerializableHttpCookie}) {@link PersistentHttpCookieStore} used to write.
+ */
+public class CookieCodecTest {
+
+    private static final String DOMAIN = "https://api.example.com/";
+
+    @Test
+    public void roundTrip() throws IOException {
+        HttpCookie cookie = sessionCookie(1);
+        cookie.setComment("comment");
+        cookie.setPortlist("80,443");
+        cookie.setVersion(1);
+        long expiresAt = System.currentTimeMillis() + 3600 * 1000; // stored in seconds, rounded up
+
+        HttpCookie decoded = CookieCodec.decode(CookieCodec.encode(cookie, expiresAt));
+
+        assertEquals(cookie.getName(), decoded.getName());
+        assertEquals(cookie.getValue(), decoded.getValue());
+        assertEquals(cookie.getComment(), decoded.getComment());
+        assertEquals(cookie.getDomain(), decoded.getDomain());
+        assertEquals(cookie.getPath(), decoded.getPath());
+        assertEquals(cookie.getPortlist(), decoded.getPortlist());
+        assertEquals(cookie.getSecure(), decoded.getSecure());
+        assertEquals(cookie.getVersion(), decoded.getVersion());
+        assertTrue("maxAge=" + decoded.getMaxAge(), decoded.getMaxAge() > 3590 && decoded.getMaxAge() <= 3601);
+
+        HttpCookie session = CookieCodec.decode(CookieCodec.encode(sessionCookie(2), Long.MAX_VALUE));
+        assertEquals(-1, session.getMaxAge());
+    }
+
+    @Test
+    public void roundTripOfHugeMaxAge() throws IOException {
+        long now = System.currentTimeMillis();
+        for (long maxAge : new long[] {Integer.MAX_VALUE, Long.MAX_VALUE / 1000, Long.MAX_VALUE}) {
+            HttpCookie cookie = sessionCookie(1);
+            cookie.setMaxAge(maxAge);
+            StoredCookie stored = new StoredCookie(URI.create("https://api.example.com/"), cookie, now);
+
+            HttpCookie decoded = CookieCodec.decode(CookieCodec.encode(cookie, stored.expiresAt));
+
+            assertTrue("maxAge=" + decoded.getMaxAge(), decoded.getMaxAge() >= Math.min(maxAge, Integer.MAX_VALUE));
+            assertFalse(new StoredCookie(stored.uri, decoded, now).hasExpired(now));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedData() throws IOException {
+        byte[] data = CookieCodec.encode(sessionCookie(1), Long.MAX_VALUE);
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        CookieCodec.decode(truncated);
+    }
+
+    @Test
+    public void legacyEntryIsMigratedByStore() {
+        MemoryCookieStorage storage = new MemoryCookieStorage();
+        String legacy = newStore(storage).encodeCookie(new SerializableHttpCookie(sessionCookie(1)));
+        storage.write(false, Collections.singletonMap(DOMAIN, Collections.singletonMap("SESSION1", legacy)));
+
+        List<HttpCookie> cookies = newStore(storage).get(URI.create(DOMAIN));
+
+        assertEquals(1, cookies.size());
+        assertEquals("SESSION1", cookies.get(0).getName());
+        assertEquals(sessionCookie(1).getValue(), cookies.get(0).getValue());
+        String migrated = storage.loadCookies(DOMAIN).get("SESSION1");
+        assertTrue(migrated, migrated.startsWith("#")); // rewritten in the binary form
+        assertEquals(cookies, newStore(storage).get(URI.create(DOMAIN)));
+    }
+
+    @Test
+    public void binaryFormIsSmallerThanLegacy() {
+        PersistentHttpCookieStore store = newStore(new MemoryCookieStorage());
+        long legacyChars = 0;
+        long binaryChars = 0;
+        for (int i = 0; i < 100; i++) {
+            legacyChars += store.encodeCookie(new SerializableHttpCookie(sessionCookie(i))).length();
+            binaryChars += store.encodeCookie(sessionCookie(i), Long.MAX_VALUE).length();
+        }
+        assertTrue("binary form should be at most a third of the legacy one", binaryChars * 3 <= legacyChars);
+    }
+
+    private static HttpCookie sessionCookie(int i) {
+        HttpCookie cookie = new HttpCookie("SESSION" + i, "3f2a9c71d0b84e55a1c6" + i);
+        cookie.setDomain("api.example.com");
+        cookie.setPath("/");
+        cookie.setSecure(true);
+        return cookie;
+    }
+
+    private static PersistentHttpCookieStore newStore(CookieStorage storage) {
+        return new PersistentHttpCookieStore(new ContextWrapper(null),
+                new PersistentHttpCookieStore.Config().setStorage(storage));
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.educards.nuts.retrofit2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.http.Body;
+import retrofit2.http.POST;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Request body compression by {@link GzipRequestInterceptor} checked on bytes received by {@link MockWebServer}.
+ */
+public class GzipRequestTest {
+
+    interface Api {
+
+        @GzipRequest
+        @POST("sync")
+        TemplateCall<Map<String, Object>> sync(@Body List<Map<String, Object>> entities);
+
+        @POST("plain")
+        TemplateCall<Map<String, Object>> plain(@Body List<Map<String, Object>> entities);
+
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final MockWebServer server = new MockWebServer();
+
+    private Api api;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+        api = TestRetrofit.build(server, TestRetrofit.config(new TestConnectivityMonitor()))
+                .getRetrofit().create(Api.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void largeBodyIsCompressed() throws Exception {
+        List<Map<String, Object>> entities = entities(2000);
+        String json = objectMapper.writeValueAsString(entities);
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        api.sync(entities).getCall().execute();
+
+        RecordedRequest request = server.takeRequest();
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        assertEquals("chunked", request.getHeader("Transfer-Encoding")); // streamed, compressed length is unknown
+        long wireBytes = request.getBodySize();
+        Buffer decoded = new Buffer();
+        decoded.writeAll(new GzipSource(request.getBody()));
+        String body = decoded.readUtf8();
+
+        assertEquals(json, body);
+        assertTrue("wireBytes=" + wireBytes, wireBytes * 4 < body.length());
+    }
+
+    @Test
+    public void smallBodyIsNotCompressed() throws Exception {
+        List<Map<String, Object>> entities = entities(3);
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        api.sync(entities).getCall().execute();
+
+        RecordedRequest request = server.takeRequest();
+        assertNull(request.getHeader("Content-Encoding"));
+        assertEquals(objectMapper.writeValueAsString(entities), request.getBody().readUtf8());
+    }
+
+    @Test
+    public void bodyIsNotCompressedWithoutAnnotation() throws Exception {
+        List<Map<String, Object>> entities = entities(2000);
+        String json = objectMapper.writeValueAsString(entities);
+        server.enqueue(new MockResponse().setBody("{}"));
+
+        api.plain(entities).getCall().execute();
+
+        RecordedRequest request = server.takeRequest();
+        assertNull(request.getHeader("Content-Encoding"));
+        assertEquals(json.length(), request.getBodySize());
+        assertEquals(json, request.getBody().readUtf8());
+    }
+
+    private static List<Map<String, Object>> entities(int count) {
+        List<Map<String, Object>> entities = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> entity = new HashMap<String, Object>();
+            entity.put("id", i);
+            entity.put("name", "entity " + i);
+            entities.add(entity);
+        }
+        return entities;
+    }
+
+}
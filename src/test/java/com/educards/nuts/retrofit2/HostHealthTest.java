@@ -0,0 +1,279 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.http.GET;
+import retrofit2.http.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ConcurrencyLimiter} and {@link CircuitBreaker} against {@link MockWebServer} whose latency
+ * grows with the number of requests it serves at once.
+ */
+public class HostHealthTest {
+
+    /**
+     * Number of concurrent requests the server handles without slowing down.
+     */
+    private static final int SERVER_CAPACITY = 4;
+
+    /**
+     * Items from this id on are served after the id milliseconds.
+     */
+    private static final int DELAYED_ID = 1000;
+
+    interface Api {
+
+        @GET("item/{id}")
+        TemplateCall<Map<String, Object>> item(@Path("id") int id);
+
+    }
+
+    private final MockWebServer server = new MockWebServer();
+
+    private final AtomicInteger serving = new AtomicInteger();
+
+    private final AtomicInteger peakServing = new AtomicInteger();
+
+    private volatile boolean failing;
+
+    private String host;
+
+    @Before
+    public void setUp() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                boolean fail = failing;
+                int concurrency = serving.incrementAndGet();
+                updatePeak(concurrency);
+                try {
+                    int id = Integer.parseInt(request.getPath().substring("/item/".length()));
+                    if (id >= DELAYED_ID) {
+                        Thread.sleep(id);
+                    }
+                    if (fail) {
+                        return new MockResponse().setResponseCode(503);
+                    }
+                    // each request over the capacity slows all of them down
+                    Thread.sleep(20 + Math.max(0, concurrency - SERVER_CAPACITY) * 40);
+                    return new MockResponse().setBody("{}");
+                } finally {
+                    serving.decrementAndGet();
+                }
+            }
+        });
+        server.start();
+        host = server.url("/").host();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void limitBacksOffWhenServerSlowsDown() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().setInitialLimit(20);
+        Api api = build(TestRetrofit.config(new TestConnectivityMonitor()).setConcurrencyLimiter(limiter));
+
+        burst(api, 60);
+        int limit = limiter.getLimit(host);
+        assertTrue("limit=" + limit, limit < 20);
+
+        peakServing.set(0);
+        burst(api, 60);
+        assertTrue("peakServing=" + peakServing.get(), peakServing.get() < 20);
+        assertEquals(0, limiter.getInFlight(host));
+    }
+
+    @Test
+    public void callsOverLimitWaitInQueue() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().setLimitRange(2, 2);
+        Api api = build(TestRetrofit.config(new TestConnectivityMonitor()).setConcurrencyLimiter(limiter));
+
+        burst(api, 10);
+
+        assertEquals(2, peakServing.get());
+        assertEquals(0, limiter.getInFlight(host));
+    }
+
+    @Test
+    public void canceledCallLeavesQueue() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().setLimitRange(1, 1);
+        Api api = build(TestRetrofit.config(new TestConnectivityMonitor()).setConcurrencyLimiter(limiter));
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(3);
+
+        List<TemplateCall<Map<String, Object>>> calls = new ArrayList<TemplateCall<Map<String, Object>>>();
+        for (int i = 0; i < 3; i++) {
+            TemplateCall<Map<String, Object>> call = api.item(i);
+            call.enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+            calls.add(call);
+        }
+        assertEquals(1, limiter.getInFlight(host));
+        calls.get(2).cancel();
+
+        assertTrue(template.await(10, TimeUnit.SECONDS));
+        assertEquals(2, template.successes.get());
+        assertEquals(1, template.failures.get());
+        assertEquals(2, server.getRequestCount());
+        assertEquals(0, limiter.getInFlight(host));
+    }
+
+    @Test
+    public void circuitOpensFailsFastAndRecovers() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker()
+                .setSlidingWindow(10, 5)
+                .setOpenDuration(500, TimeUnit.MILLISECONDS);
+        final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChanged(String host, CircuitBreaker.State from, CircuitBreaker.State to) {
+                transitions.add(from + "->" + to);
+            }
+        });
+        Api api = build(TestRetrofit.config(new TestConnectivityMonitor()).setCircuitBreaker(circuitBreaker));
+
+        failing = true;
+        final AtomicInteger failedFast = new AtomicInteger();
+        for (int i = 0; i < 8; i++) {
+            RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(1);
+            api.item(i).enqueue(null, template, new TemplateCallback<Map<String, Object>>() {
+                @Override
+                public void onCircuitOpen(TemplateCall<Map<String, Object>> call, CircuitOpenException e) {
+                    failedFast.incrementAndGet();
+                    super.onCircuitOpen(call, e);
+                }
+            });
+            assertTrue(template.await(10, TimeUnit.SECONDS));
+            assertEquals(1, template.failures.get());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(host));
+        assertEquals(5, server.getRequestCount()); // opened at the failure rate of the minimum calls
+        assertEquals(3, failedFast.get());
+
+        failing = false;
+        Thread.sleep(600);
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(1);
+        api.item(0).enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        assertTrue(template.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, template.successes.get());
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(host));
+        assertEquals(3, transitions.size());
+        assertEquals("CLOSED->OPEN", transitions.get(0));
+        assertEquals("OPEN->HALF_OPEN", transitions.get(1));
+        assertEquals("HALF_OPEN->CLOSED", transitions.get(2));
+    }
+
+    @Test
+    public void halfOpenCircuitCountsJustProbes() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker()
+                .setSlidingWindow(10, 5)
+                .setOpenDuration(300, TimeUnit.MILLISECONDS);
+        final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            @Override
+            public void onStateChanged(String host, CircuitBreaker.State from, CircuitBreaker.State to) {
+                transitions.add(from + "->" + to);
+            }
+        });
+        Api api = build(TestRetrofit.config(new TestConnectivityMonitor()).setCircuitBreaker(circuitBreaker));
+
+        // succeeds while the circuit is half open, but was let through when it was closed
+        RecordingTemplate<Map<String, Object>> slow = new RecordingTemplate<Map<String, Object>>(1);
+        api.item(1200).enqueue(null, slow, new TemplateCallback<Map<String, Object>>());
+        while (serving.get() == 0) {
+            Thread.sleep(10); // until the server decided to serve it successfully
+        }
+        failing = true;
+        for (int i = 0; i < 5; i++) {
+            RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(1);
+            api.item(i).enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+            assertTrue(template.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(host));
+
+        Thread.sleep(400);
+        RecordingTemplate<Map<String, Object>> probe = new RecordingTemplate<Map<String, Object>>(1);
+        api.item(1500).enqueue(null, probe, new TemplateCallback<Map<String, Object>>()); // fails
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(host));
+
+        assertTrue(slow.await(10, TimeUnit.SECONDS));
+        assertEquals(1, slow.successes.get());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(host));
+
+        assertTrue(probe.await(10, TimeUnit.SECONDS));
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState(host));
+        assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->OPEN]", transitions.toString());
+    }
+
+    @Test
+    public void canceledProbeLetsAnotherOneThrough() throws Exception {
+        CircuitBreaker circuitBreaker = new CircuitBreaker()
+                .setSlidingWindow(10, 5)
+                .setOpenDuration(60, TimeUnit.SECONDS);
+        Api api = build(TestRetrofit.config(new TestConnectivityMonitor()).setCircuitBreaker(circuitBreaker));
+        failing = true;
+        for (int i = 0; i < 5; i++) {
+            RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(1);
+            api.item(i).enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+            assertTrue(template.await(10, TimeUnit.SECONDS));
+        }
+        failing = false;
+        circuitBreaker.setOpenDuration(100, TimeUnit.MILLISECONDS);
+        Thread.sleep(200);
+
+        TemplateCall<Map<String, Object>> canceled = api.item(1500);
+        RecordingTemplate<Map<String, Object>> canceledTemplate = new RecordingTemplate<Map<String, Object>>(1);
+        canceled.enqueue(null, canceledTemplate, new TemplateCallback<Map<String, Object>>());
+        canceled.cancel();
+        assertTrue(canceledTemplate.await(10, TimeUnit.SECONDS));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState(host));
+
+        RecordingTemplate<Map<String, Object>> probe = new RecordingTemplate<Map<String, Object>>(1);
+        api.item(0).enqueue(null, probe, new TemplateCallback<Map<String, Object>>());
+        assertTrue(probe.await(10, TimeUnit.SECONDS));
+        assertEquals(1, probe.successes.get());
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState(host));
+    }
+
+    private Api build(DefaultRetrofitBuilder.Config config) {
+        return TestRetrofit.build(server, config).getRetrofit().create(Api.class);
+    }
+
+    /**
+     * Enqueues given number of calls at once and waits until all of them succeed.
+     */
+    private void burst(Api api, int calls) throws InterruptedException {
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(calls);
+        for (int i = 0; i < calls; i++) {
+            api.item(i).enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        }
+        assertTrue(template.await(60, TimeUnit.SECONDS));
+        assertEquals(calls, template.successes.get());
+    }
+
+    private void updatePeak(int concurrency) {
+        int peak;
+        do {
+            peak = peakServing.get();
+        } while (concurrency > peak && !peakServing.compareAndSet(peak, concurrency));
+    }
+
+}
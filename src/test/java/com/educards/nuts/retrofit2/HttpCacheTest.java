@@ -0,0 +1,183 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import retrofit2.Response;
+import retrofit2.http.GET;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * {@link HttpCachePolicy} applied by {@link DefaultRetrofitBuilder} against {@link MockWebServer},
+ * checked by the hit counters of the cache.
+ */
+public class HttpCacheTest {
+
+    interface Api {
+
+        @GET("forced/item")
+        TemplateCall<ResponseBody> forced();
+
+        @GET("plain")
+        TemplateCall<ResponseBody> plain();
+
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+
+    private final TestConnectivityMonitor connectivityMonitor = new TestConnectivityMonitor();
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void forcedCaching() throws IOException {
+        DefaultRetrofitBuilder builder = build(new HttpCachePolicy().forceCache("/forced/", 1, TimeUnit.MINUTES));
+        Api api = builder.getRetrofit().create(Api.class);
+        server.enqueue(new MockResponse().setBody("F1"));
+        server.enqueue(new MockResponse().setBody("P1"));
+        server.enqueue(new MockResponse().setBody("P2"));
+
+        assertEquals("F1", fromNetwork(api.forced()));
+        assertEquals("F1", fromCache(api.forced()));
+        assertEquals("F1", fromCache(api.forced()));
+        assertEquals("P1", fromNetwork(api.plain())); // no caching headers
+        assertEquals("P2", fromNetwork(api.plain()));
+
+        Cache cache = builder.getCache();
+        assertEquals(5, cache.requestCount());
+        assertEquals(2, cache.hitCount());
+        assertEquals(3, cache.networkCount());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void staleWhileRevalidate() throws Exception {
+        DefaultRetrofitBuilder builder = build(new HttpCachePolicy().forceCache("/forced/", 1, TimeUnit.SECONDS)
+                .setStaleWhileRevalidate(1, TimeUnit.MINUTES));
+        Api api = builder.getRetrofit().create(Api.class);
+        server.enqueue(new MockResponse().setBody("F1"));
+        server.enqueue(new MockResponse().setBody("F2"));
+
+        assertEquals("F1", fromNetwork(api.forced()));
+        Thread.sleep(1500);
+        assertEquals("F1", fromCache(api.forced())); // stale, revalidated in background
+        assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+        assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+        String body = null;
+        for (int i = 0; i < 50 && !"F2".equals(body); i++) { // the revalidated response is stored after it's read
+            Thread.sleep(20);
+            body = fromCache(api.forced());
+        }
+        assertEquals("F2", body);
+
+        Cache cache = builder.getCache();
+        assertEquals(2, cache.networkCount());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void staleIfError() throws Exception {
+        DefaultRetrofitBuilder builder = build(new HttpCachePolicy().forceCache("/forced/", 1, TimeUnit.SECONDS)
+                .setStaleIfError(1, TimeUnit.MINUTES));
+        Api api = builder.getRetrofit().create(Api.class);
+        server.enqueue(new MockResponse().setBody("F1"));
+        server.enqueue(new MockResponse().setResponseCode(500).setBody("error"));
+
+        assertEquals("F1", fromNetwork(api.forced()));
+        Thread.sleep(1500);
+        assertEquals("F1", fromCache(api.forced()));
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, builder.getCache().hitCount()); // stale-if-error lookup
+    }
+
+    @Test
+    public void offlineFirst() throws IOException {
+        DefaultRetrofitBuilder builder = build(new HttpCachePolicy().setOfflineFirst(true));
+        Api api = builder.getRetrofit().create(Api.class);
+        server.enqueue(new MockResponse().setBody("P1"));
+        server.enqueue(new MockResponse().setBody("P2"));
+
+        assertEquals("P1", fromNetwork(api.plain()));
+        connectivityMonitor.setConnected(false);
+        assertEquals("P1", fromCache(api.plain())); // cached without caching headers
+        connectivityMonitor.setConnected(true);
+        assertEquals("P2", fromNetwork(api.plain()));
+
+        assertEquals(1, builder.getCache().hitCount());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void offlineFirstIsOptIn() throws IOException {
+        DefaultRetrofitBuilder builder = build(new HttpCachePolicy());
+        Api api = builder.getRetrofit().create(Api.class);
+        server.enqueue(new MockResponse().setBody("P1"));
+        server.enqueue(new MockResponse().setBody("P2"));
+
+        assertEquals("P1", fromNetwork(api.plain()));
+        connectivityMonitor.setConnected(false);
+        assertEquals("P2", fromNetwork(api.plain()));
+
+        assertEquals(0, builder.getCache().hitCount());
+    }
+
+    @Test
+    public void cacheControlOverride() throws IOException {
+        DefaultRetrofitBuilder builder = build(new HttpCachePolicy().forceCache("/forced/", 1, TimeUnit.MINUTES));
+        Api api = builder.getRetrofit().create(Api.class);
+        server.enqueue(new MockResponse().setBody("F1"));
+        server.enqueue(new MockResponse().setBody("F2"));
+
+        assertEquals("F1", fromNetwork(api.forced()));
+        assertEquals("F2", fromNetwork(api.forced().setCacheControl(CacheControl.FORCE_NETWORK)));
+        assertEquals("F2", fromCache(api.forced().setCacheControl(CacheControl.FORCE_CACHE)));
+
+        Cache cache = builder.getCache();
+        assertEquals(1, cache.hitCount());
+        assertEquals(2, cache.networkCount());
+    }
+
+    private DefaultRetrofitBuilder build(HttpCachePolicy policy) throws IOException {
+        return TestRetrofit.build(server, TestRetrofit.config(connectivityMonitor)
+                .setHttpCacheEnabled(true)
+                .setHttpCacheDirectory(temporaryFolder.newFolder("httpCache"))
+                .setHttpCachePolicy(policy));
+    }
+
+    private static String fromNetwork(TemplateCall<ResponseBody> call) throws IOException {
+        Response<ResponseBody> response = call.getCall().execute();
+        assertNotNull("network response expected", response.raw().networkResponse());
+        return response.body().string();
+    }
+
+    private static String fromCache(TemplateCall<ResponseBody> call) throws IOException {
+        Response<ResponseBody> response = call.getCall().execute();
+        assertNull("cached response expected", response.raw().networkResponse());
+        return response.body().string();
+    }
+
+}
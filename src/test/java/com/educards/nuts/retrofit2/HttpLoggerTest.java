@@ -0,0 +1,144 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.logging.HttpLoggingInterceptor.Level;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.http.GET;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Messages of {@link HttpLogger} for exchanges with {@link MockWebServer}.
+ */
+public class HttpLoggerTest {
+
+    interface Api {
+
+        @GET("item")
+        TemplateCall<Map<String, Object>> item();
+
+    }
+
+    private final MockWebServer server = new MockWebServer();
+
+    private final RecordingLogger logger = new RecordingLogger();
+
+    private Api api;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+        logger.setLevel(Level.BODY);
+        api = TestRetrofit.build(server, TestRetrofit.config(new TestConnectivityMonitor())
+                .setHttpLogger(logger)).getRetrofit().create(Api.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void cookiesAreRedacted() throws Exception {
+        server.enqueue(json("{}").addHeader("Set-Cookie", "session=secret; Path=/"));
+        server.enqueue(json("{}"));
+
+        api.item().getCall().execute();
+        api.item().getCall().execute();
+
+        assertEquals(4, logger.messages.size());
+        assertTrue(logger.messages.get(1), logger.messages.get(1).contains("\nSet-Cookie: [redacted]"));
+        assertTrue(logger.messages.get(2), logger.messages.get(2).contains("\nCookie: [redacted]"));
+        for (String message : logger.messages) {
+            assertFalse(message, message.contains("secret"));
+        }
+    }
+
+    @Test
+    public void bodyIsCapped() throws Exception {
+        logger.setMaxBodyBytes(10);
+        String body = "{\"name\":\"" + repeat('x', 90) + "\"}";
+        server.enqueue(json(body));
+
+        assertEquals(repeat('x', 90), api.item().getCall().execute().body().get("name"));
+
+        String response = logger.messages.get(1);
+        assertTrue(response, response.endsWith("\n" + body.substring(0, 10) + "\n(10 of " + body.length() + " bytes logged)"));
+    }
+
+    @Test
+    public void gzippedBodyIsDecodedAndCapped() throws Exception {
+        logger.setMaxBodyBytes(10);
+        String body = "{\"name\":\"" + repeat('x', 9000) + "\"}";
+        server.enqueue(json("").setBody(gzip(body)).addHeader("Content-Encoding", "gzip"));
+
+        assertEquals(repeat('x', 9000), api.item().getCall().execute().body().get("name"));
+
+        String response = logger.messages.get(1);
+        assertTrue(response, response.endsWith("\n" + body.substring(0, 10) + "\n(10 bytes logged)"));
+    }
+
+    @Test
+    public void smallGzippedBodyIsLoggedWhole() throws Exception {
+        server.enqueue(json("").setBody(gzip("{\"a\":1}")).addHeader("Content-Encoding", "gzip"));
+
+        api.item().getCall().execute();
+
+        assertTrue(logger.messages.get(1), logger.messages.get(1).endsWith("\n{\"a\":1}"));
+    }
+
+    @Test
+    public void unsampledExchangeIsNotLogged() throws Exception {
+        logger.setSampleRate(0);
+        server.enqueue(json("{}"));
+
+        api.item().getCall().execute();
+
+        assertEquals(0, logger.messages.size());
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setBody(body).addHeader("Content-Type", "application/json");
+    }
+
+    private static Buffer gzip(String body) throws IOException {
+        Buffer buffer = new Buffer();
+        BufferedSink sink = Okio.buffer(new GzipSink(buffer));
+        sink.writeUtf8(body);
+        sink.close();
+        return buffer;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            s.append(c);
+        }
+        return s.toString();
+    }
+
+    private static class RecordingLogger extends HttpLogger {
+
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+
+        @Override
+        protected void log(String message) {
+            messages.add(message);
+        }
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.educards.nuts.retrofit2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Test;
+import retrofit2.http.GET;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * {@link JsonStream} reading bodies of various shapes, and canceled by {@link TemplateCall#cancel()}
+ * while streamed from {@link MockWebServer}.
+ */
+public class JsonStreamTest {
+
+    interface Api {
+
+        @GET("items")
+        TemplateCall<JsonStream<Integer>> items();
+
+    }
+
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final MockWebServer server = new MockWebServer();
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void emptyBodyHasNoElements() throws Exception {
+        JsonStream<Integer> stream = stream("");
+
+        assertFalse(stream.hasNext());
+        stream.close();
+    }
+
+    @Test
+    public void emptyArrayHasNoElements() throws Exception {
+        JsonStream<Integer> stream = stream("[]");
+
+        assertFalse(stream.hasNext());
+        stream.close();
+    }
+
+    @Test
+    public void nonArrayBodyFails() throws Exception {
+        JsonStream<Integer> stream = stream("{\"a\":1}");
+        try {
+            stream.hasNext();
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Expected JSON array"));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void truncatedArrayFails() throws Exception {
+        final List<Integer> elements = new ArrayList<Integer>();
+        try {
+            stream("[1,2,").forEach(new JsonStream.Callback<Integer>() {
+                @Override
+                public boolean onElement(Integer element) {
+                    elements.add(element);
+                    return true;
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            // truncated
+        }
+        assertEquals("[1, 2]", elements.toString());
+    }
+
+    @Test
+    public void forEachStopsEarly() throws Exception {
+        final List<Integer> elements = new ArrayList<Integer>();
+        JsonStream<Integer> stream = stream("[1,2,3,4]");
+
+        stream.forEach(new JsonStream.Callback<Integer>() {
+            @Override
+            public boolean onElement(Integer element) {
+                elements.add(element);
+                return element < 2;
+            }
+        });
+
+        assertEquals("[1, 2]", elements.toString());
+        assertFalse(stream.hasNext()); // closed
+    }
+
+    @Test
+    public void forEachChunkDeliversLastPartialChunk() throws Exception {
+        final List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+
+        stream("[1,2,3,4,5]").forEachChunk(2, new JsonStream.ChunkCallback<Integer>() {
+            @Override
+            public boolean onChunk(List<Integer> chunk) {
+                chunks.add(chunk);
+                return true;
+            }
+        });
+
+        assertEquals("[[1, 2], [3, 4], [5]]", chunks.toString());
+    }
+
+    @Test
+    public void forEachChunkStopsEarly() throws Exception {
+        final List<List<Integer>> chunks = new ArrayList<List<Integer>>();
+
+        stream("[1,2,3,4,5]").forEachChunk(2, new JsonStream.ChunkCallback<Integer>() {
+            @Override
+            public boolean onChunk(List<Integer> chunk) {
+                chunks.add(chunk);
+                return false;
+            }
+        });
+
+        assertEquals("[[1, 2]]", chunks.toString());
+    }
+
+    @Test
+    public void cancelFailsConsumption() throws Exception {
+        StringBuilder body = new StringBuilder("[0");
+        for (int i = 1; i < 100000; i++) {
+            body.append(',').append(i);
+        }
+        body.append(']');
+        server.enqueue(new MockResponse().setBody(body.toString()).addHeader("Content-Type", "application/json")
+                .throttleBody(16 * 1024, 100, TimeUnit.MILLISECONDS));
+        server.start();
+        Api api = TestRetrofit.build(server, TestRetrofit.config(new TestConnectivityMonitor()))
+                .getRetrofit().create(Api.class);
+        final TemplateCall<JsonStream<Integer>> call = api.items();
+        JsonStream<Integer> stream = call.getCall().execute().body();
+
+        final List<Integer> elements = new ArrayList<Integer>();
+        try {
+            stream.forEach(new JsonStream.Callback<Integer>() {
+                @Override
+                public boolean onElement(Integer element) {
+                    elements.add(element);
+                    if (element == 0) {
+                        call.cancel(); // e.g. the user left the screen
+                    }
+                    return true;
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            // canceled
+        }
+        assertTrue("elements=" + elements.size(), elements.size() < 100000);
+    }
+
+    private JsonStream<Integer> stream(String body) {
+        return new JsonStream<Integer>(ResponseBody.create(body, JSON), objectMapper.readerFor(Integer.class));
+    }
+
+}
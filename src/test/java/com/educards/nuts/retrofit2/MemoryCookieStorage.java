@@ -0,0 +1,50 @@
+package com.educards.nuts.retrofit2;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cookie storage kept in memory.
+ */
+class MemoryCookieStorage implements CookieStorage {
+
+    private final Map<String, Map<String, String>> domains = new HashMap<String, Map<String, String>>();
+
+    @Override
+    public synchronized Collection<String> loadDomains() {
+        return new ArrayList<String>(domains.keySet());
+    }
+
+    @Override
+    public synchronized Map<String, String> loadCookies(String domain) {
+        Map<String, String> cookies = domains.get(domain);
+        return cookies != null ? new HashMap<String, String>(cookies) : new HashMap<String, String>();
+    }
+
+    @Override
+    public synchronized void write(boolean clear, Map<String, Map<String, String>> changes) {
+        if (clear) {
+            domains.clear();
+        }
+        for (Map.Entry<String, Map<String, String>> domain : changes.entrySet()) {
+            Map<String, String> cookies = domains.get(domain.getKey());
+            if (cookies == null) {
+                cookies = new HashMap<String, String>();
+                domains.put(domain.getKey(), cookies);
+            }
+            for (Map.Entry<String, String> cookie : domain.getValue().entrySet()) {
+                if (cookie.getValue() != null) {
+                    cookies.put(cookie.getKey(), cookie.getValue());
+                } else {
+                    cookies.remove(cookie.getKey());
+                }
+            }
+            if (cookies.isEmpty()) {
+                domains.remove(domain.getKey());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.educards.nuts.retrofit2;
+
+import android.content.ContextWrapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link PersistentHttpCookieStore} persisting into {@link MemoryCookieStorage}.
+ */
+public class PersistentHttpCookieStoreTest {
+
+    private static final URI URI = java.net.URI.create("https://api.example.com/");
+
+    @Test
+    public void failedClearIsWrittenBeforeLaterChanges() {
+        FailingCookieStorage storage = new FailingCookieStorage();
+        PersistentHttpCookieStore store = newStore(storage);
+        store.add(URI, cookie("a"));
+        store.add(URI, cookie("b"));
+
+        storage.failing = true;
+        store.removeAll(); // e.g. logout
+        store.add(URI, cookie("c"));
+        storage.failing = false;
+        store.add(URI, cookie("d"));
+
+        assertEquals("[c, d]", names(store.get(URI)));
+        assertEquals("[c, d]", names(newStore(storage).get(URI))); // a, b don't come back
+    }
+
+    private static PersistentHttpCookieStore newStore(CookieStorage storage) {
+        return new PersistentHttpCookieStore(new ContextWrapper(null),
+                new PersistentHttpCookieStore.Config().setStorage(storage));
+    }
+
+    private static HttpCookie cookie(String name) {
+        HttpCookie cookie = new HttpCookie(name, "1");
+        cookie.setDomain("api.example.com");
+        cookie.setPath("/");
+        return cookie;
+    }
+
+    private static String names(List<HttpCookie> cookies) {
+        List<String> names = new ArrayList<String>();
+        for (HttpCookie cookie : cookies) {
+            names.add(cookie.getName());
+        }
+        Collections.sort(names);
+        return names.toString();
+    }
+
+    private static class FailingCookieStorage implements CookieStorage {
+
+        private final MemoryCookieStorage storage = new MemoryCookieStorage();
+
+        volatile boolean failing;
+
+        @Override
+        public Collection<String> loadDomains() {
+            return storage.loadDomains();
+        }
+
+        @Override
+        public Map<String, String> loadCookies(String domain) {
+            return storage.loadCookies(domain);
+        }
+
+        @Override
+        public void write(boolean clear, Map<String, Map<String, String>> changes) throws IOException {
+            if (failing) {
+                throw new IOException("Disk full");
+            }
+            storage.write(clear, changes);
+        }
+    }
+
+}
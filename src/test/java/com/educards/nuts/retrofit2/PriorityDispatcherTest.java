@@ -0,0 +1,224 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Test;
+import retrofit2.http.GET;
+import retrofit2.http.Path;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Slot accounting of {@link PriorityDispatcher} and the order {@link MockWebServer} receives
+ * prioritized calls in.
+ */
+public class PriorityDispatcherTest {
+
+    interface Api {
+
+        @Priority(CallPriority.PREFETCH)
+        @GET("prefetch/{id}")
+        TemplateCall<Map<String, Object>> prefetch(@Path("id") int id);
+
+        @GET("normal/{id}")
+        TemplateCall<Map<String, Object>> normal(@Path("id") int id);
+
+        @GET("immediate")
+        TemplateCall<Map<String, Object>> immediate();
+
+    }
+
+    private final MockWebServer server = new MockWebServer();
+
+    /**
+     * Paths in the order requests were received.
+     */
+    private final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+    private final AtomicInteger prefetchServing = new AtomicInteger();
+
+    private final AtomicInteger peakPrefetchServing = new AtomicInteger();
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void reservedSlotsAdmitOnlyImmediateCalls() {
+        PriorityDispatcher dispatcher = new PriorityDispatcher().setMaxCalls(3).setReservedImmediateCalls(1);
+        RecordingWaiter normal = new RecordingWaiter();
+
+        assertTrue(dispatcher.acquire(CallPriority.NORMAL, new RecordingWaiter()));
+        assertTrue(dispatcher.acquire(CallPriority.NORMAL, new RecordingWaiter()));
+        assertFalse(dispatcher.acquire(CallPriority.NORMAL, normal));
+        assertTrue(dispatcher.acquire(CallPriority.IMMEDIATE, new RecordingWaiter()));
+        assertEquals(1, dispatcher.getWaiting(CallPriority.NORMAL));
+
+        dispatcher.release(CallPriority.IMMEDIATE); // the reserved slot stays free
+        assertEquals(0, normal.runs);
+        dispatcher.release(CallPriority.NORMAL);
+        assertEquals(1, normal.runs);
+        assertEquals(2, dispatcher.getInFlight(CallPriority.NORMAL));
+        assertEquals(0, dispatcher.getWaiting(CallPriority.NORMAL));
+    }
+
+    @Test
+    public void prefetchIsDeferred() {
+        PriorityDispatcher dispatcher = new PriorityDispatcher().setMaxCalls(4).setReservedImmediateCalls(1)
+                .setMaxPrefetchCalls(1);
+        RecordingWaiter prefetch = new RecordingWaiter();
+        RecordingWaiter secondPrefetch = new RecordingWaiter();
+
+        assertTrue(dispatcher.acquire(CallPriority.IMMEDIATE, new RecordingWaiter()));
+        assertFalse(dispatcher.acquire(CallPriority.PREFETCH, prefetch)); // immediate call in flight
+        dispatcher.release(CallPriority.IMMEDIATE);
+        assertEquals(1, prefetch.runs);
+
+        assertFalse(dispatcher.acquire(CallPriority.PREFETCH, secondPrefetch)); // max prefetch calls in flight
+        assertTrue(dispatcher.acquire(CallPriority.NORMAL, new RecordingWaiter()));
+        assertTrue(dispatcher.acquire(CallPriority.NORMAL, new RecordingWaiter()));
+        RecordingWaiter normal = new RecordingWaiter();
+        assertFalse(dispatcher.acquire(CallPriority.NORMAL, normal));
+
+        dispatcher.release(CallPriority.PREFETCH); // the waiting normal call goes first
+        assertEquals(1, normal.runs);
+        assertEquals(0, secondPrefetch.runs);
+        dispatcher.release(CallPriority.NORMAL);
+        assertEquals(1, secondPrefetch.runs);
+        assertEquals(1, dispatcher.getInFlight(CallPriority.PREFETCH));
+    }
+
+    @Test
+    public void withdrawnWaiterIsNotRun() {
+        PriorityDispatcher dispatcher = new PriorityDispatcher().setReservedImmediateCalls(1).setMaxCalls(2);
+        RecordingWaiter normal = new RecordingWaiter();
+        RecordingWaiter prefetch = new RecordingWaiter();
+
+        assertTrue(dispatcher.acquire(CallPriority.NORMAL, new RecordingWaiter()));
+        assertFalse(dispatcher.acquire(CallPriority.NORMAL, normal));
+        assertFalse(dispatcher.acquire(CallPriority.PREFETCH, prefetch));
+
+        assertTrue(dispatcher.withdraw(CallPriority.NORMAL, normal));
+        assertFalse(dispatcher.withdraw(CallPriority.NORMAL, normal));
+        dispatcher.release(CallPriority.NORMAL);
+
+        assertEquals(0, normal.runs);
+        assertEquals(1, prefetch.runs);
+        assertEquals(0, dispatcher.getWaiting(CallPriority.NORMAL));
+    }
+
+    @Test
+    public void immediateCallOvertakesBackgroundCalls() throws Exception {
+        startServer();
+        PriorityDispatcher dispatcher = new PriorityDispatcher().setMaxCalls(3).setReservedImmediateCalls(1)
+                .setMaxPrefetchCalls(1);
+        Api api = TestRetrofit.build(server, TestRetrofit.config(new TestConnectivityMonitor())
+                .setPriorityDispatcher(dispatcher)).getRetrofit().create(Api.class);
+
+        int prefetchCalls = enqueueBackgroundCalls(api);
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(1);
+        api.immediate().setPriority(CallPriority.IMMEDIATE)
+                .enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        assertTrue(template.await(10, TimeUnit.SECONDS));
+        awaitRequests(prefetchCalls + 4);
+
+        assertTrue(received.toString(), received.indexOf("/immediate") < 3);
+        assertTrue(received.toString(), received.indexOf("/normal/2") < received.indexOf("/prefetch/1"));
+        assertEquals(1, peakPrefetchServing.get());
+    }
+
+    @Test
+    public void immediateCallWaitsInFifoOrderWithoutDispatcher() throws Exception {
+        startServer();
+        Api api = TestRetrofit.build(server, TestRetrofit.config(new TestConnectivityMonitor())
+                .setMaxRequestsPerHost(3)).getRetrofit().create(Api.class);
+
+        int prefetchCalls = enqueueBackgroundCalls(api);
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(1);
+        api.immediate().setPriority(CallPriority.IMMEDIATE)
+                .enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        assertTrue(template.await(10, TimeUnit.SECONDS));
+        awaitRequests(prefetchCalls + 4);
+
+        assertTrue(received.toString(), received.indexOf("/immediate") >= prefetchCalls);
+    }
+
+    private void startServer() throws IOException {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                received.add(request.getPath());
+                boolean prefetch = request.getPath().startsWith("/prefetch/");
+                if (prefetch) {
+                    updatePeak(prefetchServing.incrementAndGet());
+                }
+                try {
+                    Thread.sleep(100);
+                    return new MockResponse().setBody("{}");
+                } finally {
+                    if (prefetch) {
+                        prefetchServing.decrementAndGet();
+                    }
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Enqueues prefetch calls followed by normal ones.
+     *
+     * @return number of prefetch calls
+     */
+    private static int enqueueBackgroundCalls(Api api) {
+        int prefetchCalls = 6;
+        for (int i = 0; i < prefetchCalls; i++) {
+            api.prefetch(i).enqueue(null, new RecordingTemplate<Map<String, Object>>(1),
+                    new TemplateCallback<Map<String, Object>>());
+        }
+        for (int i = 0; i < 3; i++) {
+            api.normal(i).enqueue(null, new RecordingTemplate<Map<String, Object>>(1),
+                    new TemplateCallback<Map<String, Object>>());
+        }
+        return prefetchCalls;
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        for (int i = 0; i < 200 && server.getRequestCount() < count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, server.getRequestCount());
+    }
+
+    private void updatePeak(int concurrency) {
+        int peak;
+        do {
+            peak = peakPrefetchServing.get();
+        } while (concurrency > peak && !peakPrefetchServing.compareAndSet(peak, concurrency));
+    }
+
+    private static class RecordingWaiter implements Runnable {
+
+        int runs;
+
+        @Override
+        public void run() {
+            runs++;
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.educards.nuts.retrofit2;
+
+import com.educards.nuts.RequestFailData;
+import com.educards.nuts.Template;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Template counting outcomes of given number of {@link TemplateCall}s.
+ */
+class RecordingTemplate<T> implements Template<T> {
+
+    final AtomicInteger successes = new AtomicInteger();
+
+    final AtomicInteger failures = new AtomicInteger();
+
+    private final CountDownLatch done;
+
+    RecordingTemplate(int calls) {
+        this.done = new CountDownLatch(calls);
+    }
+
+    /**
+     * @return whether all the calls completed in time
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    @Override
+    public void onRequestInProgress() {
+    }
+
+    @Override
+    public void onRequestSucceeded(T result) {
+        successes.incrementAndGet();
+        done.countDown();
+    }
+
+    @Override
+    public void onRequestFailed(RequestFailData requestFailData) {
+        failures.incrementAndGet();
+        done.countDown();
+    }
+
+}
@@ -0,0 +1,232 @@
+package com.educards.nuts.retrofit2;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.http.Body;
+import retrofit2.http.GET;
+import retrofit2.http.POST;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link RetryPolicy} applied to calls against {@link MockWebServer}.
+ */
+public class RetryTest {
+
+    interface Api {
+
+        @GET("item")
+        TemplateCall<Map<String, Object>> get();
+
+        @Retry(hedge = true)
+        @GET("item")
+        TemplateCall<Map<String, Object>> hedgedGet();
+
+        @POST("item")
+        TemplateCall<Map<String, Object>> post(@Body Map<String, Object> item);
+
+        @Retry(maxAttempts = 2)
+        @POST("item")
+        TemplateCall<Map<String, Object>> idempotentPost(@Body Map<String, Object> item);
+
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+
+    private final RetryPolicy retryPolicy = new RetryPolicy()
+            .setBackoff(10, 50, TimeUnit.MILLISECONDS)
+            .setHedgeDelay(300, TimeUnit.MILLISECONDS);
+
+    private Api api;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+        api = TestRetrofit.build(server, TestRetrofit.config(new TestConnectivityMonitor())
+                .setRetryPolicy(retryPolicy)).getRetrofit().create(Api.class);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void transientFailureIsRetried() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("{\"id\":1}"));
+
+        Response<Map<String, Object>> response = api.get().getCall().execute();
+
+        assertEquals(200, response.code());
+        assertEquals(1, response.body().get("id"));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void retryAfterIsHonored() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "1"));
+        server.enqueue(new MockResponse().setBody("{\"id\":1}"));
+
+        long start = System.nanoTime();
+        Object result = enqueue(api.get().getCall());
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(200, ((Response<?>) result).code());
+        assertTrue("elapsedMs=" + elapsedMs, elapsedMs >= 900);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void nonIdempotentCallIsRetriedOnlyIfAnnotated() throws IOException {
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("{\"id\":1}"));
+
+        assertEquals(503, api.post(Collections.<String, Object>emptyMap()).getCall().execute().code());
+        assertEquals(1, server.getRequestCount());
+
+        assertEquals(200, api.idempotentPost(Collections.<String, Object>emptyMap()).getCall().execute().code());
+        assertEquals(3, server.getRequestCount());
+    }
+
+    @Test
+    public void retryBudgetLimitsRetries() throws IOException {
+        retryPolicy.setRetryBudget(4, 0.1); // retries allowed while more than 2 tokens are left
+        for (int i = 0; i < 6; i++) {
+            server.enqueue(new MockResponse().setResponseCode(503));
+        }
+
+        assertEquals(503, api.get().getCall().execute().code()); // 2 retries
+        assertEquals(3, server.getRequestCount());
+        assertEquals(503, api.get().getCall().execute().code()); // budget exhausted
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void slowCallIsHedged() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"id\":1}").setBodyDelay(3, TimeUnit.SECONDS));
+        server.enqueue(new MockResponse().setBody("{\"id\":2}"));
+
+        long start = System.nanoTime();
+        Response<?> response = (Response<?>) enqueue(api.hedgedGet().getCall());
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(2, ((Map<?, ?>) response.body()).get("id")); // the hedge
+        assertTrue("elapsedMs=" + elapsedMs, elapsedMs < 2000);
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void cancelWhileWaitingForRetry() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "5"));
+        Call<Map<String, Object>> call = api.get().getCall();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        call.enqueue(callback(result, done));
+        server.takeRequest(5, TimeUnit.SECONDS);
+        Thread.sleep(100);
+
+        call.cancel();
+
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(String.valueOf(result[0]), result[0] instanceof IOException);
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void callCanceledBeforeDispatchFailsAndReleasesPermit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter().setLimitRange(1, 1);
+        Api api = TestRetrofit.build(server, TestRetrofit.config(new TestConnectivityMonitor())
+                .setRetryPolicy(retryPolicy)
+                .setConcurrencyLimiter(limiter)).getRetrofit().create(Api.class);
+        String host = server.url("/").host();
+        server.enqueue(new MockResponse().setBody("{\"id\":1}"));
+
+        TemplateCall<Map<String, Object>> canceled = api.get();
+        canceled.cancel();
+        RecordingTemplate<Map<String, Object>> template = new RecordingTemplate<Map<String, Object>>(1);
+        canceled.enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        assertTrue(template.await(1, TimeUnit.SECONDS));
+        assertEquals(1, template.failures.get());
+        assertEquals(0, limiter.getInFlight(host));
+
+        template = new RecordingTemplate<Map<String, Object>>(1);
+        api.get().enqueue(null, template, new TemplateCallback<Map<String, Object>>());
+        assertTrue(template.await(10, TimeUnit.SECONDS));
+        assertEquals(1, template.successes.get());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void offlineCacheMissIsNotRetried() throws IOException {
+        retryPolicy.setRetryBudget(4, 0.1); // retries allowed while more than 2 tokens are left
+        TestConnectivityMonitor connectivityMonitor = new TestConnectivityMonitor();
+        Api api = TestRetrofit.build(server, TestRetrofit.config(connectivityMonitor)
+                .setRetryPolicy(retryPolicy)
+                .setHttpCacheEnabled(true)
+                .setHttpCacheDirectory(temporaryFolder.newFolder("httpCache"))
+                .setHttpCachePolicy(new HttpCachePolicy().setOfflineFirst(true))).getRetrofit().create(Api.class);
+
+        connectivityMonitor.setConnected(false);
+        for (int i = 0; i < 3; i++) {
+            Response<Map<String, Object>> response = api.get().getCall().execute();
+            assertEquals(504, response.code()); // unsatisfiable only-if-cached request
+            assertNull(response.raw().networkResponse());
+        }
+        assertEquals(0, server.getRequestCount());
+
+        connectivityMonitor.setConnected(true);
+        server.enqueue(new MockResponse().setResponseCode(503));
+        server.enqueue(new MockResponse().setBody("{\"id\":1}"));
+        assertEquals(200, api.get().getCall().execute().code()); // the budget is left for real failures
+        assertEquals(2, server.getRequestCount());
+    }
+
+    /**
+     * @return response or failure of the call
+     */
+    private static Object enqueue(Call<Map<String, Object>> call) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Object[] result = new Object[1];
+        call.enqueue(callback(result, done));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return result[0];
+    }
+
+    private static Callback<Map<String, Object>> callback(final Object[] result, final CountDownLatch done) {
+        return new Callback<Map<String, Object>>() {
+            @Override
+            public void onResponse(Call<Map<String, Object>> call, Response<Map<String, Object>> response) {
+                result[0] = response;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<Map<String, Object>> call, Throwable t) {
+                result[0] = t;
+                done.countDown();
+            }
+        };
+    }
+
+}
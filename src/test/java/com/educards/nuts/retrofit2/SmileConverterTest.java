@@ -0,0 +1,167 @@
+package com.educards.nuts.retrofit2;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit2.Converter;
+import retrofit2.http.Body;
+import retrofit2.http.GET;
+import retrofit2.http.POST;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Smile negotiation of {@link CachingJacksonConverterFactory} against {@link MockWebServer}.
+ */
+public class SmileConverterTest {
+
+    public static class Item {
+
+        public int id;
+
+        public String name;
+
+        public double price;
+
+        public List<String> tags;
+
+        public boolean active;
+
+        static Item[] create(int count) {
+            Item[] items = new Item[count];
+            for (int i = 0; i < count; i++) {
+                Item item = new Item();
+                item.id = i;
+                item.name = "item name " + i;
+                item.price = i * 1.25;
+                item.tags = Arrays.asList("alpha", "beta", "gamma");
+                item.active = i % 2 == 0;
+                items[i] = item;
+            }
+            return items;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Item)) {
+                return false;
+            }
+            Item item = (Item) o;
+            return id == item.id && name.equals(item.name) && price == item.price
+                    && tags.equals(item.tags) && active == item.active;
+        }
+
+        @Override
+        public int hashCode() {
+            return id;
+        }
+    }
+
+    interface Api {
+
+        @POST("echo")
+        TemplateCall<Item[]> echo(@Body Item[] items);
+
+        @POST("other")
+        TemplateCall<Item[]> other(@Body Item[] items);
+
+        @GET("raw")
+        TemplateCall<ResponseBody> raw();
+
+    }
+
+    private final ObjectMapper jsonMapper = new ObjectMapper();
+
+    private final ObjectMapper smileMapper = new ObjectMapper(new SmileFactory());
+
+    private final MockWebServer server = new MockWebServer();
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void smileIsUsedOnceTheServerRespondsWithIt() throws Exception {
+        Item[] items = Item.create(3);
+        server.enqueue(new MockResponse().setHeader("Content-Type", "application/json")
+                .setBody(jsonMapper.writeValueAsString(items)));
+        server.enqueue(new MockResponse().setHeader("Content-Type", "application/x-jackson-smile")
+                .setBody(new Buffer().write(smileMapper.writeValueAsBytes(items))));
+        server.enqueue(new MockResponse().setHeader("Content-Type", "application/x-jackson-smile")
+                .setBody(new Buffer().write(smileMapper.writeValueAsBytes(items))));
+        Api api = TestRetrofit.build(server, jsonMapper, TestRetrofit.config(new TestConnectivityMonitor())
+                .setSmileObjectMapper(smileMapper)).getRetrofit().create(Api.class);
+
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(items, api.echo(items).getCall().execute().body());
+        }
+
+        RecordedRequest first = server.takeRequest();
+        assertTrue(first.getHeader("Accept").startsWith("application/x-jackson-smile"));
+        assertTrue(first.getHeader("Content-Type").startsWith("application/json"));
+        assertArrayEquals(items, jsonMapper.readValue(first.getBody().readByteArray(), Item[].class));
+        server.takeRequest();
+        RecordedRequest smile = server.takeRequest(); // the endpoint is known to speak Smile by now
+        assertEquals("application/x-jackson-smile", smile.getHeader("Content-Type"));
+        assertArrayEquals(items, smileMapper.readValue(smile.getBody().readByteArray(), Item[].class));
+    }
+
+    @Test
+    public void smileIsNegotiatedPerEndpoint() throws Exception {
+        Item[] items = Item.create(3);
+        server.enqueue(new MockResponse().setHeader("Content-Type", "application/x-jackson-smile")
+                .setBody(new Buffer().write(smileMapper.writeValueAsBytes(items))));
+        server.enqueue(new MockResponse().setHeader("Content-Type", "application/json")
+                .setBody(jsonMapper.writeValueAsString(items)));
+        server.enqueue(new MockResponse().setBody("raw"));
+        Api api = TestRetrofit.build(server, jsonMapper, TestRetrofit.config(new TestConnectivityMonitor())
+                .setSmileObjectMapper(smileMapper)).getRetrofit().create(Api.class);
+
+        assertArrayEquals(items, api.echo(items).getCall().execute().body());
+        assertArrayEquals(items, api.other(items).getCall().execute().body());
+        assertEquals("raw", api.raw().getCall().execute().body().string());
+
+        server.takeRequest();
+        RecordedRequest other = server.takeRequest(); // same host, but the endpoint didn't respond with Smile yet
+        assertTrue(other.getHeader("Content-Type").startsWith("application/json"));
+        RecordedRequest raw = server.takeRequest(); // body isn't decoded by Jackson
+        assertFalse(String.valueOf(raw.getHeader("Accept")).contains("application/x-jackson-smile"));
+    }
+
+    @Test
+    public void converterReadsBothFormats() throws IOException {
+        Item[] items = Item.create(100);
+        CachingJacksonConverterFactory factory = CachingJacksonConverterFactory.create(jsonMapper, smileMapper);
+        Converter<ResponseBody, ?> converter = factory.responseBodyConverter(Item[].class, new Annotation[0], null);
+        byte[] json = jsonMapper.writeValueAsBytes(items);
+        byte[] smile = smileMapper.writeValueAsBytes(items);
+
+        assertArrayEquals(items, (Item[]) converter.convert(ResponseBody.create(json, MediaType.get("application/json"))));
+        assertArrayEquals(items, (Item[]) converter.convert(
+                ResponseBody.create(smile, MediaType.get("application/x-jackson-smile"))));
+        assertTrue("Smile payload should be smaller", smile.length < json.length);
+    }
+
+}
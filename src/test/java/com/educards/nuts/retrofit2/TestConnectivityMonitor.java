@@ -0,0 +1,37 @@
+package com.educards.nuts.retrofit2;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Connectivity switched by the test.
+ */
+class TestConnectivityMonitor implements ConnectivityMonitor {
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private volatile boolean connected = true;
+
+    void setConnected(boolean connected) {
+        this.connected = connected;
+        for (Listener listener : listeners) {
+            listener.onConnectivityChanged();
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+}
@@ -0,0 +1,29 @@
+package com.educards.nuts.retrofit2;
+
+import android.content.ContextWrapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Builds {@link DefaultRetrofitBuilder} against {@link MockWebServer} in JVM tests.
+ * Cookies are kept in memory and connectivity is switched by the test so the Android
+ * context is never used. Calls are not secured so no auth token provider is needed.
+ */
+class TestRetrofit {
+
+    static DefaultRetrofitBuilder.Config config(ConnectivityMonitor connectivityMonitor) {
+        return new DefaultRetrofitBuilder.Config()
+                .setCookieStoreConfig(new PersistentHttpCookieStore.Config().setStorage(new MemoryCookieStorage()))
+                .setConnectivityMonitor(connectivityMonitor);
+    }
+
+    static DefaultRetrofitBuilder build(MockWebServer server, DefaultRetrofitBuilder.Config config) {
+        return build(server, new ObjectMapper(), config);
+    }
+
+    static DefaultRetrofitBuilder build(MockWebServer server, ObjectMapper objectMapper, DefaultRetrofitBuilder.Config config) {
+        return new DefaultRetrofitBuilder(new ContextWrapper(null), server.url("/").toString(),
+                objectMapper, null, config);
+    }
+
+}